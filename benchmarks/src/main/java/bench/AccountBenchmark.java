@@ -0,0 +1,68 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Balance, new transactions and summary formatting of an account with
+ *  history of different lengths. The history is created again for every
+ *  iteration, since addTransaction makes it longer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccountBenchmark {
+
+    @Param({"1", "1000", "100000"})
+    public int history;
+
+    private Object account;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        String[] userIDs = new String[1];
+        Object bank = Fixtures.newBank(1, userIDs);
+        Object user = BankApi.userLogin(bank, userIDs[0], Fixtures.PIN);
+        account = BankApi.getAccount(bank, BankApi.getAccountUUID(user, 0));
+        for (int i = 0; i < history; i++) {
+            BankApi.addTransaction(account, i % 2 == 0 ? 12_345 : -2_345, "Memo " + (i % 16));
+        }
+    }
+
+    @Benchmark
+    public long getBalance() {
+        return BankApi.getBalance(account);
+    }
+
+    @Benchmark
+    public void addTransaction() {
+        BankApi.addTransaction(account, 100, "Deposit");
+    }
+
+    @Benchmark
+    public String transactionSummaryLine() {
+        int index = ThreadLocalRandom.current().nextInt(history);
+        return BankApi.getTransactionSummaryLine(BankApi.getTransaction(account, index));
+    }
+
+    @Benchmark
+    public String accountSummaryLine() {
+        return BankApi.getAccountSummaryLine(account);
+    }
+}
@@ -0,0 +1,383 @@
+package bench;
+
+import java.io.DataInputStream;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ *  Access to the bank classes for benchmarks. The bank classes are in the
+ *  default package, which can't be imported and which JMH doesn't allow for
+ *  benchmark classes, so they are called through method handles. The handles
+ *  are constants, so the JIT inlines the calls like direct ones.
+ */
+final class BankApi {
+
+    private static final MethodHandle NEW_BANK;
+    private static final MethodHandle SET_PIN_ITERATIONS;
+    private static final MethodHandle ENSURE_CAPACITY;
+    private static final MethodHandle ADD_USER;
+    private static final MethodHandle USER_LOGIN;
+    private static final MethodHandle GET_USER;
+    private static final MethodHandle GET_ACCOUNT;
+    private static final MethodHandle NEW_ACCOUNT_UUID;
+    private static final MethodHandle RESERVE_ACCOUNT_UUIDS;
+    private static final MethodHandle TRANSFER;
+    private static final MethodHandle USER_UUID;
+    private static final MethodHandle USER_ACCOUNT_UUID;
+    private static final MethodHandle VALIDATE_PIN;
+    private static final MethodHandle GET_BALANCE;
+    private static final MethodHandle ADD_TRANSACTION;
+    private static final MethodHandle NUM_TRANSACTIONS;
+    private static final MethodHandle GET_TRANSACTION;
+    private static final MethodHandle TRANSACTION_SUMMARY;
+    private static final MethodHandle ACCOUNT_SUMMARY;
+    private static final MethodHandle WRITE_HISTORY;
+    private static final MethodHandle TRANSACTION_AMOUNT;
+    private static final MethodHandle TRANSACTION_TIMESTAMP;
+    private static final MethodHandle TRANSACTION_MEMO;
+    private static final MethodHandle NEW_SHARDED_BANK;
+    private static final MethodHandle SHARDED_DEPOSIT;
+    private static final MethodHandle SHARDED_WITHDRAW;
+    private static final MethodHandle SHARDED_CLOSE;
+    private static final MethodHandle NEW_BULK_LOADER;
+    private static final MethodHandle LOAD_BINARY;
+    private static final MethodHandle BULK_ACCOUNT_UUID;
+
+    static {
+        try {
+            Class<?> bank = Class.forName("Bank");
+            Class<?> user = Class.forName("User");
+            Class<?> account = Class.forName("Account");
+            Class<?> transaction = Class.forName("Transaction");
+            Class<?> shardedBank = Class.forName("ShardedBank");
+            Class<?> bulkLoader = Class.forName("BulkLoader");
+
+            NEW_BANK = constructor(bank, String.class);
+            SET_PIN_ITERATIONS = method(bank, "setPinIterations", void.class, int.class);
+            ENSURE_CAPACITY = method(bank, "ensureCapacity", void.class, int.class, int.class);
+            ADD_USER = method(bank, "addUser", user, String.class, String.class, String.class);
+            USER_LOGIN = method(bank, "userLogin", user, String.class, String.class);
+            GET_USER = method(bank, "getUser", user, String.class);
+            GET_ACCOUNT = method(bank, "getAccount", account, String.class);
+            NEW_ACCOUNT_UUID = method(bank, "getNewAccountUUID", String.class);
+            RESERVE_ACCOUNT_UUIDS = method(bank, "reserveAccountUUIDs", String[].class, int.class);
+            TRANSFER = method(bank, "transfer", boolean.class, String.class, String.class, long.class);
+            USER_UUID = method(user, "getUUID", String.class);
+            USER_ACCOUNT_UUID = method(user, "getAccountUUID", String.class, int.class);
+            VALIDATE_PIN = method(user, "validatePin", boolean.class, String.class);
+            GET_BALANCE = method(account, "getBalance", long.class);
+            ADD_TRANSACTION = method(account, "addTransaction", void.class, long.class, String.class);
+            NUM_TRANSACTIONS = method(account, "getNumTransactions", int.class);
+            GET_TRANSACTION = method(account, "getTransaction", transaction, int.class);
+            TRANSACTION_SUMMARY = method(transaction, "getSummaryLine", String.class);
+            ACCOUNT_SUMMARY = method(account, "getSummaryLine", String.class);
+            WRITE_HISTORY = method(account, "writeHistory", void.class, Writer.class, Date.class, Date.class);
+            TRANSACTION_AMOUNT = method(transaction, "getAmount", long.class);
+            TRANSACTION_TIMESTAMP = method(transaction, "getTimestamp", Date.class);
+            TRANSACTION_MEMO = method(transaction, "getMemo", String.class);
+            NEW_SHARDED_BANK = constructor(shardedBank, bank, int.class);
+            SHARDED_DEPOSIT = method(shardedBank, "deposit", CompletableFuture.class,
+                    String.class, long.class, String.class);
+            SHARDED_WITHDRAW = method(shardedBank, "withdraw", CompletableFuture.class,
+                    String.class, long.class, String.class);
+            SHARDED_CLOSE = method(shardedBank, "close", void.class);
+            NEW_BULK_LOADER = constructor(bulkLoader, bank);
+            LOAD_BINARY = method(bulkLoader, "loadBinary", void.class, DataInputStream.class);
+            BULK_ACCOUNT_UUID = method(bulkLoader, "getAccountUUID", String.class, String.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private BankApi() {
+    }
+
+    static Object newBank(String name) {
+        try {
+            return (Object) NEW_BANK.invokeExact(name);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void setPinIterations(Object bank, int pinIterations) {
+        try {
+            SET_PIN_ITERATIONS.invokeExact(bank, pinIterations);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void ensureCapacity(Object bank, int expectedUsers, int expectedAccounts) {
+        try {
+            ENSURE_CAPACITY.invokeExact(bank, expectedUsers, expectedAccounts);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object addUser(Object bank, String firstName, String lastName, String pin) {
+        try {
+            return (Object) ADD_USER.invokeExact(bank, firstName, lastName, pin);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object userLogin(Object bank, String userID, String pin) {
+        try {
+            return (Object) USER_LOGIN.invokeExact(bank, userID, pin);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object getUser(Object bank, String userID) {
+        try {
+            return (Object) GET_USER.invokeExact(bank, userID);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object getAccount(Object bank, String accountID) {
+        try {
+            return (Object) GET_ACCOUNT.invokeExact(bank, accountID);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static String getNewAccountUUID(Object bank) {
+        try {
+            return (String) NEW_ACCOUNT_UUID.invokeExact(bank);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static String[] reserveAccountUUIDs(Object bank, int n) {
+        try {
+            return (String[]) RESERVE_ACCOUNT_UUIDS.invokeExact(bank, n);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean transfer(Object bank, String fromID, String toID, long amount) {
+        try {
+            return (boolean) TRANSFER.invokeExact(bank, fromID, toID, amount);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static String getUUID(Object user) {
+        try {
+            return (String) USER_UUID.invokeExact(user);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static String getAccountUUID(Object user, int accountIndex) {
+        try {
+            return (String) USER_ACCOUNT_UUID.invokeExact(user, accountIndex);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean validatePin(Object user, String pin) {
+        try {
+            return (boolean) VALIDATE_PIN.invokeExact(user, pin);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static long getBalance(Object account) {
+        try {
+            return (long) GET_BALANCE.invokeExact(account);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void addTransaction(Object account, long amount, String memo) {
+        try {
+            ADD_TRANSACTION.invokeExact(account, amount, memo);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int getNumTransactions(Object account) {
+        try {
+            return (int) NUM_TRANSACTIONS.invokeExact(account);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object getTransaction(Object account, int index) {
+        try {
+            return (Object) GET_TRANSACTION.invokeExact(account, index);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static String getTransactionSummaryLine(Object transaction) {
+        try {
+            return (String) TRANSACTION_SUMMARY.invokeExact(transaction);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static String getAccountSummaryLine(Object account) {
+        try {
+            return (String) ACCOUNT_SUMMARY.invokeExact(account);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void writeHistory(Object account, Writer out, Date from, Date to) {
+        try {
+            WRITE_HISTORY.invokeExact(account, out, from, to);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static long getAmount(Object transaction) {
+        try {
+            return (long) TRANSACTION_AMOUNT.invokeExact(transaction);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Date getTimestamp(Object transaction) {
+        try {
+            return (Date) TRANSACTION_TIMESTAMP.invokeExact(transaction);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static String getMemo(Object transaction) {
+        try {
+            return (String) TRANSACTION_MEMO.invokeExact(transaction);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object newShardedBank(Object bank, int numShards) {
+        try {
+            return (Object) NEW_SHARDED_BANK.invokeExact(bank, numShards);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static CompletableFuture<?> shardedDeposit(Object shardedBank, String accountID, long amount, String memo) {
+        try {
+            return (CompletableFuture<?>) SHARDED_DEPOSIT.invokeExact(shardedBank, accountID, amount, memo);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static CompletableFuture<?> shardedWithdraw(Object shardedBank, String accountID, long amount, String memo) {
+        try {
+            return (CompletableFuture<?>) SHARDED_WITHDRAW.invokeExact(shardedBank, accountID, amount, memo);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void closeShardedBank(Object shardedBank) {
+        try {
+            SHARDED_CLOSE.invokeExact(shardedBank);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object newBulkLoader(Object bank) {
+        try {
+            return (Object) NEW_BULK_LOADER.invokeExact(bank);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void loadBinary(Object loader, DataInputStream in) {
+        try {
+            LOAD_BINARY.invokeExact(loader, in);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static String getBulkAccountUUID(Object loader, String ref) {
+        try {
+            return (String) BULK_ACCOUNT_UUID.invokeExact(loader, ref);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> type, Class<?>... parameters)
+            throws ReflectiveOperationException {
+        return withObjects(MethodHandles.publicLookup()
+                .findConstructor(type, MethodType.methodType(void.class, parameters)));
+    }
+
+    private static MethodHandle method(Class<?> type, String name, Class<?> returnType,
+                                       Class<?>... parameters) throws ReflectiveOperationException {
+        return withObjects(MethodHandles.publicLookup()
+                .findVirtual(type, name, MethodType.methodType(returnType, parameters)));
+    }
+
+    /**
+     * Replace the bank classes in the type of a handle with Object, since
+     * they can't be named here.
+     * @param handle    the handle
+     * @return          the handle of the adapted type
+     */
+    private static MethodHandle withObjects(MethodHandle handle) {
+        MethodType type = handle.type();
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (isBankClass(type.parameterType(i))) {
+                type = type.changeParameterType(i, Object.class);
+            }
+        }
+        if (isBankClass(type.returnType())) {
+            type = type.changeReturnType(Object.class);
+        }
+        return handle.asType(type);
+    }
+
+    private static boolean isBankClass(Class<?> type) {
+        return !type.isPrimitive() && !type.isArray() && type.getPackageName().isEmpty();
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new IllegalStateException(t);
+    }
+}
@@ -0,0 +1,125 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+
+/**
+ *  Test data shared by the benchmarks.
+ */
+final class Fixtures {
+
+    static final String PIN = "1234";
+
+    /**
+     * The greatest number of users of a bank made by newBankWithAccounts,
+     * larger banks give every user more accounts.
+     */
+    static final int MAX_USERS = 100_000;
+
+    /**
+     * The number of accounts imported by one bulk feed.
+     */
+    private static final int FEED_ACCOUNTS = 1 << 16;
+
+    private static final PrintStream CONSOLE = System.out;
+
+    private Fixtures() {
+    }
+
+    /**
+     * Create a bank with users, every user has a savings account. Pins
+     * are hashed with a single iteration, so large banks are created fast.
+     * @param users     the number of users
+     * @param userIDs   the array to store user IDs to, or null
+     * @return          the bank
+     */
+    static Object newBank(int users, String[] userIDs) {
+        Object bank = BankApi.newBank("Benchmark");
+        BankApi.setPinIterations(bank, 1);
+        muteConsole();
+        try {
+            for (int i = 0; i < users; i++) {
+                Object user = BankApi.addUser(bank, "John", "Doe", PIN);
+                if (userIDs != null) {
+                    userIDs[i] = BankApi.getUUID(user);
+                }
+            }
+        } finally {
+            restoreConsole();
+        }
+        return bank;
+    }
+
+    /**
+     * Create a bank with many accounts through the bulk loader, every one
+     * with a deposit. Users get accounts of their own up to MAX_USERS,
+     * then several accounts each, since user IDs have only 6 digits.
+     * @param accounts      the number of accounts
+     * @param deposit       the deposit to every account in cents
+     * @param accountIDs    the array to store account IDs to
+     * @return              the bank
+     */
+    static Object newBankWithAccounts(int accounts, long deposit, String[] accountIDs) {
+        int perUser = (accounts + MAX_USERS - 1) / MAX_USERS;
+        Object bank = BankApi.newBank("Benchmark");
+        BankApi.setPinIterations(bank, 1);
+        BankApi.ensureCapacity(bank, (accounts + perUser - 1) / perUser, accounts);
+
+        // Every feed holds whole users, so holders are always in the feed
+        int feedAccounts = Math.max(1, FEED_ACCOUNTS / perUser) * perUser;
+        long now = System.currentTimeMillis();
+        for (int start = 0; start < accounts; start += feedAccounts) {
+            int end = Math.min(accounts, start + feedAccounts);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream feed = new DataOutputStream(bytes);
+            try {
+                for (int i = start; i < end; i++) {
+                    String userRef = "u" + (i - i % perUser);
+                    if (i % perUser == 0) {
+                        feed.writeByte('U');
+                        feed.writeUTF(userRef);
+                        feed.writeUTF("John");
+                        feed.writeUTF("Doe");
+                        feed.writeUTF(PIN);
+                    }
+                    feed.writeByte('A');
+                    feed.writeUTF("a" + i);
+                    feed.writeUTF(userRef);
+                    feed.writeUTF("Savings");
+                    feed.writeByte('T');
+                    feed.writeUTF("a" + i);
+                    feed.writeLong(now);
+                    feed.writeLong(deposit);
+                    feed.writeUTF("Deposit");
+                }
+            } catch (IOException e) {
+                // Writing to a byte array doesn't fail
+                throw new UncheckedIOException(e);
+            }
+
+            Object loader = BankApi.newBulkLoader(bank);
+            BankApi.loadBinary(loader, new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            for (int i = start; i < end; i++) {
+                accountIDs[i] = BankApi.getBulkAccountUUID(loader, "a" + i);
+            }
+        }
+        return bank;
+    }
+
+    /**
+     * Drop console output, the bank logs every new user.
+     */
+    static void muteConsole() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    static void restoreConsole() {
+        System.setOut(CONSOLE);
+    }
+}
@@ -0,0 +1,94 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Bank.userLogin and User.validatePin over banks of different sizes and
+ *  pin hashing costs. User IDs have 6 digits, so a bank holds less than a
+ *  million users. Only LOGIN_USERS of them log in, the rest are hashed
+ *  cheaply to keep the setup short.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoginBenchmark {
+
+    private static final int LOGIN_USERS = 256;
+
+    @Param({"1000", "100000", "900000"})
+    public int users;
+
+    @Param({"1000", "10000"})
+    public int pinIterations;
+
+    private Object bank;
+
+    private String[] userIDs;
+
+    private Object user;
+
+    /**
+     * A well-formed user ID which no user has.
+     * */
+    private String unknownUserID;
+
+    @Setup
+    public void setUp() {
+        bank = Fixtures.newBank(users - LOGIN_USERS, null);
+        BankApi.setPinIterations(bank, pinIterations);
+        userIDs = new String[LOGIN_USERS];
+        Fixtures.muteConsole();
+        try {
+            for (int i = 0; i < LOGIN_USERS; i++) {
+                userIDs[i] = BankApi.getUUID(BankApi.addUser(bank, "John", "Doe", Fixtures.PIN));
+            }
+        } finally {
+            Fixtures.restoreConsole();
+        }
+        user = BankApi.userLogin(bank, userIDs[0], Fixtures.PIN);
+        for (int id = 100_000; unknownUserID == null; id++) {
+            String userID = Integer.toString(id);
+            if (BankApi.getUser(bank, userID) == null) {
+                unknownUserID = userID;
+            }
+        }
+    }
+
+    @Benchmark
+    public Object userLogin() {
+        String userID = userIDs[ThreadLocalRandom.current().nextInt(LOGIN_USERS)];
+        return BankApi.userLogin(bank, userID, Fixtures.PIN);
+    }
+
+    @Benchmark
+    public Object userLoginWrongPin() {
+        String userID = userIDs[ThreadLocalRandom.current().nextInt(LOGIN_USERS)];
+        return BankApi.userLogin(bank, userID, "0000");
+    }
+
+    @Benchmark
+    public Object userLoginUnknownUser() {
+        return BankApi.userLogin(bank, unknownUserID, Fixtures.PIN);
+    }
+
+    @Benchmark
+    public boolean validatePin() {
+        return BankApi.validatePin(user, Fixtures.PIN);
+    }
+}
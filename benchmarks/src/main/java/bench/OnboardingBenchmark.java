@@ -0,0 +1,66 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Bank.addUser and UUID generation. Every operation adds a batch of users
+ *  or accounts to a bank which already has the given number of users, the
+ *  bank is created again for every iteration so it doesn't grow unbounded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, batchSize = OnboardingBenchmark.BATCH)
+@Measurement(iterations = 10, batchSize = OnboardingBenchmark.BATCH)
+@Fork(1)
+public class OnboardingBenchmark {
+
+    static final int BATCH = 10_000;
+
+    @Param({"1000", "100000", "500000"})
+    public int users;
+
+    private Object bank;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        bank = Fixtures.newBank(users, null);
+        Fixtures.muteConsole();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        Fixtures.restoreConsole();
+    }
+
+    @Benchmark
+    public Object addUser() {
+        return BankApi.addUser(bank, "John", "Doe", Fixtures.PIN);
+    }
+
+    @Benchmark
+    public String getNewAccountUUID() {
+        return BankApi.getNewAccountUUID(bank);
+    }
+
+    @Benchmark
+    @Warmup(iterations = 3, batchSize = 1)
+    @Measurement(iterations = 5, batchSize = 1)
+    public String[] reserveMillionAccountUUIDs() {
+        return BankApi.reserveAccountUUIDs(bank, 1_000_000);
+    }
+}
@@ -0,0 +1,64 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Deposits and withdrawals through ShardedBank. Run with -t to set the
+ *  number of client threads, the scaling is seen by comparing runs with
+ *  the number of shards equal to the number of threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShardedBankBenchmark {
+
+    private static final int ACCOUNTS = 10_000;
+
+    @Param({"1", "4"})
+    public int shards;
+
+    private Object shardedBank;
+
+    private String[] accountIDs;
+
+    @Setup
+    public void setUp() {
+        String[] userIDs = new String[ACCOUNTS];
+        Object bank = Fixtures.newBank(ACCOUNTS, userIDs);
+        accountIDs = new String[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            Object user = BankApi.userLogin(bank, userIDs[i], Fixtures.PIN);
+            accountIDs[i] = BankApi.getAccountUUID(user, 0);
+        }
+        shardedBank = BankApi.newShardedBank(bank, shards);
+    }
+
+    @TearDown
+    public void tearDown() {
+        BankApi.closeShardedBank(shardedBank);
+    }
+
+    @Benchmark
+    public Object depositAndWithdraw() {
+        String accountID = accountIDs[ThreadLocalRandom.current().nextInt(ACCOUNTS)];
+        BankApi.shardedDeposit(shardedBank, accountID, 100, "Deposit");
+        return BankApi.shardedWithdraw(shardedBank, accountID, 100, "Withdraw").join();
+    }
+}
@@ -0,0 +1,69 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Rendering the whole history of an account as a statement. The legacy
+ *  benchmark renders the lines the way they were rendered before
+ *  SummaryFormatter, with String.format and Date.toString, as a baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatementBenchmark {
+
+    @Param({"1000", "100000"})
+    public int history;
+
+    private Object account;
+
+    private final Writer out = Writer.nullWriter();
+
+    @Setup
+    public void setUp() {
+        String[] userIDs = new String[1];
+        Object bank = Fixtures.newBank(1, userIDs);
+        Object user = BankApi.userLogin(bank, userIDs[0], Fixtures.PIN);
+        account = BankApi.getAccount(bank, BankApi.getAccountUUID(user, 0));
+        for (int i = 0; i < history; i++) {
+            BankApi.addTransaction(account, i % 2 == 0 ? 12_345 : -2_345, "Memo " + (i % 16));
+        }
+    }
+
+    @Benchmark
+    public void writeHistory() {
+        BankApi.writeHistory(account, out, null, null);
+    }
+
+    @Benchmark
+    public void legacyFormat() throws Exception {
+        for (int i = history - 1; i >= 0; i--) {
+            Object transaction = BankApi.getTransaction(account, i);
+            long amount = BankApi.getAmount(transaction);
+            StringBuilder builder = new StringBuilder();
+            builder.append(amount / 100).append('.')
+                    .append(Math.abs(amount % 100) / 10).append(Math.abs(amount % 10));
+            if (amount < 0) {
+                builder.insert(0, "(").append(")");
+            }
+            out.write(String.format("%s\t:\t$%s\t:\t%s\n", BankApi.getTimestamp(transaction).toString(),
+                    builder.toString(), BankApi.getMemo(transaction)));
+        }
+    }
+}
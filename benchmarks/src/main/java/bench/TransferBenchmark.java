@@ -0,0 +1,64 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Concurrent Bank.transfer and balance lookups of random accounts. With
+ *  few accounts the threads mostly contend for the same account locks,
+ *  with millions of them the directory lookups miss the caches. Banks of
+ *  10M accounts need a heap of several gigabytes, pass -Xmx through
+ *  -jvmArgsAppend.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class TransferBenchmark {
+
+    @Param({"2", "1000", "100000", "1000000", "10000000"})
+    public int accounts;
+
+    private Object bank;
+
+    private String[] accountIDs;
+
+    @Setup
+    public void setUp() {
+        accountIDs = new String[accounts];
+        bank = Fixtures.newBankWithAccounts(accounts, 1_000_000_000_000L, accountIDs);
+    }
+
+    @Benchmark
+    public boolean transfer() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int from = random.nextInt(accounts);
+        int to = random.nextInt(accounts - 1);
+        if (to >= from) {
+            to++;
+        }
+        return BankApi.transfer(bank, accountIDs[from], accountIDs[to], 1);
+    }
+
+    @Benchmark
+    public long getBalance() {
+        String accountID = accountIDs[ThreadLocalRandom.current().nextInt(accounts)];
+        return BankApi.getBalance(BankApi.getAccount(bank, accountID));
+    }
+}
@@ -1,13 +1,107 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
+/**
+ *  One ATM session: prompts a user for login and runs the user menu,
+ *  reading input and writing output through the given streams.
+ */
 public class ATM {
 
-    public static void main(String[] args) {
+    /**
+     * The log file of the bank, in the working directory.
+     */
+    static final Path JOURNAL_FILE = Paths.get("sberbank.wal");
+
+    /**
+     * The snapshot file of the bank, in the working directory.
+     */
+    static final Path SNAPSHOT_FILE = Paths.get("sberbank.snapshot");
+
+    /**
+     * The directory of the audit files of the bank, in the working directory.
+     */
+    static final Path AUDIT_DIRECTORY = Paths.get("sberbank-audit");
+
+    /**
+     * The directory of the cold history segments, in the working directory.
+     */
+    static final Path SEGMENT_DIRECTORY = Paths.get("sberbank-segments");
+
+    /**
+     * The rules of the bank: no overdraft, at most $1000.00 withdrawn a
+     * day and at most 20 operations a minute per account.
+     */
+    static final TransactionRules RULES = TransactionRules.builder()
+            .dailyWithdrawalLimit(100_000)
+            .velocityLimit(20, TimeUnit.MINUTES.toMillis(1))
+            .build();
+
+    /**
+     * The message shown when an amount would overflow a balance.
+     */
+    static final String OVERFLOW_MESSAGE = "Amount is too large for the account balance.";
+
+    /**
+     * The bank whose accounts are used.
+     * */
+    private final Bank theBank;
+
+    /**
+     * The Scanner object used for user input.
+     * */
+    private final Scanner sc;
+
+    /**
+     * The stream used for output to user.
+     * */
+    private final PrintStream out;
+
+    /**
+     * Create a new ATM session.
+     * @param theBank   the Bank object whose accounts to use
+     * @param sc        the Scanner object used for user input
+     * @param out       the stream used for output to user
+     */
+    public ATM(Bank theBank, Scanner sc, PrintStream out) {
+        this.theBank = theBank;
+        this.sc = sc;
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws IOException {
         // Init Scanner
         Scanner sc = new Scanner(System.in);
 
         // Init bank
-        Bank theBank = new Bank("Sberbank");
+        try (Bank theBank = ATM.initBank()) {
+
+            // Run the session on console
+            new ATM(theBank, sc, System.out).run();
+        }
+
+        System.out.println("Programme terminated.");
+    }
+
+    /**
+     * Restore the bank from its snapshot and log. On the first start create a demo user,
+     * who has savings and checking accounts.
+     * @return the Bank object
+     * @throws IOException if the log of the bank can't be read or opened
+     */
+    static Bank initBank() throws IOException {
+        Bank theBank = Bank.open("Sberbank", JOURNAL_FILE, SNAPSHOT_FILE);
+        theBank.setAuditLog(new AuditLog(AUDIT_DIRECTORY));
+        theBank.setTransactionRules(RULES);
+        theBank.setSegmentStore(new SegmentStore(SEGMENT_DIRECTORY));
+        if (theBank.getNumOfUsers() > 0) {
+            System.out.printf("Bank restored with %d users and %d accounts.\n",
+                    theBank.getNumOfUsers(), theBank.getNumOfAccounts());
+            return theBank;
+        }
 
         // Add a user which also creates a savings account
         User aUser = theBank.addUser("John", "Doe", "1234");
@@ -17,38 +111,43 @@ public class ATM {
         aUser.addAccount(newAccount);
         theBank.addAccount(newAccount);
 
+        return theBank;
+    }
+
+    /**
+     * Run the session: log users in and show them the menu, until
+     * the programme is closed.
+     */
+    public void run() {
         User currentUser;
         while (true) {
 
             // Stay in  the login prompt until successful login
-            currentUser = ATM.MainMenuPrompt(theBank, sc);
+            currentUser = this.MainMenuPrompt();
 
             // Stay in main menu until user quits
             boolean printUserMenu = true;
             while (printUserMenu) {
-                printUserMenu = ATM.printUserMenu(currentUser, sc);
+                printUserMenu = this.printUserMenu(currentUser);
             }
 
-            System.out.print("\nIf you want to close programme, enter Q/q.\nEnter: ");
+            out.print("\nIf you want to close programme, enter Q/q.\nEnter: ");
             String quitState = sc.next();
             if ("q".equals(quitState) || "Q".equals(quitState)) {
                 break;
             }
         }
-
-        System.out.println("Programme terminated.");
     }
 
     /**
      * Show menu for user and make some operation
      * @param currentUser   the logged-in User object
-     * @param sc            the Scanner object used for User input
      * @return              state for printing again
      */
-    private static boolean printUserMenu(User currentUser, Scanner sc) {
+    private boolean printUserMenu(User currentUser) {
 
         // Print a summary of user's accounts
-        currentUser.printAccountsSummary();
+        currentUser.printAccountsSummary(out);
 
         // Init
         int choice;
@@ -56,36 +155,36 @@ public class ATM {
         // User menu
         boolean invalidChoice;
         do {
-            System.out.printf("Welcome %s, what would you like to do?\n", currentUser.getFirstName());
-            System.out.println("\t1) Show account transaction history.");
-            System.out.println("\t2) Withdraw.");
-            System.out.println("\t3) Deposit.");
-            System.out.println("\t4) Transfer.");
-            System.out.println("\t5) Quit.");
-            System.out.println();
-            System.out.print("Enter choice: ");
+            out.printf("Welcome %s, what would you like to do?\n", currentUser.getFirstName());
+            out.println("\t1) Show account transaction history.");
+            out.println("\t2) Withdraw.");
+            out.println("\t3) Deposit.");
+            out.println("\t4) Transfer.");
+            out.println("\t5) Quit.");
+            out.println();
+            out.print("Enter choice: ");
             choice = sc.nextInt();
 
             invalidChoice = ((choice < 1) || (choice > 5));
 
             if (invalidChoice) {
-                System.err.println("Invalid choice. Please chose [1-5].");
+                out.println("Invalid choice. Please chose [1-5].");
             }
         } while (invalidChoice);
 
         // Process the choice
         switch (choice) {
             case 1:
-                ATM.showTransHistory(currentUser, sc);
+                this.showTransHistory(currentUser);
                 break;
             case 2:
-                ATM.withdrawFunds(currentUser, sc);
+                this.withdrawFunds(currentUser);
                 break;
             case 3:
-                ATM.depositFunds(currentUser, sc);
+                this.depositFunds(currentUser);
                 break;
             case 4:
-                ATM.transferFunds(currentUser, sc);
+                this.transferFunds(currentUser);
                 break;
             case 5:
             default:
@@ -100,128 +199,207 @@ public class ATM {
     /**
      * Process transferring funds from one account to another.
      * @param currentUser   the logged-in User object
-     * @param sc            the Scanner object used for User input
      */
-    private static void transferFunds(User currentUser, Scanner sc) {
+    private void transferFunds(User currentUser) {
 
         // Inits
         int fromAccount;
         int toAccount;
 
-        double amount;
-        double acctBalance;
+        long amount;
+        long acctBalance;
 
         // Get the account to transfer for
-        fromAccount = ATM.getAccountNumber(currentUser, sc, false);
+        fromAccount = this.getAccountNumber(currentUser, false);
 
         // Get the account balance
         acctBalance = currentUser.getAccountBalance(fromAccount);
 
         // Get the account to transfer to
-        toAccount = ATM.getAccountNumber(currentUser, sc, true);
+        toAccount = this.getAccountNumber(currentUser, true);
 
         // Get the amount to transfer
-        amount = getAmount(acctBalance, sc);
+        amount = getAmount(acctBalance);
 
-        // Do the transfer
-        currentUser.addAccountTransaction(fromAccount, -1 * amount,String.format(
-                "Transfer to account %s", currentUser.getAccountUUID(toAccount)));
-        currentUser.addAccountTransaction(toAccount, amount,String.format(
-                "Transfer to account %s", currentUser.getAccountUUID(fromAccount)));
+        // Do the transfer, the balance may have changed since it was shown,
+        // so ask again until the bank accepts the amount. Too many
+        // operations refuse any amount, then give up. Every amount is a new
+        // request, since the bank remembers a refused one. An amount which
+        // would overflow the balance to transfer to changes nothing
+        while (true) {
+            try {
+                if (transfer(Bank.newRequestId(), currentUser.getAccountUUID(fromAccount),
+                        currentUser.getAccountUUID(toAccount), amount)) {
+                    return;
+                }
+                TransactionRules.Verdict verdict = refusal(currentUser, fromAccount, -amount);
+                out.println(verdict.getMessage() + "\n");
+                if (verdict == TransactionRules.Verdict.VELOCITY_LIMIT) {
+                    return;
+                }
+            } catch (ArithmeticException e) {
+                out.println(OVERFLOW_MESSAGE + "\n");
+            }
+            acctBalance = currentUser.getAccountBalance(fromAccount);
+            amount = getAmount(acctBalance);
+        }
+    }
+
+    /**
+     * Transfer funds through the bank and record the metrics of the transfer.
+     * @param requestId the ID of the transfer, the same for every try of it
+     * @param fromID    the UUID of the account to transfer from
+     * @param toID      the UUID of the account to transfer to
+     * @param amount    the amount to transfer in cents
+     * @return          true if the transfer is done, false if the rules of
+     *                  the bank refuse it
+     * @throws ArithmeticException if the balance to transfer to would
+     *                             overflow
+     */
+    private boolean transfer(String requestId, String fromID, String toID, long amount) {
+        long start = System.nanoTime();
+        boolean done = false;
+        try {
+            done = theBank.transfer(requestId, fromID, toID, amount);
+        } finally {
+            if (done) {
+                Metrics.TRANSFER.record(start);
+            } else {
+                Metrics.TRANSFER.recordFailure(start);
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Find out why the bank refused a transaction.
+     * @param currentUser   the logged-in User object
+     * @param account       the index of the account
+     * @param amount        the amount in cents, negative for a withdrawal
+     * @return              the rule which is broken now, OVERDRAFT if the
+     *                      account has changed since
+     */
+    private TransactionRules.Verdict refusal(User currentUser, int account, long amount) {
+        TransactionRules.Verdict verdict = currentUser.checkAccountTransaction(account, amount);
+        return verdict == TransactionRules.Verdict.ALLOWED ? TransactionRules.Verdict.OVERDRAFT : verdict;
     }
 
     /**
      * Process a fund deposit to an account.
      * @param currentUser   the logged-in User object
-     * @param sc            the Scanner object used for User input
      */
-    private static void depositFunds(User currentUser, Scanner sc) {
-        makeFundsOperation(currentUser, sc, true);
+    private void depositFunds(User currentUser) {
+        makeFundsOperation(currentUser, true);
     }
 
     /**
      * Process a fund  withdraw from an account.
      * @param currentUser   the logged-in User object
-     * @param sc            the Scanner object used for User input
      */
-    private static void withdrawFunds(User currentUser, Scanner sc) {
-        makeFundsOperation(currentUser, sc, false);
+    private void withdrawFunds(User currentUser) {
+        makeFundsOperation(currentUser, false);
     }
 
     /**
      * Process a fund operation from an account
      * @param currentUser   the logged-in User object
-     * @param sc            the Scanner object used for User input
      * @param isDeposit     flag which show status of operation: deposit(tue)
      *                      withdraw(false)
      */
-    private static void makeFundsOperation(User currentUser, Scanner sc, boolean isDeposit) {
+    private void makeFundsOperation(User currentUser, boolean isDeposit) {
 
         // Init
         int account;
-        double amount;
-        double acctBalance;
+        long amount;
+        long acctBalance;
         String memo;
 
         // Get the account to transfer for
-        account = ATM.getAccountNumber(currentUser, sc, false);
+        account = this.getAccountNumber(currentUser, false);
         acctBalance = currentUser.getAccountBalance(account);
 
         // Get the amount to transfer
-        amount = getAmount(acctBalance, sc);
+        amount = getAmount(acctBalance);
 
-        // User can't withdraw more, than he has on his account
-        // Call getAmount func unless condition will be accepted
-        while (!isDeposit && amount > acctBalance) {
-            System.out.println("Amount must not be greater than account balance.\n");
-            amount = getAmount(acctBalance, sc);
+        // Ask again while the amount would overflow the balance or the rules
+        // of the bank refuse it. Too many operations refuse any amount, then
+        // give up
+        while (true) {
+            if (isDeposit && acctBalance > 0 && amount > Long.MAX_VALUE - acctBalance) {
+                out.println(OVERFLOW_MESSAGE + "\n");
+            } else {
+                TransactionRules.Verdict verdict =
+                        currentUser.checkAccountTransaction(account, isDeposit ? amount : -amount);
+                if (verdict == TransactionRules.Verdict.ALLOWED) {
+                    break;
+                }
+                out.println(verdict.getMessage() + "\n");
+                if (verdict == TransactionRules.Verdict.VELOCITY_LIMIT) {
+                    sc.nextLine();
+                    return;
+                }
+            }
+            amount = getAmount(acctBalance);
         }
 
         // Gobble up rest of previous input
         sc.nextLine();
 
         // Get the memo
-        System.out.print("Enter a memo: ");
+        out.print("Enter a memo: ");
         memo = sc.nextLine();
 
-        // Do the withdraw
+        // Do the withdraw, as one request however often it is tried
         if (!isDeposit) {
             amount *= -1;
         }
-        currentUser.addAccountTransaction(account, amount, memo);
+        String requestId = Bank.newRequestId();
+
+        // The account may have changed meanwhile, then nothing is done
+        long start = System.nanoTime();
+        OperationMetrics metrics = isDeposit ? Metrics.DEPOSIT : Metrics.WITHDRAW;
+        try {
+            if (currentUser.addAccountTransaction(requestId, account, amount, memo)) {
+                metrics.record(start);
+                return;
+            }
+            out.println(refusal(currentUser, account, amount).getMessage() + "\n");
+        } catch (ArithmeticException e) {
+            out.println(OVERFLOW_MESSAGE + "\n");
+        }
+        metrics.recordFailure(start);
     }
 
     /**
      * Show the transaction history for an account.
      * @param currentUser   the logged-in User object
-     * @param sc            the Scanner object used for user Input
      */
-    private static void showTransHistory(User currentUser, Scanner sc) {
+    private void showTransHistory(User currentUser) {
         int theAcct;
         boolean invalidAcct;
 
         // Get Account whose transaction history to look at
         do {
-            System.out.printf("Enter the number (1-%d) of the account\n " +
+            out.printf("Enter the number (1-%d) of the account\n " +
                     "whose transaction you want to see: ", currentUser.getNumAccounts());
             theAcct = sc.nextInt() - 1;
             invalidAcct = ((theAcct < 0) || (theAcct >= currentUser.getNumAccounts()));
             if (invalidAcct) {
-                System.out.println("Invalid account. Please try again.");
+                out.println("Invalid account. Please try again.");
             }
         } while (invalidAcct);
 
         // Print the transaction history
-        currentUser.printAccountTransHistory(theAcct);
+        long start = System.nanoTime();
+        currentUser.printAccountTransHistory(theAcct, out);
+        Metrics.HISTORY.record(start);
     }
 
     /**
      * Print the ATM's login menu
-     * @param theBank   the Bank object whose accounts to use
-     * @param sc        the Scanner object to use for user input
      * @return          the authenticated User object
      */
-    private static User MainMenuPrompt(Bank theBank, Scanner sc) {
+    private User MainMenuPrompt() {
 
         // Inits
         String userID;
@@ -230,17 +408,17 @@ public class ATM {
 
         // Prompt the user for User ID/Pin combo until a correct one is reached
         do {
-            System.out.printf("\n\nWelcome message to %s\n\n", theBank.getName());
-            System.out.print("Enter user ID: ");
+            out.printf("\n\nWelcome message to %s\n\n", theBank.getName());
+            out.print("Enter user ID: ");
             userID = sc.nextLine();
-            System.out.print("Enter pin: ");
+            out.print("Enter pin: ");
             pin = sc.nextLine();
 
             // Try to get the User object corresponding to the ID
             // and pin combo
             authUser = theBank.userLogin(userID, pin);
             if (authUser == null) {
-                System.out.println("Incorrect user ID/pin combination." +
+                out.println("Incorrect user ID/pin combination." +
                         " Please try again.");
             }
         } while (authUser == null); // Continue looping until successful login
@@ -251,26 +429,25 @@ public class ATM {
     /**
      * Get account number from user input.
      * @param currentUser   the logged-in User object
-     * @param sc            the Scanner object to use for user input
      * @param transTo       flag which show direction of transaction
      * @return              number of chosen account
      */
-    private static int getAccountNumber(User currentUser, Scanner sc, boolean transTo) {
+    private int getAccountNumber(User currentUser, boolean transTo) {
         boolean invalidAccount;
         int account;
 
         do {
-            System.out.printf("Enter the number (1-%d) of the account\n" +
+            out.printf("Enter the number (1-%d) of the account\n" +
                     "to transfer ", currentUser.getNumAccounts());
             if (transTo) {
-                System.out.print("to: ");
+                out.print("to: ");
             } else {
-                System.out.println("from: ");
+                out.println("from: ");
             }
             account = sc.nextInt() - 1;
             invalidAccount = ((account < 0) || (account >= currentUser.getNumAccounts()));
             if ( invalidAccount) {
-                System.out.println("Invalid account. Please try again.\n");
+                out.println("Invalid account. Please try again.\n");
             }
         } while (invalidAccount);
 
@@ -279,18 +456,22 @@ public class ATM {
 
     /**
      * Get amount of transaction from input.
-     * @param acctBalance   current balance of account
-     * @param sc            the Scanner object to use for user input
-     * @return              amount for transaction
+     * @param acctBalance   current balance of account in cents
+     * @return              amount for transaction in cents
      */
-    private static double getAmount(double acctBalance, Scanner sc) {
-        double amount;
+    private long getAmount(long acctBalance) {
+        long amount = -1;
         do {
-            System.out.printf("Enter the amount to transfer (max $%.02f): $",
-                    acctBalance);
-            amount = sc.nextDouble();
+            out.printf("Enter the amount to transfer (max $%s): $",
+                    Money.format(acctBalance));
+            try {
+                amount = Money.parse(sc.next());
+            } catch (NumberFormatException | ArithmeticException e) {
+                out.println("Amount must be a number with at most two decimal places.");
+                continue;
+            }
             if (amount < 0) {
-                System.out.println("Amount must be greater than zero.");
+                out.println("Amount must be greater than zero.");
             }
         } while (amount < 0);
         return amount;
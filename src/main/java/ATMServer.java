@@ -0,0 +1,150 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Network front end of the bank. Every TCP connection gets its own ATM
+ *  session, which talks to the terminal with the same line protocol as
+ *  the console ATM.
+ */
+public class ATMServer implements Closeable {
+
+    public static final int DEFAULT_PORT = 4040;
+
+    /**
+     * The period between snapshots of the bank.
+     */
+    private static final long CHECKPOINT_PERIOD_MINUTES = 10;
+
+    /**
+     * The bank shared by all sessions.
+     * */
+    private final Bank theBank;
+
+    /**
+     * The socket accepting ATM connections.
+     * */
+    private final ServerSocket serverSocket;
+
+    /**
+     * The executor running one task per session.
+     * */
+    private final ExecutorService sessions;
+
+    /**
+     * Create a new server bound to a port on all interfaces.
+     * @param theBank   the Bank object whose accounts to use
+     * @param port      the port to listen on, 0 for any free port
+     * @throws IOException if the port can't be bound
+     */
+    public ATMServer(Bank theBank, int port) throws IOException {
+        this.theBank = theBank;
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.bind(new InetSocketAddress(port));
+        this.sessions = newSessionExecutor();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        Bank theBank = ATM.initBank();
+        theBank.scheduleCheckpoints(CHECKPOINT_PERIOD_MINUTES, TimeUnit.MINUTES);
+        ATMServer server = new ATMServer(theBank, port);
+        server.start();
+        System.out.printf("ATM server is listening on port %d.\n", server.getPort());
+
+        // Expose the metrics of the sessions to local monitoring
+        Metrics.registerMBeans();
+        MetricsEndpoint metrics = new MetricsEndpoint(MetricsEndpoint.DEFAULT_PORT);
+        metrics.start();
+        System.out.printf("Metrics are served on http://localhost:%d/metrics.\n", metrics.getPort());
+    }
+
+    /**
+     * Get the port the server is listening on.
+     * @return the port
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Start accepting connections in a background thread.
+     */
+    public void start() {
+        Thread acceptor = new Thread(this::acceptConnections, "atm-server-acceptor");
+        acceptor.start();
+    }
+
+    /**
+     * Stop accepting connections and interrupt running sessions.
+     */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        sessions.shutdownNow();
+    }
+
+    /**
+     * Accept connections until the server socket is closed.
+     */
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                sessions.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Error, failed to accept ATM connection.");
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Run an ATM session for a connection until the user closes it.
+     * @param socket    the connection socket
+     */
+    private void serve(Socket socket) {
+        try (socket) {
+            // Prompts are not ended with a new line, so don't delay them
+            socket.setTcpNoDelay(true);
+            Scanner sc = new Scanner(socket.getInputStream(), StandardCharsets.UTF_8);
+            PrintStream out = new PrintStream(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+
+            new ATM(theBank, sc, out).run();
+            out.println("Session closed.");
+        } catch (IOException | NoSuchElementException e) {
+            // The terminal has gone away, nothing to do
+        }
+    }
+
+    /**
+     * Create the executor for sessions. Sessions spend most of their time
+     * waiting for user input, so they run on virtual threads when the
+     * runtime has them (Java 21+), and on a cached pool otherwise.
+     * @return the executor
+     */
+    static ExecutorService newSessionExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "atm-session");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
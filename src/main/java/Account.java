@@ -1,8 +1,20 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Account implements UUID{
 
+    /**
+     * The number of transactions which are read at once under the lock
+     * when the history is streamed.
+     */
+    static final int HISTORY_CHUNK = 256;
+
     /**
      * The name of the account.
      * */
@@ -19,9 +31,50 @@ public class Account implements UUID{
     private final User holder;
 
     /**
-     * The list of transactions for this account.
+     * The transactions of this account, stored by columns.
+     * */
+    private final TransactionStore transactions;
+
+    /**
+     * The lock guarding the transactions of this account. The balance may
+     * be read without it.
+     * */
+    private final ReentrantLock lock;
+
+    /**
+     * The log of the bank, or null if the account is kept only in memory.
+     * */
+    private volatile WriteAheadLog journal;
+
+    /**
+     * The audit log of the bank, or null if transactions are not audited.
+     * */
+    private volatile AuditLog audit;
+
+    /**
+     * The recent client requests of this account, created on the first one.
+     * Guarded by the lock.
      * */
-    private final List<Transaction> transactions;
+    private RequestTable requests;
+
+    /**
+     * The number of transactions added since the account was created or
+     * restored, written under the lock. Readers compare it to tell whether
+     * the account has changed.
+     * */
+    private volatile long version;
+
+    /**
+     * The rules checked before client operations, see attachRules.
+     * */
+    private volatile TransactionRules rules = TransactionRules.DEFAULT;
+
+    /**
+     * The rolling aggregates of the account for ruleStateOf, created on the
+     * first check. Guarded by the lock.
+     * */
+    private long[] ruleState;
+    private TransactionRules ruleStateOf;
 
     /**
      * Create a new Account.
@@ -30,16 +83,38 @@ public class Account implements UUID{
      * @param bank      the bank that issues the account
      */
     Account(String name, User holder, Bank bank) {
+        // Get new account UUID
+        this(name, holder, bank.getNewAccountUUID());
+    }
+
+    /**
+     * Create a new Account with UUID which was already reserved in the bank.
+     * @param name      the name of the account
+     * @param holder    the User object that holds account
+     * @param uuid      the reserved account UUID
+     * @see Bank#reserveAccountUUIDs(int)
+     */
+    Account(String name, User holder, String uuid) {
+        // Create empty store of transactions
+        this(name, holder, uuid, new TransactionStore());
+    }
+
+    /**
+     * Create an Account restored from a snapshot or the log of the bank.
+     * @param name          the name of the account
+     * @param holder        the User object that holds account
+     * @param uuid          the account UUID
+     * @param transactions  the store with the transactions of the account
+     */
+    Account(String name, User holder, String uuid, TransactionStore transactions) {
 
         // Set the account name and holder
         this.name = name;
         this.holder = holder;
+        this.uuid = uuid;
 
-        // Get new account UUID
-        this.uuid = bank.getNewAccountUUID();
-
-        // Create empty list of transactions
-        this.transactions = new ArrayList<>();
+        this.transactions = transactions;
+        this.lock = new ReentrantLock();
     }
 
     /**
@@ -57,68 +132,666 @@ public class Account implements UUID{
      */
     public String getSummaryLine() {
 
-        // Get the account's balance
-        double balance = this.getBalance();
+        // Negative balance is put in parentheses by the formatter
+        SummaryFormatter formatter = SummaryFormatter.forCurrentThread();
+        return formatter.appendAccount(formatter.line(), this.uuid, this.getBalance(), this.name)
+                .toString();
+    }
 
-        // for the summary line, depending on the whether the balance
-        // is negative
-        return String.format("%s\t:\t$%s\t:\t%s", this.uuid,
-                getBalanceLine(balance), this.name);
+    /**
+     * Get the balance of this account, which is kept up to date by
+     * addTransaction.
+     * @return the balance value in cents
+     */
+    public long getBalance() {
+        Metrics.BALANCE.increment();
+        return this.transactions.balance();
     }
 
     /**
-     * Get converted balance in string. Negative balance add in rounded parentheses.
-     * @param balance balance which will be converted to string
-     * @return string of balance
+     * Get the balance of this account as of a particular moment, including
+     * all transactions made at that moment.
+     * @param date  the moment to get the balance for
+     * @return      the balance value in cents
      */
-    private String getBalanceLine(double balance) {
-        StringBuilder builder = new StringBuilder();
-        builder.append(String.format("%.02f", balance));
-        if (balance < 0) {
-            builder.insert(0, "(").append(")");
+    public long getBalanceAt(Date date) {
+        lock.lock();
+        try {
+            return this.transactions.balanceAt(date.getTime());
+        } finally {
+            lock.unlock();
         }
-        return builder.toString();
     }
 
     /**
-     * Get the balance of this account by adding the amount of the each transaction
-     * @return the balance value
+     * Get a particular transaction. The Transaction object is created
+     * from the stored columns on every call.
+     * @param index the index of the transaction, 0 is the oldest
+     * @return      the transaction
      */
-    public double getBalance() {
-        double balance = 0.0;
-
-        for (Transaction transaction : this.transactions) {
-            balance += transaction.getAmount();
+    public Transaction getTransaction(int index) {
+        lock.lock();
+        try {
+            return new Transaction(this.transactions.amount(index),
+                    new Date(this.transactions.timestamp(index)),
+                    this.transactions.memo(index), this);
+        } finally {
+            lock.unlock();
         }
-
-        return balance;
     }
 
     /**
      * Print the transaction history of the account
      */
     public void printTransHistory() {
+        printTransHistory(System.out);
+    }
+
+    /**
+     * Print the transaction history of the account to a stream. The history
+     * is read page by page, so the account isn't locked while printing.
+     * @param out   the stream to print to
+     */
+    public void printTransHistory(PrintStream out) {
 
-        System.out.printf("\nTransaction history for account %s\n", this.uuid);
-        if (this.transactions.size() == 0) {
-            System.out.println("Account has not any transactions.");
+        out.printf("\nTransaction history for account %s\n", this.uuid);
+        if (this.getNumTransactions() == 0) {
+            out.println("Account has not any transactions.");
         }
-        for (int i = this.transactions.size() - 1; i >= 0; i--) {
-            System.out.print(this.transactions.get(i).getSummaryLine());
+        try {
+            appendHistory(out, null, null);
+        } catch (IOException e) {
+            // PrintStream doesn't throw
+            throw new UncheckedIOException(e);
+        }
+        out.println();
+    }
+
+    /**
+     * Get a page of the transaction history, newest first.
+     * @param cursor    HistoryPage.FIRST or the cursor of the previous page
+     * @param limit     the maximum number of transactions in the page
+     * @return          the page
+     */
+    public HistoryPage history(int cursor, int limit) {
+        return history(cursor, limit, null, null);
+    }
+
+    /**
+     * Get a page of the transactions made in a range of time, newest first.
+     * @param cursor    HistoryPage.FIRST or the cursor of the previous page
+     * @param limit     the maximum number of transactions in the page
+     * @param from      the start of the range inclusive, or null
+     * @param to        the end of the range inclusive, or null
+     * @return          the page
+     */
+    public HistoryPage history(int cursor, int limit, Date from, Date to) {
+        if (cursor < 0) {
+            throw new IllegalArgumentException("Invalid history cursor: " + cursor);
+        }
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Page limit must be positive: " + limit);
+        }
+        lock.lock();
+        try {
+            // Transactions are in order of time, so the range is a slice
+            int low = from == null ? 0 : this.transactions.countUntil(from.getTime() - 1);
+            int high = to == null ? this.transactions.size() : this.transactions.countUntil(to.getTime());
+            high = Math.min(high, cursor);
+
+            int start = Math.max(low, high - limit);
+            List<Transaction> page = new ArrayList<>(Math.max(0, high - start));
+            for (int i = high - 1; i >= start; i--) {
+                page.add(new Transaction(this.transactions.amount(i),
+                        new Date(this.transactions.timestamp(i)),
+                        this.transactions.memo(i), this));
+            }
+            return new HistoryPage(page, start, start > low);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write summary lines of the transactions made in a range of time,
+     * newest first. Only one chunk of the history is in memory at once and
+     * the account isn't locked while writing.
+     * @param out   the writer, which should be buffered
+     * @param from  the start of the range inclusive, or null
+     * @param to    the end of the range inclusive, or null
+     * @throws IOException if the writer fails
+     */
+    public void writeHistory(Writer out, Date from, Date to) throws IOException {
+        appendHistory(out, from, to);
+        out.flush();
+    }
+
+    /**
+     * Append summary lines of the transactions made in a range of time,
+     * newest first. Rows of a chunk are copied under the lock, then
+     * rendered into the reusable builder of the formatter and appended at
+     * once.
+     * @param out   the destination
+     * @param from  the start of the range inclusive, or null
+     * @param to    the end of the range inclusive, or null
+     * @throws IOException if the destination fails
+     */
+    private void appendHistory(Appendable out, Date from, Date to) throws IOException {
+        SummaryFormatter formatter = SummaryFormatter.forCurrentThread();
+        long[] timestamps = new long[HISTORY_CHUNK];
+        long[] amounts = new long[HISTORY_CHUNK];
+        String[] memos = new String[HISTORY_CHUNK];
+
+        int low;
+        int high;
+        lock.lock();
+        try {
+            low = from == null ? 0 : this.transactions.countUntil(from.getTime() - 1);
+            high = to == null ? this.transactions.size() : this.transactions.countUntil(to.getTime());
+        } finally {
+            lock.unlock();
+        }
+
+        while (high > low) {
+            int start = Math.max(low, high - HISTORY_CHUNK);
+            int count = high - start;
+            lock.lock();
+            try {
+                for (int i = 0; i < count; i++) {
+                    timestamps[i] = this.transactions.timestamp(high - 1 - i);
+                    amounts[i] = this.transactions.amount(high - 1 - i);
+                    memos[i] = this.transactions.memo(high - 1 - i);
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            StringBuilder lines = formatter.line();
+            for (int i = 0; i < count; i++) {
+                formatter.appendTransaction(lines, timestamps[i], amounts[i], memos[i]);
+            }
+            out.append(lines);
+            high = start;
         }
-        System.out.println();
     }
 
     /**
      * Add the new transaction in this account.
-     * @param amount    the amount transacted
+     * @param amount    the amount transacted in cents
+     * @param memo      the transaction memo
+     */
+    public void addTransaction(long amount, String memo) {
+        long seq = 0;
+        lock.lock();
+        try {
+            long timestamp = System.currentTimeMillis();
+            int index = this.transactions.size();
+            append(timestamp, amount, memo);
+
+            // Audit under the lock, so entries of the account are in order
+            audit(index, timestamp, amount, this.transactions.balance(), memo);
+            if (journal != null) {
+                seq = journal.logTransaction(this.uuid, index, timestamp, amount, memo);
+            }
+        } finally {
+            lock.unlock();
+        }
+        spill();
+
+        // Wait for the log outside of the lock, so other transactions
+        // of the account get into the same fsync
+        if (seq != 0) {
+            journal.sync(seq);
+        }
+    }
+
+    /**
+     * Add the new transaction for a client request at most once. A retry
+     * of the request within RequestTable.RETENTION_MILLIS gets the result
+     * of the first try and only waits for its log record.
+     * @param requestId the unique ID of the request chosen by the client
+     * @param amount    the amount transacted in cents, negative for a
+     *                  withdrawal
+     * @param memo      the transaction memo
+     * @return          true if the transaction is done, now or by an
+     *                  earlier try, false if the rules of the bank
+     *                  refused it
+     * @throws ArithmeticException if the balance would overflow
+     */
+    public boolean addTransaction(String requestId, long amount, String memo) {
+        return addTransaction(requestId, amount, memo, true);
+    }
+
+    /**
+     * Add the new transaction for a request at most once, see
+     * addTransaction(String, long, String).
+     * @param requestId the unique ID of the request
+     * @param amount    the amount transacted in cents, negative for a
+     *                  withdrawal
+     * @param memo      the transaction memo
+     * @param checked   whether the rules of the bank are checked, false for
+     *                  the incoming side of a transfer
+     * @return          true if the transaction is done, now or by an
+     *                  earlier try, false if the rules of the bank
+     *                  refused it
+     * @throws ArithmeticException if the balance would overflow
+     */
+    boolean addTransaction(String requestId, long amount, String memo, boolean checked) {
+        long fingerprint = RequestTable.fingerprint(requestId);
+        long seq;
+        lock.lock();
+        try {
+            long timestamp = System.currentTimeMillis();
+            RequestTable requests = requests();
+            requests.evictBefore(timestamp - RequestTable.RETENTION_MILLIS);
+            long done = requests.find(fingerprint);
+            if (done == RequestTable.REJECTED) {
+                return false;
+            }
+            if (done != RequestTable.NOT_FOUND) {
+                seq = done;
+            } else {
+                long balance = Math.addExact(this.transactions.balance(), amount);
+                if (checked && checkRules(timestamp, amount) != TransactionRules.Verdict.ALLOWED) {
+                    requests.put(fingerprint, timestamp, RequestTable.REJECTED);
+                    return false;
+                }
+                int index = this.transactions.size();
+                append(timestamp, amount, memo);
+                audit(index, timestamp, amount, balance, memo);
+                seq = 0;
+                if (journal != null) {
+                    seq = journal.logRequest(requestId, this.uuid, index, timestamp, amount, memo);
+                }
+                requests.put(fingerprint, timestamp, seq);
+            }
+        } finally {
+            lock.unlock();
+        }
+        spill();
+        if (seq != 0) {
+            journal.sync(seq);
+        }
+        return true;
+    }
+
+    /**
+     * Get the result of a recent client request. Must be called under the
+     * lock.
+     * @param requestId the unique ID of the request
+     * @param now       the current time in epoch milliseconds
+     * @return          the sequence number of the log record of the request
+     *                  (0 without log), RequestTable.REJECTED, or
+     *                  RequestTable.NOT_FOUND
+     */
+    long findRequest(String requestId, long now) {
+        RequestTable requests = requests();
+        requests.evictBefore(now - RequestTable.RETENTION_MILLIS);
+        return requests.find(RequestTable.fingerprint(requestId));
+    }
+
+    /**
+     * Remember the result of a client request.
+     * @param requestId the unique ID of the request
+     * @param time      the time of the request in epoch milliseconds
+     * @param result    the sequence number of the log record of the request
+     *                  (0 without log) or RequestTable.REJECTED
+     */
+    void putRequest(String requestId, long time, long result) {
+        restoreRequest(RequestTable.fingerprint(requestId), time, result);
+    }
+
+    /**
+     * Change the result of a remembered client request. A request which is
+     * forgotten already stays forgotten.
+     * @param requestId the unique ID of the request
+     * @param result    the new result of the request
+     */
+    void updateRequest(String requestId, long result) {
+        lock.lock();
+        try {
+            if (requests != null) {
+                requests.update(RequestTable.fingerprint(requestId), result);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remember a client request restored from a snapshot or the log, unless
+     * it is already known or too old.
+     * @param fingerprint   the fingerprint of the request ID
+     * @param time          the time of the request in epoch milliseconds
+     * @param result        the result of the request
+     */
+    void restoreRequest(long fingerprint, long time, long result) {
+        lock.lock();
+        try {
+            if (time < System.currentTimeMillis() - RequestTable.RETENTION_MILLIS) {
+                return;
+            }
+            RequestTable requests = requests();
+            if (requests.find(fingerprint) == RequestTable.NOT_FOUND) {
+                requests.put(fingerprint, time, result);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Visit the recent client requests of the account. Must be called under
+     * the lock.
+     * @param visitor   the receiver of the requests
+     */
+    void forEachRequest(RequestTable.EntryVisitor visitor) {
+        if (requests != null) {
+            requests.forEach(visitor);
+        }
+    }
+
+    private RequestTable requests() {
+        if (requests == null) {
+            requests = new RequestTable();
+        }
+        return requests;
+    }
+
+    /**
+     * Add a transaction made at a particular time and log it without
+     * waiting for the log. Used for bulk imports, which sync once per batch.
+     * The caller calls spill after the lock is released.
+     * @param timestamp the timestamp in epoch milliseconds
+     * @param amount    the amount transacted in cents
+     * @param memo      the transaction memo
+     * @return          the sequence number of the log record, or 0
+     */
+    long importTransaction(long timestamp, long amount, String memo) {
+        lock.lock();
+        try {
+            int index = this.transactions.size();
+            append(timestamp, amount, memo);
+
+            // The store may have moved an early timestamp forward
+            timestamp = this.transactions.timestamp(index);
+            audit(index, timestamp, amount, this.transactions.balance(), memo);
+            WriteAheadLog journal = this.journal;
+            if (journal != null) {
+                return journal.logTransaction(this.uuid, index, timestamp, amount, memo);
+            }
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Add a transaction made at a particular time without logging it.
+     * Used for transfers, which are logged by the bank and call spill after
+     * the lock is released.
+     * @param timestamp the timestamp in epoch milliseconds
+     * @param amount    the amount transacted in cents
+     * @param memo      the transaction memo
+     */
+    void applyTransaction(long timestamp, long amount, String memo) {
+        lock.lock();
+        try {
+            int index = this.transactions.size();
+            append(timestamp, amount, memo);
+            audit(index, this.transactions.timestamp(index), amount, this.transactions.balance(), memo);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Add a transaction from the log of the bank, unless the account already
+     * has it from a snapshot.
+     * @param index     the index of the transaction in the account
+     * @param timestamp the timestamp in epoch milliseconds
+     * @param amount    the amount transacted in cents
      * @param memo      the transaction memo
+     * @throws IOException if transactions before index are missing
+     */
+    void replayTransaction(int index, long timestamp, long amount, String memo) throws IOException {
+        lock.lock();
+        try {
+            int size = this.transactions.size();
+            if (index > size) {
+                throw new IOException(String.format("Account %s misses transactions %d to %d",
+                        this.uuid, size, index - 1));
+            }
+            if (index == size) {
+                append(timestamp, amount, memo);
+            }
+        } finally {
+            lock.unlock();
+        }
+        spill();
+    }
+
+    /**
+     * Get the number of transactions of the account.
+     * @return the number of transactions
+     */
+    public int getNumTransactions() {
+        lock.lock();
+        try {
+            return this.transactions.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of transactions made in a range of time, for example
+     * for a monthly statement.
+     * @param from  the start of the range inclusive
+     * @param to    the end of the range inclusive
+     * @return      the number of transactions
+     */
+    public int getNumTransactions(Date from, Date to) {
+        lock.lock();
+        try {
+            return this.transactions.countBetween(from.getTime(), to.getTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the store of transactions. It may be used only under the lock
+     * of the account.
+     * @return the store
      */
-    public void addTransaction(double amount, String memo) {
+    TransactionStore getTransactionStore() {
+        return transactions;
+    }
+
+    /**
+     * Start logging new transactions of this account.
+     * @param journal   the log of the bank
+     */
+    void attachJournal(WriteAheadLog journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Start auditing new transactions of this account.
+     * @param audit the audit log of the bank, or null to stop auditing
+     */
+    void attachAudit(AuditLog audit) {
+        this.audit = audit;
+    }
 
-        // Create a new transaction object and add it in list
-        Transaction newTransaction = new Transaction(amount, memo, this);
-        this.transactions.add(newTransaction);
+    /**
+     * Publish a new transaction to the audit log, if there is one.
+     * @param index     the index of the transaction
+     * @param timestamp the timestamp in epoch milliseconds
+     * @param amount    the amount transacted in cents
+     * @param balance   the balance after the transaction in cents
+     * @param memo      the transaction memo
+     */
+    private void audit(int index, long timestamp, long amount, long balance, String memo) {
+        AuditLog audit = this.audit;
+        if (audit != null) {
+            audit.publish(this.uuid, index, timestamp, amount, balance, memo);
+        }
+    }
+
+    /**
+     * Add a transaction to the store and count the new version. Must be
+     * called under the lock.
+     * @param timestamp the timestamp in epoch milliseconds
+     * @param amount    the amount in cents
+     * @param memo      the transaction memo
+     */
+    private void append(long timestamp, long amount, String memo) {
+        this.transactions.add(timestamp, amount, memo);
+        this.version++;
+        if (ruleState != null) {
+            ruleStateOf.record(ruleState, this.transactions.timestamp(this.transactions.size() - 1), amount);
+        }
+    }
+
+    /**
+     * Check a transaction against the rules of the bank, without adding
+     * it. The transaction may still be refused when it is added, if the
+     * account changes meanwhile.
+     * @param amount    the amount in cents, negative for a withdrawal
+     * @return          ALLOWED, or the first rule which is broken
+     */
+    public TransactionRules.Verdict checkTransaction(long amount) {
+        lock.lock();
+        try {
+            return checkRules(System.currentTimeMillis(), amount);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Check a transaction against the rules of the bank. Must be called
+     * under the lock.
+     * @param timestamp the time of the transaction in epoch milliseconds
+     * @param amount    the amount in cents, negative for a withdrawal
+     * @return          ALLOWED, or the first rule which is broken
+     */
+    TransactionRules.Verdict checkRules(long timestamp, long amount) {
+        return checkRules(timestamp, amount, this.transactions.balance());
+    }
+
+    /**
+     * Check a transaction against the rules of the bank, as if the account
+     * had a given balance. Must be called under the lock.
+     * @param timestamp the time of the transaction in epoch milliseconds
+     * @param amount    the amount in cents, negative for a withdrawal
+     * @param balance   the balance to check an overdraft against in cents
+     * @return          ALLOWED, or the first rule which is broken
+     */
+    TransactionRules.Verdict checkRules(long timestamp, long amount, long balance) {
+        TransactionRules rules = this.rules;
+        if (ruleStateOf != rules) {
+            ruleState = rules.newState(this.transactions, timestamp);
+            ruleStateOf = rules;
+        }
+        return rules.check(ruleState, balance, timestamp, amount);
+    }
+
+    /**
+     * Move older transactions to a segment store, see
+     * TransactionStore.attachSegments.
+     * @param segments  the segment store of the bank, or null to keep the
+     *                  history on the heap
+     */
+    void attachSegments(SegmentStore segments) {
+        if (segments == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            this.transactions.attachSegments(segments);
+        } finally {
+            lock.unlock();
+        }
+        spill();
+    }
+
+    /**
+     * Move older transactions of a full heap tail to the segment store, if
+     * one is attached. Must be called without the lock: the blocks are
+     * compressed and written without it, so transactions of the account
+     * never wait for the disk. A block which can't be written is reported
+     * and leaves the whole history on the heap from then on, the
+     * transaction which filled it is done anyway.
+     */
+    void spill() {
+        while (true) {
+            TransactionStore.Spill spill;
+            lock.lock();
+            try {
+                spill = this.transactions.startSpill();
+            } finally {
+                lock.unlock();
+            }
+            if (spill == null) {
+                return;
+            }
+            UncheckedIOException failure = null;
+            try {
+                spill.write();
+            } catch (UncheckedIOException e) {
+                failure = e;
+            }
+            lock.lock();
+            try {
+                this.transactions.finishSpill(spill);
+            } finally {
+                lock.unlock();
+            }
+            if (failure != null) {
+                System.err.printf("Error, failed to write cold block of account %s, its history stays on the heap.\n",
+                        this.uuid);
+                failure.printStackTrace();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Set the rules checked before client operations.
+     * @param rules the rules of the bank
+     */
+    void attachRules(TransactionRules rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * Get the version of the account, which grows with every transaction.
+     * It can be read without the lock, a summary rendered after reading it
+     * is at least as new as the version.
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the name of the account.
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the lock guarding the transactions of this account. Holding it
+     * keeps the balance unchanged.
+     * @return the lock
+     */
+    ReentrantLock getLock() {
+        return lock;
     }
 
     public User getHolder() {
@@ -0,0 +1,81 @@
+import java.util.Date;
+
+/**
+ *  One balance change read back from the audit files, see AuditLog.
+ */
+public class AuditEvent {
+
+    /**
+     * The sequence number of the event in the audit log.
+     * */
+    private final long sequence;
+
+    /**
+     * The UUID of the account.
+     * */
+    private final String accountID;
+
+    /**
+     * The index of the transaction in the account.
+     * */
+    private final int index;
+
+    /**
+     * The time of the transaction in epoch milliseconds.
+     * */
+    private final long timestamp;
+
+    /**
+     * The amount of the transaction in cents.
+     * */
+    private final long amount;
+
+    /**
+     * The balance of the account after the transaction in cents.
+     * */
+    private final long balance;
+
+    /**
+     * The memo of the transaction.
+     * */
+    private final String memo;
+
+    AuditEvent(long sequence, String accountID, int index, long timestamp,
+               long amount, long balance, String memo) {
+        this.sequence = sequence;
+        this.accountID = accountID;
+        this.index = index;
+        this.timestamp = timestamp;
+        this.amount = amount;
+        this.balance = balance;
+        this.memo = memo;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getAccountID() {
+        return accountID;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public Date getTimestamp() {
+        return new Date(timestamp);
+    }
+
+    public long getAmount() {
+        return amount;
+    }
+
+    public long getBalance() {
+        return balance;
+    }
+
+    public String getMemo() {
+        return memo;
+    }
+}
@@ -0,0 +1,455 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ *  Asynchronous audit trail of balance changes. Accounts publish an event
+ *  for every new transaction into a bounded ring buffer of preallocated
+ *  slots, which costs a claim of a sequence number and a few field writes,
+ *  so auditing adds no I/O to the transaction path.
+ *  <p>
+ *  A drainer thread takes events from the ring in sequence order and
+ *  encodes them into batches. Full batches, and partial ones after
+ *  FLUSH_INTERVAL_MILLIS, are compressed by a pool of writer threads into
+ *  gzip files named by the sequence number of their first event, and are
+ *  fsynced before they get their final name. When the writers fall behind,
+ *  the drainer compresses batches itself, so the ring fills up and the
+ *  backpressure policy applies.
+ */
+public class AuditLog implements Closeable {
+
+    /**
+     * What publishing does when the ring buffer is full.
+     */
+    public enum Backpressure {
+
+        /**
+         * Wait until the drainer frees a slot. Nothing is lost, but
+         * transactions slow down to the speed of the writers.
+         */
+        BLOCK,
+
+        /**
+         * Drop the event and count it, transactions never wait.
+         */
+        DROP
+    }
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    /**
+     * The number of events in a full batch.
+     */
+    static final int BATCH_SIZE = 8192;
+
+    /**
+     * The time after which a partial batch is written.
+     */
+    static final long FLUSH_INTERVAL_MILLIS = 100;
+
+    /**
+     * The time the drainer sleeps when the ring is empty.
+     */
+    private static final long IDLE_PARK_NANOS = 200_000;
+
+    /**
+     * The time a blocked publisher sleeps between checks for a free slot.
+     */
+    private static final long FULL_PARK_NANOS = 10_000;
+
+    private static final String FILE_PREFIX = "audit-";
+    private static final String FILE_SUFFIX = ".gz";
+
+    /**
+     * The directory of the audit files.
+     * */
+    private final Path directory;
+
+    private final Backpressure backpressure;
+
+    /**
+     * The capacity of the ring minus one, the capacity is a power of two.
+     * */
+    private final int mask;
+
+    // The slots of the ring by columns, an event with null account ID is
+    // a hole left by a publisher which gave up
+    private final String[] accountIDs;
+    private final int[] indexes;
+    private final long[] timestamps;
+    private final long[] amounts;
+    private final long[] balances;
+    private final String[] memos;
+
+    /**
+     * The sequence number of the event in every slot, written last, so the
+     * drainer sees the slot complete when it sees the sequence number.
+     * */
+    private final AtomicLongArray published;
+
+    /**
+     * The next sequence number to claim.
+     * */
+    private final AtomicLong claimed;
+
+    /**
+     * The sequence number of the first event not taken by the drainer yet,
+     * all slots of earlier events are free.
+     * */
+    private volatile long consumed;
+
+    private volatile boolean closed;
+
+    /**
+     * Set when the drainer has finished, publishers stop waiting for it.
+     * */
+    private volatile boolean drained;
+
+    /**
+     * The number of events dropped because the ring was full or closed.
+     * */
+    private final LongAdder dropped;
+
+    /**
+     * The number of events written to audit files.
+     * */
+    private final LongAdder written;
+
+    private final Thread drainer;
+
+    /**
+     * The pool compressing and writing batches.
+     * */
+    private final ThreadPoolExecutor writers;
+
+    /**
+     * Open an audit log with the default capacity, blocking backpressure
+     * and one writer per four processors.
+     * @param directory the directory of the audit files
+     * @throws IOException if the directory can't be created
+     */
+    public AuditLog(Path directory) throws IOException {
+        this(directory, DEFAULT_CAPACITY, Backpressure.BLOCK,
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 4));
+    }
+
+    /**
+     * Open an audit log and start its threads.
+     * @param directory     the directory of the audit files, which is created
+     *                      if needed
+     * @param capacity      the number of events the ring can hold, rounded up
+     *                      to a power of two
+     * @param backpressure  what publishing does when the ring is full
+     * @param numWriters    the number of threads compressing batches
+     * @throws IOException if the directory can't be created
+     */
+    public AuditLog(Path directory, int capacity, Backpressure backpressure, int numWriters)
+            throws IOException {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        if (numWriters < 1) {
+            throw new IllegalArgumentException("Number of writers must be positive: " + numWriters);
+        }
+        Files.createDirectories(directory);
+        this.directory = directory;
+        this.backpressure = backpressure;
+
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        size = Math.max(size, 1);
+        this.mask = size - 1;
+        this.accountIDs = new String[size];
+        this.indexes = new int[size];
+        this.timestamps = new long[size];
+        this.amounts = new long[size];
+        this.balances = new long[size];
+        this.memos = new String[size];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            this.published.set(i, -1);
+        }
+        this.claimed = new AtomicLong();
+        this.dropped = new LongAdder();
+        this.written = new LongAdder();
+
+        // A few batches may wait for the writers, then the drainer writes
+        this.writers = new ThreadPoolExecutor(numWriters, numWriters, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(2 * numWriters), task -> {
+                    Thread thread = new Thread(task, "audit-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        this.drainer = new Thread(this::drain, "audit-drainer");
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+    }
+
+    /**
+     * Publish the event of a new transaction. Never blocks with DROP
+     * backpressure.
+     * @param accountID the UUID of the account
+     * @param index     the index of the transaction in the account
+     * @param timestamp the timestamp in epoch milliseconds
+     * @param amount    the amount in cents
+     * @param balance   the balance of the account after the transaction
+     * @param memo      the memo
+     * @return          true if the event is published, false if it was
+     *                  dropped
+     */
+    public boolean publish(String accountID, int index, long timestamp, long amount,
+                           long balance, String memo) {
+        if (closed) {
+            return drop();
+        }
+        long seq;
+        if (backpressure == Backpressure.DROP) {
+            do {
+                seq = claimed.get();
+                if (seq - consumed > mask) {
+                    return drop();
+                }
+            } while (!claimed.compareAndSet(seq, seq + 1));
+        } else {
+            seq = claimed.getAndIncrement();
+            while (seq - consumed > mask) {
+                if (drained) {
+                    return drop();
+                }
+                LockSupport.parkNanos(this, FULL_PARK_NANOS);
+            }
+        }
+
+        int slot = (int) seq & mask;
+        // A publisher which claimed a slot during close leaves a hole, so
+        // the drainer doesn't wait for it
+        boolean accepted = !closed;
+        accountIDs[slot] = accepted ? accountID : null;
+        indexes[slot] = index;
+        timestamps[slot] = timestamp;
+        amounts[slot] = amount;
+        balances[slot] = balance;
+        memos[slot] = memo;
+        published.set(slot, seq);
+        if (!accepted) {
+            return drop();
+        }
+        Metrics.AUDIT.increment();
+        return true;
+    }
+
+    private boolean drop() {
+        dropped.increment();
+        Metrics.AUDIT_DROPS.increment();
+        return false;
+    }
+
+    /**
+     * Get the number of events dropped so far.
+     * @return the number of events
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Get the number of events written to audit files so far.
+     * @return the number of events
+     */
+    public long getWritten() {
+        return written.sum();
+    }
+
+    /**
+     * Stop accepting events, write all published ones and wait for the
+     * writers. Events published meanwhile may be dropped.
+     * @throws IOException if the audit files can't be written
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join();
+            writers.shutdown();
+            writers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing the audit log", e);
+        }
+    }
+
+    /**
+     * Take events from the ring into batches until the log is closed and
+     * every claimed slot is taken.
+     */
+    private void drain() {
+        long next = 0;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(BATCH_SIZE * 64);
+        DataOutputStream batch = new DataOutputStream(bytes);
+        int count = 0;
+        long firstSeq = 0;
+        long batchStart = 0;
+        try {
+            while (true) {
+                int taken = 0;
+                for (int slot = (int) next & mask; published.get(slot) == next;
+                     slot = (int) next & mask) {
+                    if (accountIDs[slot] != null) {
+                        if (count == 0) {
+                            firstSeq = next;
+                            batchStart = System.nanoTime();
+                        }
+                        batch.writeLong(next);
+                        batch.writeUTF(accountIDs[slot]);
+                        batch.writeInt(indexes[slot]);
+                        batch.writeLong(timestamps[slot]);
+                        batch.writeLong(amounts[slot]);
+                        batch.writeLong(balances[slot]);
+                        batch.writeUTF(memos[slot]);
+                        count++;
+                    }
+                    accountIDs[slot] = null;
+                    memos[slot] = null;
+                    next++;
+                    taken++;
+
+                    // Free the slots in steps, so blocked publishers go on
+                    if ((next & 255) == 0) {
+                        consumed = next;
+                    }
+                    if (count == BATCH_SIZE) {
+                        break;
+                    }
+                }
+                consumed = next;
+
+                boolean finished = closed && next == claimed.get();
+                if (count == BATCH_SIZE || count > 0 && (finished
+                        || System.nanoTime() - batchStart >= FLUSH_INTERVAL_MILLIS * 1_000_000)) {
+                    submit(firstSeq, count, bytes.toByteArray());
+                    bytes.reset();
+                    count = 0;
+                }
+                if (finished) {
+                    return;
+                }
+                if (taken == 0) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+            }
+        } catch (IOException e) {
+            // Writing to a byte array doesn't fail
+            throw new UncheckedIOException(e);
+        } finally {
+            drained = true;
+        }
+    }
+
+    /**
+     * Hand a batch to the writers.
+     * @param firstSeq  the sequence number of the first event
+     * @param count     the number of events
+     * @param events    the encoded events
+     */
+    private void submit(long firstSeq, int count, byte[] events) {
+        writers.execute(() -> {
+            try {
+                writeBatch(firstSeq, count, events);
+                written.add(count);
+            } catch (IOException e) {
+                System.err.printf("Error, failed to write audit batch of %d events from %d.\n",
+                        count, firstSeq);
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Compress a batch into its file. The file gets its final name only
+     * after it is on disk.
+     * @param firstSeq  the sequence number of the first event
+     * @param count     the number of events
+     * @param events    the encoded events
+     * @throws IOException if the file can't be written
+     */
+    private void writeBatch(long firstSeq, int count, byte[] events) throws IOException {
+        Path file = directory.resolve(String.format("%s%019d%s", FILE_PREFIX, firstSeq, FILE_SUFFIX));
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmpFile.toFile())) {
+            BufferedOutputStream buffered = new BufferedOutputStream(fileOut, 1 << 16);
+            GZIPOutputStream gzip = new GZIPOutputStream(buffered, 1 << 16);
+            DataOutputStream out = new DataOutputStream(gzip);
+            out.writeInt(count);
+            out.write(events);
+            gzip.finish();
+            buffered.flush();
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            Files.deleteIfExists(tmpFile);
+            throw e;
+        }
+        Files.move(tmpFile, file, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Get the audit files of a directory in order of their events.
+     * @param directory the directory of the audit files
+     * @return          the files
+     * @throws IOException if the directory can't be listed
+     */
+    public static List<Path> files(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> entries = Files.list(directory)) {
+            entries.filter(file -> {
+                String name = file.getFileName().toString();
+                return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX);
+            }).sorted().forEach(files::add);
+        }
+        return files;
+    }
+
+    /**
+     * Read the events of an audit file.
+     * @param file      the audit file
+     * @param action    the action to perform for every event
+     * @throws IOException if the file can't be read
+     */
+    public static void read(Path file, Consumer<AuditEvent> action) throws IOException {
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(
+                Files.newInputStream(file), 1 << 16))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long sequence = in.readLong();
+                String accountID = in.readUTF();
+                int index = in.readInt();
+                long timestamp = in.readLong();
+                long amount = in.readLong();
+                long balance = in.readLong();
+                String memo = in.readUTF();
+                action.accept(new AuditEvent(sequence, accountID, index, timestamp,
+                        amount, balance, memo));
+            }
+        }
+    }
+}
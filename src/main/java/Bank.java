@@ -1,16 +1,135 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
-public class Bank {
+/**
+ *  The bank with its users and accounts. All methods are thread-safe,
+ *  any number of ATM sessions may work with one Bank at once.
+ */
+public class Bank implements Closeable {
     private static final int USER_UUID_LENGTH    = 6;
-    private static final int ACCOUNT_UUID_LENGTH = 10;
+    static final int ACCOUNT_UUID_LENGTH = 10;
+
+    /**
+     * Number of possible IDs for every length, 10^length.
+     */
+    private static final long[] UUID_BOUNDS = {
+            1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L,
+            100_000_000L, 1_000_000_000L, 10_000_000_000L
+    };
+
+    /**
+     * Number of collisions after which generateUUID checks that there are
+     * free IDs left at all.
+     */
+    private static final int MAX_COLLISIONS = 64;
 
     private final String name;
 
-    private final List<User> users;
+    /**
+     * The directory of users, keyed by numeric value of user UUID.
+     */
+    private final ConcurrentLongHashMap<User> users;
+
+    /**
+     * The directory of accounts, keyed by numeric value of account UUID.
+     */
+    private final ConcurrentLongHashMap<Account> accounts;
+
+    /**
+     * Numeric values of the user IDs which are already in use.
+     */
+    private final ConcurrentLongHashSet userUUIDs;
+
+    /**
+     * Numeric values of the account IDs which are already in use.
+     */
+    private final ConcurrentLongHashSet accountUUIDs;
+
+    /**
+     * The credits of transfers to other banks which are not confirmed yet,
+     * by request ID, see transferOut.
+     */
+    private final ConcurrentHashMap<String, PendingCredit> pendingCredits;
+
+    /**
+     * The results of credits from other banks by request ID, the sequence
+     * number of the log record (0 without log) or RequestTable.REJECTED.
+     * Kept until the other bank has finished the transfer, see applyCredit.
+     */
+    private final ConcurrentHashMap<String, Long> credits;
+
+    /**
+     * The log of all changes, or null if the bank is kept only in memory.
+     */
+    private WriteAheadLog journal;
+
+    /**
+     * The audit log of balance changes, or null if they are not audited.
+     */
+    private volatile AuditLog auditLog;
+
+    /**
+     * The rules checked before client operations.
+     */
+    private volatile TransactionRules rules = TransactionRules.DEFAULT;
+
+    /**
+     * The cold tier of transaction histories, or null if histories are
+     * kept on the heap.
+     */
+    private volatile SegmentStore segmentStore;
+
+    /**
+     * The snapshot file of the bank, or null if snapshots are not taken.
+     */
+    private Path snapshotFile;
+
+    /**
+     * The lock which is held shared while a new user or account is logged
+     * and added, and exclusively while a snapshot gets its log position.
+     * So everything logged before that position is in the directories.
+     */
+    private final ReentrantReadWriteLock directoryLock;
+
+    /**
+     * The monitor which lets only one snapshot be written at a time.
+     */
+    private final Object checkpointLock;
+
+    /**
+     * The executor taking periodic snapshots, or null.
+     */
+    private ScheduledExecutorService checkpointer;
+
+    /**
+     * The pool checking pins on login.
+     */
+    private final PinVerifier pinVerifier;
+
+    /**
+     * The number of PBKDF2 iterations for pins of new users.
+     */
+    private volatile int pinIterations;
 
-    private final List<Account> accounts;
+    /**
+     * The range of numeric IDs which may be given to new accounts, the
+     * first one inclusive and the end exclusive. Replaced as a whole, so
+     * readers never see half of a change.
+     */
+    private volatile long[] accountRange;
 
     /**
      * Create a new Bank object with empty lists of users and accounts
@@ -18,8 +137,183 @@ public class Bank {
      */
     public Bank(String name) {
         this.name = name;
-        this.users = new ArrayList<>();
-        this.accounts = new ArrayList<>();
+        this.users = new ConcurrentLongHashMap<>();
+        this.accounts = new ConcurrentLongHashMap<>();
+        this.userUUIDs = new ConcurrentLongHashSet();
+        this.accountUUIDs = new ConcurrentLongHashSet();
+        this.pendingCredits = new ConcurrentHashMap<>();
+        this.credits = new ConcurrentHashMap<>();
+        this.directoryLock = new ReentrantReadWriteLock();
+        this.checkpointLock = new Object();
+        this.pinVerifier = new PinVerifier();
+        this.pinIterations = PinHash.DEFAULT_ITERATIONS;
+        this.accountRange = new long[] {0, UUID_BOUNDS[ACCOUNT_UUID_LENGTH]};
+    }
+
+    /**
+     * Open a durable bank. The bank is restored by replaying its log,
+     * and every later change is appended to the log.
+     * @param name          the name of the Bank
+     * @param journalFile   the log file, which is created if it doesn't exist
+     * @return              the restored Bank object
+     * @throws IOException  if the log can't be read or opened
+     */
+    public static Bank open(String name, Path journalFile) throws IOException {
+        return open(name, journalFile, null);
+    }
+
+    /**
+     * Open a durable bank with snapshots. The bank is restored from the
+     * snapshot, if there is one, and then only the tail of the log written
+     * after the snapshot is replayed.
+     * @param name          the name of the Bank
+     * @param journalFile   the log file, which is created if it doesn't exist
+     * @param snapshotFile  the snapshot file, which may not exist yet
+     * @return              the restored Bank object
+     * @throws IOException  if the snapshot or the log can't be read
+     * @see #checkpoint()
+     */
+    public static Bank open(String name, Path journalFile, Path snapshotFile) throws IOException {
+        Bank bank = new Bank(name);
+        long journalOffset = 0;
+        if (snapshotFile != null && Files.exists(snapshotFile)) {
+            journalOffset = BankSnapshot.load(snapshotFile, bank);
+        }
+        WriteAheadLog journal = WriteAheadLog.open(journalFile, journalOffset, bank);
+        bank.journal = journal;
+        bank.snapshotFile = snapshotFile;
+        bank.accounts.forEachValue(account -> account.attachJournal(journal));
+        return bank;
+    }
+
+    /**
+     * Write a snapshot of the bank. Sessions keep working meanwhile, every
+     * account is locked only while its own history is copied.
+     * @throws IOException if the snapshot can't be written
+     */
+    public void checkpoint() throws IOException {
+        if (journal == null || snapshotFile == null) {
+            throw new IllegalStateException("Bank " + name + " has no snapshot file");
+        }
+        synchronized (checkpointLock) {
+            long journalOffset;
+            directoryLock.writeLock().lock();
+            try {
+                journalOffset = journal.durablePosition();
+            } finally {
+                directoryLock.writeLock().unlock();
+            }
+            BankSnapshot.write(this, snapshotFile, journalOffset);
+        }
+    }
+
+    /**
+     * Take snapshots of the bank periodically in a background thread.
+     * @param period    the period between snapshots
+     * @param unit      the time unit of period
+     */
+    public synchronized void scheduleCheckpoints(long period, TimeUnit unit) {
+        if (checkpointer != null) {
+            throw new IllegalStateException("Snapshots are already scheduled");
+        }
+        checkpointer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "bank-checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointer.scheduleWithFixedDelay(() -> {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                System.err.println("Error, failed to write snapshot of the bank.");
+                e.printStackTrace();
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Start auditing every new transaction of the bank. The audit log is
+     * closed with the bank.
+     * @param auditLog  the audit log
+     */
+    public void setAuditLog(AuditLog auditLog) {
+        directoryLock.writeLock().lock();
+        try {
+            this.auditLog = auditLog;
+            accounts.forEachValue(account -> account.attachAudit(auditLog));
+        } finally {
+            directoryLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Move older transactions of all accounts to compressed blocks of a
+     * segment store, which the bank closes when it is closed. Only a bounded
+     * tail of every history stays on the heap.
+     * @param segmentStore  the segment store
+     * @throws java.io.UncheckedIOException if a block can't be written
+     */
+    public void setSegmentStore(SegmentStore segmentStore) {
+        directoryLock.writeLock().lock();
+        try {
+            this.segmentStore = segmentStore;
+            accounts.forEachValue(account -> account.attachSegments(segmentStore));
+        } finally {
+            directoryLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Set the rules checked before every client deposit, withdrawal and
+     * transfer, for all accounts.
+     * @param rules the rules
+     */
+    public void setTransactionRules(TransactionRules rules) {
+        directoryLock.writeLock().lock();
+        try {
+            this.rules = rules;
+            accounts.forEachValue(account -> account.attachRules(rules));
+        } finally {
+            directoryLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the rules checked before client operations.
+     * @return the rules
+     */
+    public TransactionRules getTransactionRules() {
+        return rules;
+    }
+
+    /**
+     * Stop taking snapshots and close the log of the bank, after all changes
+     * are written to it, and then the audit log and the segment store.
+     * @throws IOException if the log can't be written
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (checkpointer != null) {
+                checkpointer.shutdownNow();
+            }
+        }
+        pinVerifier.shutdown();
+        try {
+            if (journal != null) {
+                journal.close();
+            }
+        } finally {
+            try {
+                if (auditLog != null) {
+                    auditLog.close();
+                }
+            } finally {
+                if (segmentStore != null) {
+                    segmentStore.close();
+                }
+            }
+        }
     }
 
     public String getName() {
@@ -34,12 +328,60 @@ public class Bank {
         return accounts.size();
     }
 
+    /**
+     * Grow the directories so that they can hold expected numbers of users
+     * and accounts without rehashing.
+     * @param expectedUsers     the expected number of users
+     * @param expectedAccounts  the expected number of accounts
+     */
+    public void ensureCapacity(int expectedUsers, int expectedAccounts) {
+        this.users.ensureCapacity(expectedUsers);
+        this.userUUIDs.ensureCapacity(expectedUsers);
+        this.accounts.ensureCapacity(expectedAccounts);
+        this.accountUUIDs.ensureCapacity(expectedAccounts);
+    }
+
+    /**
+     * Get the number of PBKDF2 iterations for pins of new users.
+     * @return the number of iterations
+     */
+    public int getPinIterations() {
+        return pinIterations;
+    }
+
+    /**
+     * Set the cost of hashing pins of new users. Pins of existing users
+     * keep the cost they were hashed with.
+     * @param pinIterations the number of PBKDF2 iterations
+     */
+    public void setPinIterations(int pinIterations) {
+        if (pinIterations < 1) {
+            throw new IllegalArgumentException("Iterations must be positive: " + pinIterations);
+        }
+        this.pinIterations = pinIterations;
+    }
+
+    /**
+     * Limit the IDs of new accounts to a range, so that accounts of several
+     * banks of a cluster never clash. Existing accounts are not affected.
+     * @param start the first numeric ID of the range inclusive
+     * @param end   the end of the range exclusive
+     * @see ClusterMap
+     */
+    public void setAccountUUIDRange(long start, long end) {
+        if (start < 0 || start >= end || end > UUID_BOUNDS[ACCOUNT_UUID_LENGTH]) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid range of account UUIDs [%d, %d)", start, end));
+        }
+        this.accountRange = new long[] {start, end};
+    }
+
     /**
      * Create a new universally unique ID for a user.
      * @return the UUID
      */
     public String getNewUserUUID() {
-        return generateUUID(this.users, USER_UUID_LENGTH);
+        return generateUUID(this.userUUIDs, USER_UUID_LENGTH, 0, UUID_BOUNDS[USER_UUID_LENGTH]);
     }
 
     /**
@@ -47,42 +389,141 @@ public class Bank {
      * @return the UUID
      */
     public String getNewAccountUUID() {
-        return generateUUID(this.accounts, ACCOUNT_UUID_LENGTH);
+        long[] range = this.accountRange;
+        return generateUUID(this.accountUUIDs, ACCOUNT_UUID_LENGTH, range[0], range[1]);
+    }
+
+    /**
+     * Reserve a batch of new unique user IDs at once.
+     * @param n the number of IDs to reserve
+     * @return  the reserved UUIDs
+     * @see #reserveAccountUUIDs(int)
+     */
+    public String[] reserveUserUUIDs(int n) {
+        return reserveUUIDs(this.userUUIDs, USER_UUID_LENGTH, 0, UUID_BOUNDS[USER_UUID_LENGTH], n);
+    }
+
+    /**
+     * Reserve a batch of new unique account IDs at once. Useful for bulk
+     * onboarding, the ID table is grown only once for the whole batch.
+     * @param n the number of IDs to reserve
+     * @return  the reserved UUIDs
+     */
+    public String[] reserveAccountUUIDs(int n) {
+        long[] range = this.accountRange;
+        return reserveUUIDs(this.accountUUIDs, ACCOUNT_UUID_LENGTH, range[0], range[1], n);
+    }
+
+    /**
+     * Reserve a batch of new unique IDs of one kind.
+     * @param used      numeric values of the IDs which are already in use
+     * @param length    the number of digits in the ID
+     * @param start     the first numeric ID which may be generated
+     * @param end       the numeric ID after the last one which may be
+     *                  generated
+     * @param n         the number of UUIDs
+     * @return          the UUIDs
+     */
+    private static String[] reserveUUIDs(ConcurrentLongHashSet used, int length,
+                                         long start, long end, int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("Number of UUIDs must not be negative: " + n);
+        }
+        checkFreeUUIDs(used, length, end - start, n);
+        used.ensureCapacity(used.size() + n);
+
+        String[] uuids = new String[n];
+        for (int i = 0; i < n; i++) {
+            uuids[i] = generateUUID(used, length, start, end);
+        }
+        return uuids;
     }
 
     /**
-     * Generate a new random unique ID for object which implements UUID.
-     * @param uniqueList list of unique objects for type T
-     * @param length length of uuid
-     * @param <T> type which implement UUID interface. User/Account, as example
+     * Generate a new random unique ID and reserve it in the set of used IDs.
+     * @param usedUUIDs the set of already used IDs for the type of object
+     * @param length    length of uuid
+     * @param start     the first numeric ID which may be generated
+     * @param end       the numeric ID after the last one which may be
+     *                  generated
      * @return the uuid
      */
-    private <T extends UUID> String generateUUID(List<T> uniqueList, int length) {
+    private static String generateUUID(ConcurrentLongHashSet usedUUIDs, int length,
+                                       long start, long end) {
         // Inits
-        StringBuilder uuidBuilder;
+        long startNanos = System.nanoTime();
         ThreadLocalRandom rnd = ThreadLocalRandom.current();
-        boolean nonUnique;
+        long uuid;
+        int attempts = 0;
 
-        // Continue looping until we get a unique ID
+        // Continue looping until we get a unique ID, add() returns false
+        // for the ID which is already in use. Counting the used IDs is not
+        // cheap, so check for free ones only after many collisions
         do {
-            // Generate number
-            uuidBuilder = new StringBuilder();
-            for (int i = 0; i < length; i++) {
-                uuidBuilder.append(((Integer) rnd.nextInt(10)));
-            }
-
-            // Check to make sure it's unique
-            nonUnique = false;
-            for (T element : uniqueList) {
-                if (uuidBuilder.toString().compareTo(element.getUUID()) == 0) {
-                    nonUnique = true;
-                    break;
-                }
+            if (++attempts % MAX_COLLISIONS == 0) {
+                checkFreeUUIDs(usedUUIDs, length, end - start, 1);
             }
+            uuid = rnd.nextLong(start, end);
+        } while (!usedUUIDs.add(uuid));
 
-        } while (nonUnique);
+        if (attempts > 1) {
+            Metrics.UUID_COLLISIONS.add(attempts - 1);
+        }
+        Metrics.UUID_GENERATION.record(startNanos);
+        return formatUUID(uuid, length);
+    }
 
-        return uuidBuilder.toString();
+    /**
+     * Check there are enough free IDs of a given length. Under concurrent
+     * generation the check is approximate, it only prevents endless loops
+     * when the ID space runs out.
+     * @param usedUUIDs the set of already used IDs
+     * @param length    length of uuid
+     * @param space     the number of IDs which may be generated
+     * @param n         the number of IDs to be generated
+     */
+    private static void checkFreeUUIDs(ConcurrentLongHashSet usedUUIDs, int length,
+                                       long space, int n) {
+        if (usedUUIDs.size() + (long) n > space) {
+            throw new IllegalStateException(String.format(
+                    "Not enough free UUIDs of length %d.", length));
+        }
+    }
+
+    /**
+     * Convert numeric ID to a string of digits with leading zeros.
+     * @param uuid      the numeric ID
+     * @param length    length of uuid
+     * @return          the string of digits
+     */
+    static String formatUUID(long uuid, int length) {
+        char[] digits = new char[length];
+        for (int i = length - 1; i >= 0; i--) {
+            digits[i] = (char) ('0' + uuid % 10);
+            uuid /= 10;
+        }
+        return new String(digits);
+    }
+
+    /**
+     * Convert string of digits to numeric ID.
+     * @param uuid      the string ID
+     * @param length    expected length of uuid
+     * @return          the numeric ID, or -1 if the string is not a valid ID
+     */
+    static long parseUUID(String uuid, int length) {
+        if (uuid == null || uuid.length() != length) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            char c = uuid.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
     }
 
     /**
@@ -90,7 +531,618 @@ public class Bank {
      * @param account the account to add
      */
     public void addAccount(Account account) {
-        accounts.add(account);
+        sync(putAccount(account));
+    }
+
+    /**
+     * Log a new account and add it to the directory without waiting for
+     * the log.
+     * @param account   the account to add
+     * @return          the sequence number of the log record, or 0
+     */
+    long putAccount(Account account) {
+
+        // Log the account before it can be found, so its transactions
+        // never come before it in the log
+        long seq = 0;
+        directoryLock.readLock().lock();
+        try {
+            if (journal != null) {
+                seq = journal.logAccount(account);
+                account.attachJournal(journal);
+            }
+            account.attachAudit(auditLog);
+            account.attachRules(rules);
+            account.attachSegments(segmentStore);
+            accounts.put(parseUUID(account.getUUID(), ACCOUNT_UUID_LENGTH), account);
+        } finally {
+            directoryLock.readLock().unlock();
+        }
+        return seq;
+    }
+
+    /**
+     * Get the account with a particular UUID.
+     * @param accountID the UUID of the account
+     * @return          the Account object, or null if there is no such account
+     */
+    public Account getAccount(String accountID) {
+        return accounts.get(parseUUID(accountID, ACCOUNT_UUID_LENGTH));
+    }
+
+    /**
+     * Get the user with a particular UUID.
+     * @param userID    the UUID of the user
+     * @return          the User object, or null if there is no such user
+     */
+    public User getUser(String userID) {
+        return users.get(parseUUID(userID, USER_UUID_LENGTH));
+    }
+
+    /**
+     * Transfer funds from one account to another atomically. Both accounts
+     * are locked in order of their UUIDs, so opposite transfers between the
+     * same accounts can't deadlock.
+     * @param fromID    the UUID of the account to transfer from
+     * @param toID      the UUID of the account to transfer to
+     * @param amount    the amount to transfer in cents
+     * @return          true if the transfer is done, false if the rules of
+     *                  the bank refuse it
+     */
+    public boolean transfer(String fromID, String toID, long amount) {
+        return transfer(null, fromID, toID, amount);
+    }
+
+    /**
+     * Transfer funds from one account to another atomically, at most once
+     * per request ID. A retry of the request gets the result of the first
+     * try, see Account.addTransaction(String, long, String).
+     * @param requestId the unique ID of the request chosen by the client,
+     *                  or null if the transfer is not repeated
+     * @param fromID    the UUID of the account to transfer from
+     * @param toID      the UUID of the account to transfer to
+     * @param amount    the amount to transfer in cents
+     * @return          true if the transfer is done, now or by an earlier
+     *                  try, false if the rules of the bank
+     *                  refused it
+     */
+    public boolean transfer(String requestId, String fromID, String toID, long amount) {
+        if (amount < 0) {
+            throw new IllegalArgumentException("Amount must not be negative: " + amount);
+        }
+        long seq = putTransfer(requestId, getExistingAccount(fromID), getExistingAccount(toID), amount);
+        if (seq < 0) {
+            return false;
+        }
+
+        // Wait for the log outside of the locks
+        sync(seq);
+        return true;
+    }
+
+    /**
+     * Apply and log a transfer between two accounts without waiting for
+     * the log.
+     * @param from      the account to transfer from
+     * @param to        the account to transfer to
+     * @param amount    the non-negative amount in cents
+     * @return          the sequence number of the log record, 0 if the bank
+     *                  has no log, or -1 if the rules of the bank refuse it
+     * @throws ArithmeticException if the balance of the account to
+     *                             transfer to would overflow
+     */
+    long putTransfer(Account from, Account to, long amount) {
+        return putTransfer(null, from, to, amount);
+    }
+
+    /**
+     * Apply and log a transfer at most once per request ID, without waiting
+     * for the log. The request is remembered by the account to transfer
+     * from.
+     * @param requestId the unique ID of the request, or null
+     * @param from      the account to transfer from
+     * @param to        the account to transfer to
+     * @param amount    the non-negative amount in cents
+     * @return          the sequence number of the log record, 0 if the bank
+     *                  has no log, or -1 if the rules of the bank refuse it, for
+     *                  a retry the result of the first try
+     * @throws ArithmeticException if the balance of the account to
+     *                             transfer to would overflow
+     */
+    long putTransfer(String requestId, Account from, Account to, long amount) {
+        String fromID = from.getUUID();
+        String toID = to.getUUID();
+
+        // Lock accounts in a consistent order
+        Account first = fromID.compareTo(toID) <= 0 ? from : to;
+        Account second = first == from ? to : from;
+        long seq = 0;
+        first.getLock().lock();
+        second.getLock().lock();
+        try {
+            long timestamp = System.currentTimeMillis();
+            if (requestId != null) {
+                long done = from.findRequest(requestId, timestamp);
+                if (done != RequestTable.NOT_FOUND) {
+                    return done;
+                }
+            }
+
+            // Check everything before the first transaction is added,
+            // so the transfer is applied either fully or not at all
+            if (from.checkRules(timestamp, -amount) != TransactionRules.Verdict.ALLOWED) {
+                if (requestId != null) {
+                    from.putRequest(requestId, timestamp, RequestTable.REJECTED);
+                }
+                return -1;
+            }
+            Math.addExact(to.getBalance(), amount);
+
+            int fromIndex = from.getNumTransactions();
+            from.applyTransaction(timestamp, -amount, transferToMemo(toID));
+            int toIndex = to.getNumTransactions();
+            to.applyTransaction(timestamp, amount, transferFromMemo(fromID));
+            if (journal != null) {
+                seq = journal.logTransfer(requestId, fromID, fromIndex, toID, toIndex, timestamp, amount);
+            }
+            if (requestId != null) {
+                from.putRequest(requestId, timestamp, seq);
+            }
+        } finally {
+            second.getLock().unlock();
+            first.getLock().unlock();
+        }
+        from.spill();
+        to.spill();
+        return seq;
+    }
+
+    /**
+     * Add both transactions of a transfer from the log, unless the accounts
+     * already have them from a snapshot.
+     * @param fromID    the UUID of the account to transfer from
+     * @param fromIndex the index of the transaction in the account to
+     *                  transfer from
+     * @param toID      the UUID of the account to transfer to
+     * @param toIndex   the index of the transaction in the account to
+     *                  transfer to
+     * @param timestamp the timestamp in epoch milliseconds
+     * @param amount    the amount to transfer in cents
+     * @throws IOException if earlier transactions of an account are missing
+     */
+    void replayTransfer(String fromID, int fromIndex, String toID, int toIndex,
+                        long timestamp, long amount) throws IOException {
+        getExistingAccount(fromID).replayTransaction(fromIndex, timestamp, -amount,
+                transferToMemo(toID));
+        getExistingAccount(toID).replayTransaction(toIndex, timestamp, amount,
+                transferFromMemo(fromID));
+    }
+
+    /**
+     * Add both transactions of a requested transfer from the log, see
+     * replayTransfer, and remember the request.
+     * @param requestId the unique ID of the request
+     * @param fromID    the UUID of the account to transfer from
+     * @param fromIndex the index of the transaction in the account to
+     *                  transfer from
+     * @param toID      the UUID of the account to transfer to
+     * @param toIndex   the index of the transaction in the account to
+     *                  transfer to
+     * @param timestamp the timestamp in epoch milliseconds
+     * @param amount    the amount to transfer in cents
+     * @throws IOException if earlier transactions of an account are missing
+     */
+    void replayTransfer(String requestId, String fromID, int fromIndex, String toID, int toIndex,
+                        long timestamp, long amount) throws IOException {
+        replayTransfer(fromID, fromIndex, toID, toIndex, timestamp, amount);
+        getExistingAccount(fromID).putRequest(requestId, timestamp, 0);
+    }
+
+    /**
+     * Create a new unique ID for a client request.
+     * @return the request ID
+     */
+    public static String newRequestId() {
+        return java.util.UUID.randomUUID().toString();
+    }
+
+    /**
+     * Add a transaction requested by a client at most once, see
+     * Account.addTransaction(String, long, String).
+     * @param requestId the unique ID of the request chosen by the client
+     * @param accountID the UUID of the account
+     * @param amount    the amount in cents, negative for a withdrawal
+     * @param memo      the transaction memo
+     * @return          true if the transaction is done, now or by an
+     *                  earlier try, false if the rules of the bank
+     *                  refused it
+     * @throws ArithmeticException if the balance would overflow
+     */
+    public boolean applyRequest(String requestId, String accountID, long amount, String memo) {
+        return getExistingAccount(accountID).addTransaction(requestId, amount, memo);
+    }
+
+    /**
+     * Add the incoming transaction of a transfer from another bank at most
+     * once per request ID. The rules of the bank are checked by the bank of
+     * the source account only, as for transfers within the bank.
+     * <p>
+     * The result is logged and kept, unlike client requests, until the
+     * other bank has finished the transfer and calls forgetCredit, since
+     * it sends the credit again for as long as it takes. A refused credit
+     * stays refused, so the other bank never refunds a credit which was
+     * done by another try.
+     * @param requestId the unique ID of the transfer
+     * @param toID      the UUID of the account to transfer to
+     * @param fromID    the UUID of the account to transfer from
+     * @param amount    the non-negative amount in cents
+     * @throws ArithmeticException if the balance would overflow, now or on
+     *                             an earlier try
+     */
+    public void applyCredit(String requestId, String toID, String fromID, long amount) {
+        if (amount < 0) {
+            throw new IllegalArgumentException("Amount must not be negative: " + amount);
+        }
+        sync(putCredit(requestId, toID, fromID, amount));
+    }
+
+    /**
+     * Add the incoming transaction of a transfer at most once per request
+     * ID, see applyCredit, without waiting for the log. Only the refusal of
+     * a credit is waited for.
+     * @param requestId the unique ID of the transfer
+     * @param toID      the UUID of the account to transfer to
+     * @param fromID    the UUID of the account to transfer from
+     * @param amount    the non-negative amount in cents
+     * @return          the sequence number of the log record, or 0
+     * @throws ArithmeticException if the balance would overflow, now or on
+     *                             an earlier try
+     */
+    long putCredit(String requestId, String toID, String fromID, long amount) {
+        Account to = getExistingAccount(toID);
+        boolean refused;
+        long seq = 0;
+        to.getLock().lock();
+        try {
+            Long done = credits.get(requestId);
+            if (done != null) {
+                refused = done == RequestTable.REJECTED;
+                seq = refused ? 0 : done;
+            } else {
+                refused = to.getBalance() > Long.MAX_VALUE - amount;
+                if (refused) {
+                    credits.put(requestId, RequestTable.REJECTED);
+                    if (journal != null) {
+                        seq = journal.logCreditRefused(requestId);
+                    }
+                } else {
+                    long timestamp = System.currentTimeMillis();
+                    int index = to.getNumTransactions();
+                    to.applyTransaction(timestamp, amount, transferFromMemo(fromID));
+                    if (journal != null) {
+                        seq = journal.logCreditIn(requestId, toID, index, timestamp, amount, fromID);
+                    }
+                    credits.put(requestId, seq);
+                }
+            }
+        } finally {
+            to.getLock().unlock();
+        }
+        to.spill();
+        if (refused) {
+            sync(seq);
+            throw new ArithmeticException("Balance of account " + toID + " would overflow");
+        }
+        return seq;
+    }
+
+    /**
+     * Forget the result of a credit from another bank, which has finished
+     * the transfer and never sends the credit again.
+     * @param requestId the unique ID of the transfer
+     */
+    public void forgetCredit(String requestId) {
+        if (credits.remove(requestId) != null && journal != null) {
+            journal.logCreditForget(requestId);
+        }
+    }
+
+    /**
+     * Withdraw the amount of a transfer to an account of another bank at
+     * most once per request ID, and keep its credit as pending until the
+     * other bank confirms it, see completeCredit. The withdrawal and the
+     * pending credit are logged in one record, so a credit is never lost.
+     * @param requestId the unique ID of the transfer chosen by the client
+     * @param fromID    the UUID of the account to transfer from
+     * @param toID      the UUID of the account of the other bank
+     * @param amount    the non-negative amount in cents
+     * @return          the pending credit, for a retry of a finished
+     *                  transfer a credit with its outcome, or null if the
+     *                  rules of the bank refuse the transfer
+     */
+    public PendingCredit transferOut(String requestId, String fromID, String toID, long amount) {
+        if (amount < 0) {
+            throw new IllegalArgumentException("Amount must not be negative: " + amount);
+        }
+        Account from = getExistingAccount(fromID);
+        PendingCredit credit = new PendingCredit(requestId, fromID, toID, amount);
+        long seq;
+        from.getLock().lock();
+        try {
+            long timestamp = System.currentTimeMillis();
+            long done = from.findRequest(requestId, timestamp);
+            if (done == RequestTable.REJECTED) {
+                return null;
+            }
+            if (done == RequestTable.REFUNDED) {
+                return new PendingCredit(requestId, fromID, toID, amount, PendingCredit.Status.REFUNDED);
+            }
+            if (done != RequestTable.NOT_FOUND) {
+                // Refunds are made under the lock, so a credit which is not
+                // pending any more was done by the other bank
+                seq = done;
+                PendingCredit pending = pendingCredits.get(requestId);
+                credit = pending != null ? pending
+                        : new PendingCredit(requestId, fromID, toID, amount, PendingCredit.Status.COMPLETED);
+            } else {
+                seq = putTransferOut(from, credit, timestamp);
+                if (seq < 0) {
+                    return null;
+                }
+            }
+        } finally {
+            from.getLock().unlock();
+        }
+        from.spill();
+        sync(seq);
+        return credit;
+    }
+
+    /**
+     * Withdraw the amount of a new pending credit and log it with the
+     * credit, without waiting for the log. Must be called under the lock of
+     * the account, which calls spill after the lock is released.
+     * @param from      the account to transfer from
+     * @param credit    the pending credit
+     * @param timestamp the timestamp in epoch milliseconds
+     * @return          the sequence number of the log record, 0 if the bank
+     *                  has no log, or -1 if the rules of the bank refuse it
+     */
+    long putTransferOut(Account from, PendingCredit credit, long timestamp) {
+        String requestId = credit.getRequestId();
+        long amount = credit.getAmount();
+        if (from.checkRules(timestamp, -amount) != TransactionRules.Verdict.ALLOWED) {
+            from.putRequest(requestId, timestamp, RequestTable.REJECTED);
+            return -1;
+        }
+        int index = from.getNumTransactions();
+        from.applyTransaction(timestamp, -amount, transferToMemo(credit.getToID()));
+        pendingCredits.put(requestId, credit);
+        long seq = 0;
+        if (journal != null) {
+            seq = journal.logTransferOut(requestId, from.getUUID(), index, timestamp, amount,
+                    credit.getToID());
+        }
+        from.putRequest(requestId, timestamp, seq);
+        return seq;
+    }
+
+    /**
+     * Forget a pending credit which the other bank has done. Waits for the
+     * log record, so the credit is never sent again once the other bank
+     * is told to forget it.
+     * @param credit    the pending credit
+     */
+    public void completeCredit(PendingCredit credit) {
+        sync(putCreditDone(credit));
+    }
+
+    /**
+     * Forget a pending credit which is done, without waiting for the log.
+     * @param credit    the pending credit
+     * @return          the sequence number of the log record, or 0
+     */
+    long putCreditDone(PendingCredit credit) {
+        if (pendingCredits.remove(credit.getRequestId(), credit) && journal != null) {
+            return journal.logCreditDone(credit.getRequestId());
+        }
+        return 0;
+    }
+
+    /**
+     * Give the amount of a pending credit back to the account it was
+     * withdrawn from, after the other bank refused the credit for good. The
+     * refund and the outcome of the transfer are logged in one record, so
+     * a retry of the transfer never sends the credit again.
+     * @param credit    the pending credit
+     * @throws ArithmeticException if the balance would overflow, the credit
+     *                             stays pending
+     */
+    public void refundCredit(PendingCredit credit) {
+        String requestId = credit.getRequestId();
+        String fromID = credit.getFromID();
+        String toID = credit.getToID();
+        long amount = credit.getAmount();
+        Account from = getExistingAccount(fromID);
+        long seq = 0;
+        from.getLock().lock();
+        try {
+            Math.addExact(from.getBalance(), amount);
+            if (!pendingCredits.remove(requestId, credit)) {
+                return;
+            }
+            long timestamp = System.currentTimeMillis();
+            int index = from.getNumTransactions();
+            from.applyTransaction(timestamp, amount, transferFromMemo(toID));
+            from.updateRequest(requestId, RequestTable.REFUNDED);
+            if (journal != null) {
+                seq = journal.logCreditRefund(requestId, fromID, index, timestamp, amount, toID);
+            }
+        } finally {
+            from.getLock().unlock();
+        }
+        from.spill();
+        sync(seq);
+    }
+
+    /**
+     * Get the credits of transfers to other banks which are not confirmed
+     * yet.
+     * @return  a copy of the pending credits
+     */
+    public List<PendingCredit> getPendingCredits() {
+        return new ArrayList<>(pendingCredits.values());
+    }
+
+    /**
+     * Get the results of credits from other banks which are not finished
+     * yet.
+     * @return  a copy of the results by request ID, true if the credit was
+     *          done, false if it was refused
+     */
+    Map<String, Boolean> getCreditResults() {
+        Map<String, Boolean> results = new HashMap<>();
+        credits.forEach((requestId, seq) -> results.put(requestId, seq != RequestTable.REJECTED));
+        return results;
+    }
+
+    /**
+     * Keep the result of a credit from another bank restored from a
+     * snapshot.
+     * @param requestId the unique ID of the transfer
+     * @param done      true if the credit was done, false if it was refused
+     */
+    void restoreCreditResult(String requestId, boolean done) {
+        credits.put(requestId, done ? 0 : RequestTable.REJECTED);
+    }
+
+    /**
+     * Keep a pending credit restored from a snapshot.
+     * @param credit    the pending credit
+     */
+    void restorePendingCredit(PendingCredit credit) {
+        pendingCredits.put(credit.getRequestId(), credit);
+    }
+
+    /**
+     * Add the withdrawal of a transfer to another bank from the log, unless
+     * the account already has it from a snapshot, and keep its credit as
+     * pending.
+     * @param requestId the unique ID of the transfer
+     * @param fromID    the UUID of the account to transfer from
+     * @param index     the index of the transaction in the account
+     * @param timestamp the timestamp in epoch milliseconds
+     * @param amount    the amount transferred in cents
+     * @param toID      the UUID of the account of the other bank
+     * @throws IOException if earlier transactions of the account are missing
+     */
+    void replayTransferOut(String requestId, String fromID, int index, long timestamp,
+                           long amount, String toID) throws IOException {
+        Account from = getExistingAccount(fromID);
+        from.replayTransaction(index, timestamp, -amount, transferToMemo(toID));
+        from.putRequest(requestId, timestamp, 0);
+        pendingCredits.put(requestId, new PendingCredit(requestId, fromID, toID, amount));
+    }
+
+    /**
+     * Forget a pending credit which was done, from the log.
+     * @param requestId the unique ID of the transfer
+     */
+    void replayCreditDone(String requestId) {
+        pendingCredits.remove(requestId);
+    }
+
+    /**
+     * Add the incoming transaction of a transfer from another bank from the
+     * log, unless the account already has it from a snapshot, and keep its
+     * result.
+     * @param requestId the unique ID of the transfer
+     * @param toID      the UUID of the account to transfer to
+     * @param index     the index of the transaction in the account
+     * @param timestamp the timestamp in epoch milliseconds
+     * @param amount    the amount transferred in cents
+     * @param fromID    the UUID of the account of the other bank
+     * @throws IOException if earlier transactions of the account are missing
+     */
+    void replayCreditIn(String requestId, String toID, int index, long timestamp,
+                        long amount, String fromID) throws IOException {
+        getExistingAccount(toID).replayTransaction(index, timestamp, amount, transferFromMemo(fromID));
+        credits.put(requestId, 0L);
+    }
+
+    /**
+     * Keep a refused credit from another bank, from the log.
+     * @param requestId the unique ID of the transfer
+     */
+    void replayCreditRefused(String requestId) {
+        credits.put(requestId, RequestTable.REJECTED);
+    }
+
+    /**
+     * Forget the result of a credit from another bank, from the log.
+     * @param requestId the unique ID of the transfer
+     */
+    void replayCreditForget(String requestId) {
+        credits.remove(requestId);
+    }
+
+    /**
+     * Give the amount of a refused credit back from the log, unless the
+     * account already has the refund from a snapshot, and remember the
+     * outcome of the transfer.
+     * @param requestId the unique ID of the transfer
+     * @param fromID    the UUID of the account the amount was withdrawn from
+     * @param index     the index of the refund in the account
+     * @param timestamp the timestamp in epoch milliseconds
+     * @param amount    the amount given back in cents
+     * @param toID      the UUID of the account of the other bank
+     * @throws IOException if earlier transactions of the account are missing
+     */
+    void replayCreditRefund(String requestId, String fromID, int index, long timestamp,
+                            long amount, String toID) throws IOException {
+        Account from = getExistingAccount(fromID);
+        from.replayTransaction(index, timestamp, amount, transferFromMemo(toID));
+        from.updateRequest(requestId, RequestTable.REFUNDED);
+        pendingCredits.remove(requestId);
+    }
+
+    /**
+     * Add a transaction of a client request from the log, unless the
+     * account already has it from a snapshot, and remember the request.
+     * @param requestId the unique ID of the request
+     * @param accountID the UUID of the account
+     * @param index     the index of the transaction in the account
+     * @param timestamp the timestamp in epoch milliseconds
+     * @param amount    the amount in cents
+     * @param memo      the transaction memo
+     * @throws IOException if earlier transactions of the account are missing
+     */
+    void replayRequest(String requestId, String accountID, int index, long timestamp,
+                       long amount, String memo) throws IOException {
+        Account account = getExistingAccount(accountID);
+        account.replayTransaction(index, timestamp, amount, memo);
+        account.putRequest(requestId, timestamp, 0);
+    }
+
+    static String transferToMemo(String toID) {
+        return SharedMemoDictionary.TRANSFER_TO + toID;
+    }
+
+    static String transferFromMemo(String fromID) {
+        return SharedMemoDictionary.TRANSFER_FROM + fromID;
+    }
+
+    /**
+     * Get the account with a particular UUID, which must exist.
+     * @param accountID the UUID of the account
+     * @return          the Account object
+     */
+    private Account getExistingAccount(String accountID) {
+        Account account = getAccount(accountID);
+        if (account == null) {
+            throw new IllegalArgumentException("No account with ID " + accountID);
+        }
+        return account;
     }
 
     /**
@@ -102,9 +1154,9 @@ public class Bank {
      */
     public User addUser(String firstName, String lastName, String pin) {
 
-        // Create a new User object and add it to out list
+        // Create a new User object, log it and add it to out list
         User newUser = new User(firstName, lastName, pin, this);
-        this.users.add(newUser);
+        putUser(newUser);
 
         // Create a savings account for the user and add to User and Bank
         // accounts lists
@@ -115,6 +1167,133 @@ public class Bank {
         return newUser;
     }
 
+    /**
+     * Perform an action for every user of the bank. Users of one directory
+     * stripe are visited under its lock, so the action must not use the bank.
+     * @param action    the action to perform
+     */
+    void forEachUser(Consumer<User> action) {
+        users.forEachValue(action);
+    }
+
+    /**
+     * Get all accounts of the bank, in no particular order.
+     * @return the list of accounts
+     */
+    List<Account> getAccounts() {
+        List<Account> result = new ArrayList<>();
+        accounts.forEachValue(result::add);
+        return result;
+    }
+
+    /**
+     * Log a new user and add it to the directory without waiting for the
+     * log. The UUID of the user must be already reserved.
+     * @param user  the user to add
+     * @return      the sequence number of the log record, or 0
+     */
+    long putUser(User user) {
+        long seq = 0;
+        directoryLock.readLock().lock();
+        try {
+            if (journal != null) {
+                seq = journal.logUser(user);
+            }
+            this.users.put(parseUUID(user.getUUID(), USER_UUID_LENGTH), user);
+        } finally {
+            directoryLock.readLock().unlock();
+        }
+        return seq;
+    }
+
+    /**
+     * Add a user restored from a snapshot or the log.
+     * @param user  the user to add
+     */
+    void restoreUser(User user) {
+        long uuid = parseUUID(user.getUUID(), USER_UUID_LENGTH);
+        this.userUUIDs.add(uuid);
+        this.users.put(uuid, user);
+    }
+
+    /**
+     * Add an account restored from a snapshot or the log.
+     * @param accountID     the UUID of the account
+     * @param holderID      the UUID of the user that holds the account
+     * @param name          the name of the account
+     * @param transactions  the store with the transactions of the account
+     * @throws IOException  if the holder of the account is not restored
+     */
+    void restoreAccount(String accountID, String holderID, String name,
+                        TransactionStore transactions) throws IOException {
+        long uuid = parseUUID(accountID, ACCOUNT_UUID_LENGTH);
+        User holder = getUser(holderID);
+        if (holder == null) {
+            throw new IOException(String.format("Holder %s of account %s is not found",
+                    holderID, accountID));
+        }
+        Account account = new Account(name, holder, accountID, transactions);
+
+        // Accounts replicated into an open bank log their later transactions
+        if (journal != null) {
+            account.attachJournal(journal);
+        }
+        account.attachAudit(auditLog);
+        account.attachRules(rules);
+        account.attachSegments(segmentStore);
+        this.accountUUIDs.add(uuid);
+        holder.addAccount(account);
+        this.accounts.put(uuid, account);
+    }
+
+    /**
+     * Wait until a log record is on disk, if the bank is durable.
+     * @param seq   the sequence number of the record, 0 for none
+     */
+    void sync(long seq) {
+        if (seq != 0) {
+            journal.sync(seq);
+        }
+    }
+
+    /**
+     * Append records received from the primary of the bank to the log and
+     * apply them, see WriteAheadLog.Replica. The bank must not be changed
+     * otherwise meanwhile, so its log stays a copy of the primary's one.
+     * @param records   the framed records
+     * @return          the length of the log after the records, which are
+     *                  on disk
+     * @throws IOException if the records are malformed or can't be written
+     */
+    long replicate(byte[] records) throws IOException {
+        sync(requireJournal().appendReplicated(records, this));
+        return journal.durablePosition();
+    }
+
+    /**
+     * Get the length of the log which is on disk.
+     * @return the length in bytes
+     */
+    long journalPosition() {
+        return requireJournal().durablePosition();
+    }
+
+    /**
+     * Start sending every record written to the log to a replica.
+     * @param replica   the replica
+     * @param position  the length of the log the replica already has
+     */
+    void attachReplica(WriteAheadLog.Replica replica, long position) {
+        requireJournal().attachReplica(replica, position);
+    }
+
+    private WriteAheadLog requireJournal() {
+        if (journal == null) {
+            throw new IllegalStateException("Bank " + name + " has no log");
+        }
+        return journal;
+    }
+
     /**
      * Get the User object associated with a particular userID and pin,
      * if the are valid
@@ -125,16 +1304,20 @@ public class Bank {
      */
     public User userLogin(String userID, String pin) {
 
-        // Search through list of users
-        for (User user : users) {
+        long start = System.nanoTime();
 
-            // Check user ID is correct
-            if (user.getUUID().compareTo(userID) == 0 && user.validatePin(pin)) {
-                return user;
-            }
+        // Look up the user by ID, ill-formed IDs never match, so unknown
+        // users are rejected before any hashing
+        User user = getUser(userID);
+
+        // Check pin is correct on the verification pool
+        if (user != null && pinVerifier.verify(user, pin)) {
+            Metrics.LOGIN.record(start);
+            return user;
         }
 
-        // If we have not fount the user or have an incorrect pin
+        // If we have not found the user or have an incorrect pin
+        Metrics.LOGIN.recordFailure(start);
         return null;
     }
 }
@@ -0,0 +1,364 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  Binary snapshot of a Bank, which is loaded through FileChannel.map.
+ *  <p>
+ *  The file starts with a header: int magic, int version, long offset of
+ *  the log tail to replay after the snapshot, long offset of the metadata.
+ *  Then go transaction history blocks of accounts (see MappedHistory),
+ *  none of them crosses a REGION_SIZE boundary, so every block is inside
+ *  one mapped region. The metadata at the end is a sequence of user and
+ *  account records, a user always comes before its accounts. An account
+ *  record ends with the recent client requests of the account (see
+ *  RequestTable). Pending credits of transfers to other banks (see
+ *  PendingCredit) and the results of credits from other banks (see
+ *  Bank.applyCredit) come after all accounts.
+ *  <p>
+ *  A snapshot is fuzzy: accounts are copied one by one while sessions
+ *  keep working. Changes made meanwhile are in the log after the snapshot
+ *  offset, and the log replay skips the ones already in the snapshot.
+ */
+public class BankSnapshot {
+
+    private static final int MAGIC = 0x41544D53;
+
+    private static final int VERSION = 6;
+
+    /**
+     * The oldest version which can be loaded, its history blocks have no
+     * chunk timestamps. Versions before 3 have no client requests, version
+     * 3 has them as separate records of request and account IDs.
+     */
+    private static final int MIN_VERSION = 1;
+
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + 2 * Long.BYTES;
+
+    /**
+     * The size of one mapped region of the file.
+     */
+    static final long REGION_SIZE = 1L << 30;
+
+    private static final byte END = 0;
+    private static final byte USER = 1;
+    private static final byte ACCOUNT = 2;
+
+    /**
+     * The record of a client request in version 3.
+     */
+    private static final byte REQUEST = 3;
+
+    private static final int REQUESTS_VERSION = 4;
+
+    /**
+     * The results of requests in an account record, versions 4 and 5
+     * write a boolean, which is DONE or REJECTED.
+     */
+    private static final byte DONE = 0;
+    private static final byte REJECTED = 1;
+    private static final byte REFUNDED = 2;
+
+    /**
+     * The record of a pending credit, since version 5.
+     */
+    private static final byte PENDING_CREDIT = 4;
+
+    /**
+     * The record of the result of a credit from another bank, since
+     * version 6.
+     */
+    private static final byte CREDIT_RESULT = 5;
+
+    private BankSnapshot() {
+    }
+
+    /**
+     * Write a snapshot of a bank. The snapshot is written to a temporary
+     * file first and then moved over the old one, so a crash never leaves
+     * a broken snapshot.
+     * @param bank          the bank to write
+     * @param file          the snapshot file
+     * @param journalOffset the offset of the log tail to replay after the
+     *                      snapshot
+     * @throws IOException if the snapshot can't be written
+     */
+    static void write(Bank bank, Path file, long journalOffset) throws IOException {
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        Path metaFile = file.resolveSibling(file.getFileName() + ".meta.tmp");
+
+        try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long metaOffset;
+            try (DataOutputStream meta = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(metaFile)))) {
+                metaOffset = writeBlocks(bank, channel, meta);
+
+                // Credits done after the log offset are done again on
+                // replay, which the other bank ignores
+                for (PendingCredit credit : bank.getPendingCredits()) {
+                    meta.writeByte(PENDING_CREDIT);
+                    meta.writeUTF(credit.getRequestId());
+                    meta.writeUTF(credit.getFromID());
+                    meta.writeUTF(credit.getToID());
+                    meta.writeLong(credit.getAmount());
+                }
+                for (Map.Entry<String, Boolean> result : bank.getCreditResults().entrySet()) {
+                    meta.writeByte(CREDIT_RESULT);
+                    meta.writeUTF(result.getKey());
+                    meta.writeBoolean(result.getValue());
+                }
+                meta.writeByte(END);
+            }
+
+            // Append the metadata after the blocks
+            try (FileChannel metaChannel = FileChannel.open(metaFile, StandardOpenOption.READ)) {
+                long size = metaChannel.size();
+                for (long done = 0; done < size; ) {
+                    done += channel.transferFrom(metaChannel, metaOffset + done, size - done);
+                }
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(journalOffset).putLong(metaOffset).flip();
+            writeFully(channel, header, 0);
+            channel.force(true);
+        } finally {
+            Files.deleteIfExists(metaFile);
+        }
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Write history blocks of all accounts to the file and their metadata
+     * to the metadata stream.
+     * @param bank      the bank to write
+     * @param channel   the snapshot file
+     * @param meta      the metadata stream
+     * @return          the offset after the last block
+     * @throws IOException if the snapshot can't be written
+     */
+    private static long writeBlocks(Bank bank, FileChannel channel, DataOutputStream meta)
+            throws IOException {
+        long position = HEADER_SIZE;
+        LongHashSet writtenUsers = new LongHashSet();
+        LongHashSet writtenAccounts = new LongHashSet();
+
+        // Users with their accounts in the order the users see them
+        List<User> users = new ArrayList<>(bank.getNumOfUsers());
+        bank.forEachUser(users::add);
+        for (User user : users) {
+            writeUser(meta, user);
+            writtenUsers.add(Long.parseLong(user.getUUID()));
+            for (int i = 0; i < user.getNumAccounts(); i++) {
+                Account account = bank.getAccount(user.getAccountUUID(i));
+                if (account != null && account.getHolder() == user) {
+                    position = writeAccount(channel, meta, account, position);
+                    writtenAccounts.add(Long.parseLong(account.getUUID()));
+                }
+            }
+        }
+
+        // Accounts added while the users were written
+        for (Account account : bank.getAccounts()) {
+            if (writtenAccounts.contains(Long.parseLong(account.getUUID()))) {
+                continue;
+            }
+            User holder = account.getHolder();
+            if (writtenUsers.add(Long.parseLong(holder.getUUID()))) {
+                writeUser(meta, holder);
+            }
+            position = writeAccount(channel, meta, account, position);
+        }
+        return position;
+    }
+
+    private static void writeUser(DataOutputStream meta, User user) throws IOException {
+        byte[] pinHash = user.getPinHash();
+        meta.writeByte(USER);
+        meta.writeUTF(user.getUUID());
+        meta.writeUTF(user.getFirstName());
+        meta.writeUTF(user.getLastName());
+        meta.writeShort(pinHash.length);
+        meta.write(pinHash);
+    }
+
+    /**
+     * Write the history block of an account and its metadata.
+     * @param channel   the snapshot file
+     * @param meta      the metadata stream
+     * @param account   the account to write
+     * @param position  the offset where the block may start
+     * @return          the offset after the block
+     * @throws IOException if the snapshot can't be written
+     */
+    private static long writeAccount(FileChannel channel, DataOutputStream meta,
+                                     Account account, long position) throws IOException {
+        // Take the size of the history with the balance and the requests,
+        // the history is written after the lock is released
+        TransactionStore store;
+        long balance;
+        int size;
+        ByteArrayOutputStream requestBytes = new ByteArrayOutputStream();
+        DataOutputStream requests = new DataOutputStream(requestBytes);
+        int[] numRequests = new int[1];
+        account.getLock().lock();
+        try {
+            store = account.getTransactionStore();
+            balance = store.balance();
+            size = store.size();
+            account.forEachRequest((fingerprint, time, result) -> {
+                try {
+                    requests.writeLong(fingerprint);
+                    requests.writeLong(time);
+                    requests.writeByte(result == RequestTable.REJECTED ? REJECTED
+                            : result == RequestTable.REFUNDED ? REFUNDED : DONE);
+                    numRequests[0]++;
+                } catch (IOException e) {
+                    // Writing to a byte array doesn't fail
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } finally {
+            account.getLock().unlock();
+        }
+
+        MappedHistory.BlockWriter block = new MappedHistory.BlockWriter(store, size, account.getLock());
+        long length = block.length();
+        if (length > REGION_SIZE) {
+            throw new IOException("History of account " + account.getUUID()
+                    + " is too large for a snapshot");
+        }
+        // Move the block to the next region, if it would cross the boundary
+        if (position / REGION_SIZE != (position + length - 1) / REGION_SIZE) {
+            position = (position / REGION_SIZE + 1) * REGION_SIZE;
+        }
+        channel.position(position);
+        block.writeTo(channel);
+
+        meta.writeByte(ACCOUNT);
+        meta.writeUTF(account.getUUID());
+        meta.writeUTF(account.getHolder().getUUID());
+        meta.writeUTF(account.getName());
+        meta.writeLong(balance);
+        meta.writeInt(size);
+        meta.writeLong(position);
+        meta.writeInt(numRequests[0]);
+        requestBytes.writeTo(meta);
+        return position + length;
+    }
+
+    /**
+     * Load a snapshot into an empty bank. Histories of accounts stay in the
+     * mapped file and are read on demand.
+     * @param file  the snapshot file
+     * @param bank  the bank to restore
+     * @return      the offset of the log tail to replay after the snapshot
+     * @throws IOException if the snapshot can't be read
+     */
+    static long load(Path file, Bank bank) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new IOException("Snapshot " + file + " is truncated");
+                }
+            }
+            header.flip();
+            int magic = header.getInt();
+            int version = header.getInt();
+            if (magic != MAGIC || version < MIN_VERSION || version > VERSION) {
+                throw new IOException("Unknown snapshot format of " + file);
+            }
+            long journalOffset = header.getLong();
+            long metaOffset = header.getLong();
+
+            // Map the blocks, mappings stay valid after the channel is closed
+            List<MappedByteBuffer> regions = new ArrayList<>();
+            for (long start = 0; start < metaOffset; start += REGION_SIZE) {
+                regions.add(channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(REGION_SIZE, metaOffset - start)));
+            }
+
+            channel.position(metaOffset);
+            DataInputStream meta = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+            for (byte type = meta.readByte(); type != END; type = meta.readByte()) {
+                if (type == USER) {
+                    String uuid = meta.readUTF();
+                    String firstName = meta.readUTF();
+                    String lastName = meta.readUTF();
+                    byte[] pinHash = new byte[meta.readUnsignedShort()];
+                    meta.readFully(pinHash);
+                    bank.restoreUser(new User(firstName, lastName, uuid, pinHash));
+                } else if (type == ACCOUNT) {
+                    String uuid = meta.readUTF();
+                    String holderID = meta.readUTF();
+                    String name = meta.readUTF();
+                    long balance = meta.readLong();
+                    int size = meta.readInt();
+                    long offset = meta.readLong();
+                    MappedHistory history = size == 0 ? null : new MappedHistory(
+                            regions.get((int) (offset / REGION_SIZE)), (int) (offset % REGION_SIZE), size,
+                            version > MIN_VERSION);
+                    bank.restoreAccount(uuid, holderID, name, new TransactionStore(history, balance));
+                    if (version >= REQUESTS_VERSION) {
+                        Account account = bank.getAccount(uuid);
+                        for (int i = meta.readInt(); i > 0; i--) {
+                            long fingerprint = meta.readLong();
+                            long time = meta.readLong();
+                            byte kind = meta.readByte();
+                            long result = kind == REJECTED ? RequestTable.REJECTED
+                                    : kind == REFUNDED ? RequestTable.REFUNDED : 0;
+                            account.restoreRequest(fingerprint, time, result);
+                        }
+                    }
+                } else if (type == REQUEST) {
+                    // The time of the request is unknown, keep it for the
+                    // whole retention
+                    String key = meta.readUTF();
+                    int slash = key.lastIndexOf('/');
+                    Account account = bank.getAccount(key.substring(slash + 1));
+                    if (account != null) {
+                        account.restoreRequest(RequestTable.fingerprint(key.substring(0, slash)),
+                                System.currentTimeMillis(), 0);
+                    }
+                } else if (type == PENDING_CREDIT) {
+                    String requestId = meta.readUTF();
+                    String fromID = meta.readUTF();
+                    String toID = meta.readUTF();
+                    long amount = meta.readLong();
+                    bank.restorePendingCredit(new PendingCredit(requestId, fromID, toID, amount));
+                } else if (type == CREDIT_RESULT) {
+                    String requestId = meta.readUTF();
+                    bank.restoreCreditResult(requestId, meta.readBoolean());
+                } else {
+                    throw new IOException("Unknown snapshot record type " + type);
+                }
+            }
+            return journalOffset;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,486 @@
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ *  Streaming bulk import of users, accounts and transactions into a Bank.
+ *  <p>
+ *  The CSV form has one record per line, the memo is the last field and may
+ *  contain commas:
+ *  <pre>
+ *  U,ref,firstName,lastName,pin
+ *  A,ref,userRef,name
+ *  T,accountRef,epochMillis,amount,memo
+ *  </pre>
+ *  The binary form is a sequence of the same records written with
+ *  DataOutputStream: byte type ('U', 'A' or 'T'), then the fields as UTF
+ *  strings, except the timestamp and the amount in cents as longs.
+ *  <p>
+ *  Refs name users and accounts inside the feed, they are mapped to new
+ *  bank UUIDs. A ref which is not in the feed is looked up as the UUID of
+ *  an existing user or account, so daily feeds may add transactions to
+ *  existing accounts.
+ *  <p>
+ *  Records are read in batches. Batches are parsed and pins are hashed on
+ *  all cores, then the batches are applied in order by the calling thread
+ *  with UUIDs reserved per batch. Nothing is printed per record and a
+ *  durable bank syncs its log once per batch. If a record is malformed the
+ *  import stops with IOException, the batches before it stay applied.
+ */
+public class BulkLoader {
+
+    /**
+     * The number of records in a batch.
+     */
+    static final int BATCH_SIZE = 8192;
+
+    private static final byte USER = 'U';
+    private static final byte ACCOUNT = 'A';
+    private static final byte TRANSACTION = 'T';
+
+    private final Bank bank;
+
+    private final int threads;
+
+    /**
+     * Users of the feed by ref.
+     * */
+    private final Map<String, User> users = new HashMap<>();
+
+    /**
+     * Accounts of the feed by ref.
+     * */
+    private final Map<String, Account> accounts = new HashMap<>();
+
+    private long numUsers;
+    private long numAccounts;
+    private long numTransactions;
+
+    /**
+     * Create a loader using all processors.
+     * @param bank  the bank to load to
+     */
+    public BulkLoader(Bank bank) {
+        this(bank, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a loader.
+     * @param bank      the bank to load to
+     * @param threads   the number of parsing threads
+     */
+    public BulkLoader(Bank bank, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of threads must be positive: " + threads);
+        }
+        this.bank = bank;
+        this.threads = threads;
+    }
+
+    /**
+     * Pre-size the directories of the bank for the expected size of the
+     * feed, so they are not rehashed during the import.
+     * @param expectedUsers     the expected number of new users
+     * @param expectedAccounts  the expected number of new accounts
+     */
+    public void expect(int expectedUsers, int expectedAccounts) {
+        bank.ensureCapacity(bank.getNumOfUsers() + expectedUsers,
+                bank.getNumOfAccounts() + expectedAccounts);
+    }
+
+    /**
+     * Import records in CSV form.
+     * @param in    the reader of the records
+     * @throws IOException if the input can't be read or is malformed
+     */
+    public void loadCsv(Reader in) throws IOException {
+        BufferedReader reader = in instanceof BufferedReader
+                ? (BufferedReader) in : new BufferedReader(in, 1 << 16);
+        long[] lineNumber = {1};
+        run(() -> {
+            Batch batch = new Batch(lineNumber[0], true);
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                batch.lines[batch.size++] = line;
+                if (batch.size == BATCH_SIZE) {
+                    break;
+                }
+            }
+            lineNumber[0] += batch.size;
+            return batch.size == 0 ? null : batch;
+        });
+    }
+
+    /**
+     * Import records in binary form.
+     * @param in    the stream of the records, which should be buffered
+     * @throws IOException if the input can't be read or is malformed
+     */
+    public void loadBinary(DataInputStream in) throws IOException {
+        long[] recordNumber = {1};
+        run(() -> {
+            Batch batch = new Batch(recordNumber[0], false);
+            while (batch.size < BATCH_SIZE) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                int i = batch.size++;
+                batch.types[i] = (byte) type;
+                try {
+                    switch (type) {
+                        case USER:
+                            batch.refs[i] = in.readUTF();
+                            batch.texts[i] = in.readUTF();
+                            batch.moreTexts[i] = in.readUTF();
+                            batch.pins[i] = in.readUTF();
+                            break;
+                        case ACCOUNT:
+                            batch.refs[i] = in.readUTF();
+                            batch.texts[i] = in.readUTF();
+                            batch.moreTexts[i] = in.readUTF();
+                            break;
+                        case TRANSACTION:
+                            batch.refs[i] = in.readUTF();
+                            batch.timestamps[i] = in.readLong();
+                            batch.amounts[i] = in.readLong();
+                            batch.texts[i] = in.readUTF();
+                            break;
+                        default:
+                            throw batch.malformed(i, "unknown record type " + type);
+                    }
+                } catch (EOFException e) {
+                    throw batch.malformed(i, "truncated record");
+                }
+            }
+            recordNumber[0] += batch.size;
+            return batch.size == 0 ? null : batch;
+        });
+    }
+
+    /**
+     * Get the number of users imported so far.
+     * @return the number of users
+     */
+    public long getNumUsers() {
+        return numUsers;
+    }
+
+    /**
+     * Get the number of accounts imported so far.
+     * @return the number of accounts
+     */
+    public long getNumAccounts() {
+        return numAccounts;
+    }
+
+    /**
+     * Get the number of transactions imported so far.
+     * @return the number of transactions
+     */
+    public long getNumTransactions() {
+        return numTransactions;
+    }
+
+    /**
+     * Get the bank UUID of a user of the feed.
+     * @param ref   the ref of the user in the feed
+     * @return      the UUID, or null if there is no such user
+     */
+    public String getUserUUID(String ref) {
+        User user = users.get(ref);
+        return user == null ? null : user.getUUID();
+    }
+
+    /**
+     * Get the bank UUID of an account of the feed.
+     * @param ref   the ref of the account in the feed
+     * @return      the UUID, or null if there is no such account
+     */
+    public String getAccountUUID(String ref) {
+        Account account = accounts.get(ref);
+        return account == null ? null : account.getUUID();
+    }
+
+    /**
+     * Reader of the next batch of raw records.
+     */
+    private interface BatchReader {
+        Batch next() throws IOException;
+    }
+
+    /**
+     * Read batches, prepare them on the pool and apply them in order. At
+     * most two batches per thread are in flight, so memory stays bounded.
+     * @param reader    the reader of batches
+     * @throws IOException if the input can't be read or is malformed
+     */
+    private void run(BatchReader reader) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "bulk-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ArrayDeque<Future<Batch>> inFlight = new ArrayDeque<>();
+        try {
+            for (Batch batch = reader.next(); batch != null; batch = reader.next()) {
+                inFlight.add(pool.submit(batch::prepare));
+                if (inFlight.size() >= 2 * threads) {
+                    apply(await(inFlight.poll()));
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                apply(await(inFlight.poll()));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static Batch await(Future<Batch> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Bulk import interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Add the records of a prepared batch to the bank.
+     * @param batch the batch
+     * @throws IOException if a record refers to an unknown user or account
+     */
+    private void apply(Batch batch) throws IOException {
+
+        // Reserve UUIDs for the whole batch at once
+        int newUsers = 0;
+        int newAccounts = 0;
+        for (int i = 0; i < batch.size; i++) {
+            if (batch.types[i] == USER) {
+                newUsers++;
+            } else if (batch.types[i] == ACCOUNT) {
+                newAccounts++;
+            }
+        }
+        String[] userUUIDs = bank.reserveUserUUIDs(newUsers);
+        String[] accountUUIDs = bank.reserveAccountUUIDs(newAccounts);
+        newUsers = 0;
+        newAccounts = 0;
+
+        long seq = 0;
+        for (int i = 0; i < batch.size; i++) {
+            String ref = batch.refs[i];
+            switch (batch.types[i]) {
+                case USER: {
+                    if (users.containsKey(ref)) {
+                        throw batch.malformed(i, "duplicate user " + ref);
+                    }
+                    User user = new User(batch.texts[i], batch.moreTexts[i],
+                            userUUIDs[newUsers++], batch.pinHashes[i]);
+                    seq = Math.max(seq, bank.putUser(user));
+                    users.put(ref, user);
+                    numUsers++;
+                    break;
+                }
+                case ACCOUNT: {
+                    if (accounts.containsKey(ref)) {
+                        throw batch.malformed(i, "duplicate account " + ref);
+                    }
+                    User holder = users.get(batch.texts[i]);
+                    if (holder == null) {
+                        holder = bank.getUser(batch.texts[i]);
+                    }
+                    if (holder == null) {
+                        throw batch.malformed(i, "unknown user " + batch.texts[i]);
+                    }
+                    Account account = new Account(batch.moreTexts[i], holder, accountUUIDs[newAccounts++]);
+                    holder.addAccount(account);
+                    seq = Math.max(seq, bank.putAccount(account));
+                    accounts.put(ref, account);
+                    numAccounts++;
+                    break;
+                }
+                case TRANSACTION: {
+                    Account account = accounts.get(ref);
+                    if (account == null) {
+                        account = bank.getAccount(ref);
+                    }
+                    if (account == null) {
+                        throw batch.malformed(i, "unknown account " + ref);
+                    }
+                    seq = Math.max(seq, account.importTransaction(
+                            batch.timestamps[i], batch.amounts[i], batch.texts[i]));
+                    account.spill();
+                    numTransactions++;
+                    break;
+                }
+                default:
+                    // Blank line
+                    break;
+            }
+        }
+
+        // One log sync for the whole batch
+        bank.sync(seq);
+    }
+
+    /**
+     * A batch of records, stored by columns. Fields which a record type
+     * doesn't have are left empty.
+     */
+    private class Batch {
+
+        /**
+         * The line or record number of the first record.
+         * */
+        final long first;
+
+        /**
+         * Raw CSV lines, or null for binary input.
+         * */
+        final String[] lines;
+
+        int size;
+
+        final byte[] types = new byte[BATCH_SIZE];
+
+        /**
+         * Refs of users and accounts, account refs of transactions.
+         * */
+        final String[] refs = new String[BATCH_SIZE];
+
+        /**
+         * First names, user refs of accounts, memos.
+         * */
+        final String[] texts = new String[BATCH_SIZE];
+
+        /**
+         * Last names, account names.
+         * */
+        final String[] moreTexts = new String[BATCH_SIZE];
+
+        final String[] pins = new String[BATCH_SIZE];
+
+        final byte[][] pinHashes = new byte[BATCH_SIZE][];
+
+        final long[] timestamps = new long[BATCH_SIZE];
+
+        final long[] amounts = new long[BATCH_SIZE];
+
+        /**
+         * The position of the next field in the line being parsed.
+         * */
+        private int cursor;
+
+        Batch(long first, boolean csv) {
+            this.first = first;
+            this.lines = csv ? new String[BATCH_SIZE] : null;
+        }
+
+        /**
+         * Parse the lines, if any, and hash the pins. Runs on the pool.
+         * @return this batch
+         * @throws IOException if a record is malformed
+         */
+        Batch prepare() throws IOException {
+            int iterations = bank.getPinIterations();
+            Map<String, String> canonical = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                if (lines != null) {
+                    parseLine(i, lines[i]);
+                    lines[i] = null;
+                }
+                // Repeated refs and memos share one instance with its hash
+                // computed here, so lookups on the applying thread are cheap
+                refs[i] = canonical(canonical, refs[i]);
+                texts[i] = canonical(canonical, texts[i]);
+                if (types[i] == USER) {
+                    pinHashes[i] = PinHash.create(pins[i], iterations);
+                    pins[i] = null;
+                }
+            }
+            return this;
+        }
+
+        private String canonical(Map<String, String> canonical, String text) {
+            if (text == null) {
+                return null;
+            }
+            String existing = canonical.putIfAbsent(text, text);
+            return existing == null ? text : existing;
+        }
+
+        private void parseLine(int i, String line) throws IOException {
+            if (line.isEmpty()) {
+                return;
+            }
+            if (line.length() < 2 || line.charAt(1) != ',') {
+                throw malformed(i, "no record type");
+            }
+            byte type = (byte) line.charAt(0);
+            types[i] = type;
+            cursor = 2;
+            switch (type) {
+                case USER:
+                    refs[i] = field(i, line);
+                    texts[i] = field(i, line);
+                    moreTexts[i] = field(i, line);
+                    pins[i] = line.substring(cursor);
+                    break;
+                case ACCOUNT:
+                    refs[i] = field(i, line);
+                    texts[i] = field(i, line);
+                    moreTexts[i] = line.substring(cursor);
+                    break;
+                case TRANSACTION:
+                    refs[i] = field(i, line);
+                    try {
+                        timestamps[i] = Long.parseLong(field(i, line));
+                        amounts[i] = Money.parse(field(i, line));
+                    } catch (NumberFormatException e) {
+                        throw malformed(i, e.getMessage());
+                    }
+                    texts[i] = line.substring(cursor);
+                    break;
+                default:
+                    throw malformed(i, "unknown record type " + line.charAt(0));
+            }
+        }
+
+        /**
+         * Get the field at the cursor and move the cursor after its comma.
+         */
+        private String field(int i, String line) throws IOException {
+            int end = line.indexOf(',', cursor);
+            if (end < 0) {
+                throw malformed(i, "too few fields");
+            }
+            String field = line.substring(cursor, end);
+            cursor = end + 1;
+            return field;
+        }
+
+        IOException malformed(int i, String message) {
+            return new IOException("Record " + (first + i) + ": " + message);
+        }
+    }
+}
@@ -0,0 +1,363 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ *  Client of a cluster of banks. Every request is sent to the primary of
+ *  the range of its account, found in the ClusterMap. Requests refused by a
+ *  node which doesn't own the range any more, and requests whose connection
+ *  failed, are sent again after a pause, since the map may have changed.
+ *  Changes of balances carry request IDs, so repeating them is safe. A
+ *  caller which still gets an error repeats the request with the same ID
+ *  later.
+ */
+public class ClusterClient implements Closeable {
+
+    /**
+     * The number of times a request is sent before giving up.
+     */
+    static final int MAX_ATTEMPTS = 8;
+
+    /**
+     * The pause before the second attempt, it grows with every attempt.
+     */
+    static final long RETRY_DELAY_MILLIS = 25;
+
+    /**
+     * The longest wait for a connection to a node.
+     */
+    static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * The longest wait for a response, a stalled node fails the attempt
+     * like a dropped connection.
+     */
+    static final int READ_TIMEOUT_MILLIS = 5000;
+
+    private final ClusterMap map;
+
+    /**
+     * Open connections which are not used now, by node address.
+     * */
+    private final ConcurrentHashMap<InetSocketAddress, Queue<Connection>> idle;
+
+    private volatile boolean closed;
+
+    /**
+     * Create a client of a cluster.
+     * @param map   the map of the cluster
+     */
+    public ClusterClient(ClusterMap map) {
+        this.map = map;
+        this.idle = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Create a new unique ID for a request.
+     * @return the request ID
+     */
+    public static String newRequestId() {
+        return Bank.newRequestId();
+    }
+
+    /**
+     * Open a new user with a savings account on the primary of a range.
+     * The request is not repeated once it was sent, since it has no ID.
+     * @param range     the index of the range
+     * @param firstName the user's first name
+     * @param lastName  the user's last name
+     * @param pin       the user's pin
+     * @return          the UUID of the savings account
+     */
+    public String openAccount(int range, String firstName, String lastName, String pin) {
+        return call(range, false, out -> {
+            out.writeByte(ClusterNode.OPEN_ACCOUNT);
+            out.writeUTF(firstName);
+            out.writeUTF(lastName);
+            out.writeUTF(pin);
+        }, (status, in) -> in.readUTF());
+    }
+
+    /**
+     * Get the balance of an account.
+     * @param accountID the UUID of the account
+     * @return          the balance in cents
+     */
+    public long getBalance(String accountID) {
+        return call(map.rangeOf(accountID), true, out -> {
+            out.writeByte(ClusterNode.BALANCE);
+            out.writeUTF(accountID);
+        }, (status, in) -> in.readLong());
+    }
+
+    /**
+     * Deposit funds to an account, at most once per request ID.
+     * @param requestId the unique ID of the request
+     * @param accountID the UUID of the account
+     * @param amount    the amount in cents
+     * @param memo      the transaction memo
+     */
+    public void deposit(String requestId, String accountID, long amount, String memo) {
+        if (amount < 0) {
+            throw new IllegalArgumentException("Amount must not be negative: " + amount);
+        }
+        transact(requestId, accountID, amount, memo);
+    }
+
+    /**
+     * Withdraw funds from an account, at most once per request ID.
+     * @param requestId the unique ID of the request
+     * @param accountID the UUID of the account
+     * @param amount    the amount in cents
+     * @param memo      the transaction memo
+     * @return          true if the withdrawal is done, false if the rules of
+     *                  the bank refuse it
+     */
+    public boolean withdraw(String requestId, String accountID, long amount, String memo) {
+        if (amount < 0) {
+            throw new IllegalArgumentException("Amount must not be negative: " + amount);
+        }
+        return transact(requestId, accountID, -amount, memo);
+    }
+
+    private boolean transact(String requestId, String accountID, long amount, String memo) {
+        return call(map.rangeOf(accountID), true, out -> {
+            out.writeByte(ClusterNode.TRANSACTION);
+            out.writeUTF(requestId);
+            out.writeUTF(accountID);
+            out.writeLong(amount);
+            out.writeUTF(memo);
+        }, (status, in) -> status == ClusterNode.OK);
+    }
+
+    /**
+     * Transfer funds between any two accounts of the cluster, at most once
+     * per request ID. The transfer is sent to the node of the source account.
+     * @param requestId the unique ID of the request
+     * @param fromID    the UUID of the account to transfer from
+     * @param toID      the UUID of the account to transfer to
+     * @param amount    the amount in cents
+     * @return          true if the transfer is done, false if the rules of
+     *                  the bank refuse it
+     */
+    public boolean transfer(String requestId, String fromID, String toID, long amount) {
+        return call(map.rangeOf(fromID), true, out -> {
+            out.writeByte(ClusterNode.TRANSFER);
+            out.writeUTF(requestId);
+            out.writeUTF(fromID);
+            out.writeUTF(toID);
+            out.writeLong(amount);
+        }, (status, in) -> status == ClusterNode.OK);
+    }
+
+    /**
+     * Add the incoming transaction of a transfer on the node of the
+     * destination account, at most once per request ID.
+     * @param requestId the unique ID of the transfer
+     * @param toID      the UUID of the account to transfer to
+     * @param fromID    the UUID of the account to transfer from
+     * @param amount    the amount in cents
+     */
+    void credit(String requestId, String toID, String fromID, long amount) {
+        call(map.rangeOf(toID), true, out -> {
+            out.writeByte(ClusterNode.CREDIT);
+            out.writeUTF(requestId);
+            out.writeUTF(toID);
+            out.writeUTF(fromID);
+            out.writeLong(amount);
+        }, (status, in) -> null);
+    }
+
+    /**
+     * Let the node of the destination account forget the result of a
+     * credit, after the transfer is finished and the credit is never sent
+     * again.
+     * @param requestId the unique ID of the transfer
+     * @param toID      the UUID of the account transferred to
+     */
+    void forgetCredit(String requestId, String toID) {
+        call(map.rangeOf(toID), true, out -> {
+            out.writeByte(ClusterNode.FORGET_CREDIT);
+            out.writeUTF(requestId);
+            out.writeUTF(toID);
+        }, (status, in) -> null);
+    }
+
+    /**
+     * Close all idle connections. Requests which are running meanwhile close
+     * their connections when they finish.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Queue<Connection> connections : idle.values()) {
+            for (Connection connection; (connection = connections.poll()) != null; ) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Encoder of one request.
+     */
+    private interface RequestWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Decoder of the result of a response with status OK or REJECTED.
+     */
+    private interface ResponseReader<T> {
+        T read(byte status, DataInputStream in) throws IOException;
+    }
+
+    /**
+     * Send a request to the primary of a range and read the response,
+     * trying again while the range is not served or the connection fails.
+     * @param range         the index of the range
+     * @param idempotent    whether the request may be sent again after it
+     *                      has reached the node
+     * @param writer        the encoder of the request
+     * @param reader        the decoder of the result
+     * @return              the result
+     * @throws IllegalArgumentException if the node refuses the request
+     * @throws UncheckedIOException if the range can't be reached
+     */
+    private <T> T call(int range, boolean idempotent, RequestWriter writer, ResponseReader<T> reader) {
+        String error = "no owner";
+        IOException cause = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                pause(attempt);
+            }
+            InetSocketAddress owner = map.getOwner(range);
+            if (owner == null) {
+                continue;
+            }
+
+            Connection connection = null;
+            boolean sent = false;
+            try {
+                connection = take(owner);
+                writer.write(connection.out);
+                connection.out.flush();
+                sent = true;
+                byte status = connection.in.readByte();
+                switch (status) {
+                    case ClusterNode.OK:
+                    case ClusterNode.REJECTED: {
+                        T result = reader.read(status, connection.in);
+                        release(owner, connection);
+                        return result;
+                    }
+                    case ClusterNode.NOT_OWNER:
+                        release(owner, connection);
+                        error = "node " + owner + " doesn't own the range";
+                        break;
+                    case ClusterNode.INVALID: {
+                        String message = connection.in.readUTF();
+                        release(owner, connection);
+                        throw new IllegalArgumentException(message);
+                    }
+                    case ClusterNode.FAILED:
+                        error = connection.in.readUTF();
+                        release(owner, connection);
+                        break;
+                    default:
+                        throw new IOException("Unknown cluster response status " + status);
+                }
+            } catch (IOException e) {
+                if (connection != null) {
+                    connection.close();
+                }
+                if (sent && !idempotent) {
+                    throw new UncheckedIOException("Request to node " + owner + " failed", e);
+                }
+                error = e.toString();
+                cause = e;
+            }
+        }
+        throw new UncheckedIOException(new IOException(
+                "Range " + range + " is not available: " + error, cause));
+    }
+
+    private static void pause(int attempt) {
+        try {
+            Thread.sleep(RETRY_DELAY_MILLIS * attempt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new IOException("Interrupted while waiting for the cluster"));
+        }
+    }
+
+    /**
+     * Take an idle connection to a node, or open a new one.
+     * @param address   the address of the node
+     * @return          the connection
+     * @throws IOException if the node can't be reached
+     */
+    private Connection take(InetSocketAddress address) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Cluster client is closed");
+        }
+        Queue<Connection> connections = idle.get(address);
+        Connection connection = connections == null ? null : connections.poll();
+        return connection != null ? connection : new Connection(address);
+    }
+
+    /**
+     * Return a connection after a complete response, for the next request.
+     * @param address       the address of the node
+     * @param connection    the connection
+     */
+    private void release(InetSocketAddress address, Connection connection) {
+        if (closed) {
+            connection.close();
+            return;
+        }
+        idle.computeIfAbsent(address, key -> new ConcurrentLinkedQueue<>()).add(connection);
+    }
+
+    /**
+     * Connection to a node.
+     */
+    private static class Connection {
+
+        private final Socket socket;
+
+        private final DataInputStream in;
+
+        private final DataOutputStream out;
+
+        Connection(InetSocketAddress address) throws IOException {
+            this.socket = new Socket();
+            try {
+                socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+                socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // The connection is dropped anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ *  Map of a cluster of banks. The space of account UUIDs is split into
+ *  ranges of equal size, and every range is owned by one node, the primary
+ *  of the range, which gives new accounts UUIDs only from its range.
+ *  Nodes and clients route requests by the map.
+ *  <p>
+ *  When a replica takes over a range, the owner of the range is changed.
+ *  Requests which still reach the old owner are refused, and the client
+ *  tries again with the new one.
+ */
+public class ClusterMap {
+
+    /**
+     * The number of possible account UUIDs.
+     */
+    private static final long UUID_SPACE = 10_000_000_000L;
+
+    /**
+     * The number of account UUIDs in one range, the last range may be
+     * shorter.
+     * */
+    private final long rangeSize;
+
+    /**
+     * The addresses of the primaries of the ranges, null while unknown.
+     * */
+    private final AtomicReferenceArray<InetSocketAddress> owners;
+
+    /**
+     * Create a map of a cluster with no known owners.
+     * @param numRanges the number of ranges
+     */
+    public ClusterMap(int numRanges) {
+        if (numRanges < 1) {
+            throw new IllegalArgumentException("Number of ranges must be positive: " + numRanges);
+        }
+        this.rangeSize = (UUID_SPACE + numRanges - 1) / numRanges;
+        this.owners = new AtomicReferenceArray<>(numRanges);
+    }
+
+    /**
+     * Create a map of a cluster with one range per owner.
+     * @param owners    the addresses of the primaries of the ranges
+     */
+    public ClusterMap(InetSocketAddress... owners) {
+        this(owners.length);
+        for (int i = 0; i < owners.length; i++) {
+            this.owners.set(i, owners[i]);
+        }
+    }
+
+    /**
+     * Get the number of ranges.
+     * @return the number of ranges
+     */
+    public int getNumRanges() {
+        return owners.length();
+    }
+
+    /**
+     * Get the range which an account belongs to.
+     * @param accountID the UUID of the account
+     * @return          the index of the range
+     * @throws IllegalArgumentException if the UUID is not valid
+     */
+    public int rangeOf(String accountID) {
+        long uuid = Bank.parseUUID(accountID, Bank.ACCOUNT_UUID_LENGTH);
+        if (uuid < 0) {
+            throw new IllegalArgumentException("Invalid account ID " + accountID);
+        }
+        return (int) (uuid / rangeSize);
+    }
+
+    /**
+     * Get the first numeric account UUID of a range.
+     * @param range the index of the range
+     * @return      the first UUID inclusive
+     */
+    public long rangeStart(int range) {
+        return range * rangeSize;
+    }
+
+    /**
+     * Get the end of a range.
+     * @param range the index of the range
+     * @return      the numeric account UUID after the last one of the range
+     */
+    public long rangeEnd(int range) {
+        return Math.min(UUID_SPACE, (range + 1) * rangeSize);
+    }
+
+    /**
+     * Get the primary of a range.
+     * @param range the index of the range
+     * @return      the address of the primary, or null if it is not known
+     */
+    public InetSocketAddress getOwner(int range) {
+        return owners.get(range);
+    }
+
+    /**
+     * Set the primary of a range, for example after its replica took over.
+     * @param range the index of the range
+     * @param owner the address of the new primary
+     */
+    public void setOwner(int range, InetSocketAddress owner) {
+        owners.set(range, owner);
+    }
+}
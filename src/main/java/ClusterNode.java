@@ -0,0 +1,651 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Node of a cluster of banks. A node holds one Bank and serves one range
+ *  of account UUIDs (see ClusterMap) over TCP, either as the primary of
+ *  the range or as its replica.
+ *  <p>
+ *  The primary sends every round of its log to the replica before the
+ *  changes count as durable (see WriteAheadLog), and the replica appends
+ *  the records to its own log as they are, so both logs stay byte copies.
+ *  A replica refuses requests of clients until it is promoted, which is
+ *  done by hand after the primary is lost.
+ *  <p>
+ *  Changes of balances carry request IDs chosen by the client, and every
+ *  transaction is applied once per request ID and account, so a client
+ *  which got no answer simply repeats the request with the same ID. A
+ *  transfer is sent to the node of the source account. Between accounts of
+ *  the node it is one Bank.transfer. Otherwise the node checks the
+ *  destination account, withdraws the amount and logs its credit as
+ *  pending in the same record (see Bank.transferOut), then credits it on
+ *  the node of the destination account with the same request ID. Credits
+ *  which could not be sent stay pending and are sent again every
+ *  CREDIT_RETRY_MILLIS, also by a replica after it is promoted. Credits
+ *  skip the rules of the bank, which the withdrawal has checked. The node
+ *  of the destination account logs the result of every credit and keeps
+ *  it until the source node has finished the transfer and tells it to
+ *  forget the credit, FORGET_DELAY_MILLIS later.
+ *  <p>
+ *  Every request is an opcode followed by its arguments, every response
+ *  is a status followed by the result, or by a message for INVALID and
+ *  FAILED.
+ */
+public class ClusterNode implements Closeable {
+
+    static final byte OPEN_ACCOUNT = 1;
+    static final byte BALANCE = 2;
+    static final byte TRANSACTION = 3;
+    static final byte TRANSFER = 4;
+    static final byte CREDIT = 5;
+    static final byte REPLICATE = 6;
+    static final byte FORGET_CREDIT = 7;
+
+    static final byte OK = 0;
+    static final byte REJECTED = 1;
+    static final byte NOT_OWNER = 2;
+    static final byte INVALID = 3;
+    static final byte FAILED = 4;
+
+    /**
+     * The period of sending pending credits again.
+     */
+    static final long CREDIT_RETRY_MILLIS = 1000;
+
+    /**
+     * The time from the end of a transfer to another node until that node
+     * forgets its credit. Copies of the credit which are still on their way
+     * are answered long before.
+     */
+    static final long FORGET_DELAY_MILLIS = 60_000;
+
+    /**
+     * The bank of the node.
+     * */
+    private final Bank bank;
+
+    /**
+     * The map of the cluster.
+     * */
+    private final ClusterMap map;
+
+    /**
+     * The index of the range the node serves.
+     * */
+    private final int range;
+
+    /**
+     * The socket accepting connections of clients, other nodes and the
+     * primary.
+     * */
+    private final ServerSocket serverSocket;
+
+    /**
+     * The executor running one task per connection.
+     * */
+    private final ExecutorService connections;
+
+    /**
+     * The client crediting transfers on other nodes.
+     * */
+    private final ClusterClient client;
+
+    /**
+     * The executor sending pending credits again.
+     * */
+    private final ScheduledExecutorService outbox;
+
+    /**
+     * Transfers to other nodes which are finished, in order of their end,
+     * whose credits are not forgotten yet. Lost with the node, which
+     * leaves their results behind on the other nodes.
+     * */
+    private final Queue<FinishedCredit> finishedCredits = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Whether the node serves clients, or is a replica.
+     * */
+    private volatile boolean primary;
+
+    /**
+     * The monitor which lets only one primary replicate to the node at once.
+     * */
+    private final Object replicationLock = new Object();
+
+    /**
+     * Create a node and bind it to an address. New accounts of the bank get
+     * UUIDs of the node's range.
+     * @param bank      the bank of the node, which must be durable for a
+     *                  primary with replica and for a replica
+     * @param map       the map of the cluster
+     * @param range     the index of the range the node serves
+     * @param primary   whether the node is the primary of the range, or its
+     *                  replica
+     * @param address   the address to listen on, port 0 for any free port
+     * @throws IOException if the address can't be bound
+     */
+    public ClusterNode(Bank bank, ClusterMap map, int range, boolean primary,
+                       InetSocketAddress address) throws IOException {
+        this.bank = bank;
+        this.map = map;
+        this.range = range;
+        this.primary = primary;
+        bank.setAccountUUIDRange(map.rangeStart(range), map.rangeEnd(range));
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.bind(address);
+        this.connections = ATMServer.newSessionExecutor();
+        this.client = new ClusterClient(map);
+        this.outbox = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "cluster-node-outbox");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Run a node in its own process.
+     * <p>
+     * Usage: ClusterNode range primary|replica port journal owners [replica],
+     * where owners are host:port of the primaries of all ranges separated
+     * by commas, and replica is host:port of the replica of a primary.
+     * @param args  the command line arguments
+     * @throws IOException if the bank or the port can't be opened
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 5) {
+            System.err.println("Usage: ClusterNode range primary|replica port journal owners [replica]");
+            System.exit(2);
+        }
+        int range = Integer.parseInt(args[0]);
+        boolean primary = args[1].equals("primary");
+        int port = Integer.parseInt(args[2]);
+        Path journal = Paths.get(args[3]);
+        String[] owners = args[4].split(",");
+        InetSocketAddress[] addresses = new InetSocketAddress[owners.length];
+        for (int i = 0; i < owners.length; i++) {
+            addresses[i] = parseAddress(owners[i]);
+        }
+
+        Bank bank = Bank.open("Sberbank", journal);
+        ClusterNode node = new ClusterNode(bank, new ClusterMap(addresses), range, primary,
+                new InetSocketAddress(port));
+        node.start();
+        if (args.length > 5) {
+            node.replicateTo(parseAddress(args[5]));
+        }
+        System.out.printf("Cluster node of range %d is listening on port %d as %s.\n",
+                range, node.getAddress().getPort(), primary ? "primary" : "replica");
+    }
+
+    private static InetSocketAddress parseAddress(String hostPort) {
+        int colon = hostPort.lastIndexOf(':');
+        return new InetSocketAddress(hostPort.substring(0, colon),
+                Integer.parseInt(hostPort.substring(colon + 1)));
+    }
+
+    /**
+     * Get the address the node is listening on.
+     * @return the address
+     */
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+    }
+
+    /**
+     * Get the range the node serves.
+     * @return the index of the range
+     */
+    public int getRange() {
+        return range;
+    }
+
+    /**
+     * Check whether the node is the primary of its range.
+     * @return true for the primary, false for a replica
+     */
+    public boolean isPrimary() {
+        return primary;
+    }
+
+    /**
+     * Start accepting connections in a background thread, and sending
+     * pending credits again in another one.
+     */
+    public void start() {
+        Thread acceptor = new Thread(this::acceptConnections, "cluster-node-acceptor");
+        acceptor.start();
+        outbox.scheduleWithFixedDelay(this::runOutbox,
+                CREDIT_RETRY_MILLIS, CREDIT_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start replicating the log of the bank to the replica of the range.
+     * The replica gets the records it misses first.
+     * @param replicaAddress    the address of the replica node
+     * @throws IOException if the replica can't be reached or refuses
+     */
+    public void replicateTo(InetSocketAddress replicaAddress) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(replicaAddress);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeByte(REPLICATE);
+            out.flush();
+            if (in.readByte() != OK) {
+                throw new IOException("Node " + replicaAddress + " is not a replica");
+            }
+            long position = in.readLong();
+            bank.attachReplica(new SocketReplica(socket, in, out), position);
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Make the replica the primary of its range, after the primary is
+     * lost. The map of the cluster is pointed to the node, and records
+     * from the old primary are refused from now on.
+     */
+    public void promote() {
+        synchronized (this) {
+            primary = true;
+        }
+        map.setOwner(range, getAddress());
+    }
+
+    /**
+     * Stop accepting connections and close running ones. The bank is not
+     * closed.
+     */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
+        outbox.shutdownNow();
+        client.close();
+    }
+
+    /**
+     * Accept connections until the server socket is closed.
+     */
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Error, failed to accept cluster connection.");
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Serve requests of a connection until it is closed.
+     * @param socket    the connection socket
+     */
+    private void serve(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (true) {
+                byte op = in.readByte();
+                if (op == REPLICATE) {
+                    serveReplication(in, out);
+                    return;
+                }
+                handle(op, in, out);
+                out.flush();
+            }
+        } catch (EOFException e) {
+            // The peer has closed the connection
+        } catch (IOException e) {
+            if (!serverSocket.isClosed()) {
+                System.err.println("Error, cluster connection failed.");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Read the arguments of a request, apply it and write the response.
+     * @param op    the opcode of the request
+     * @param in    the stream of requests
+     * @param out   the stream of responses
+     * @throws IOException if the connection fails
+     */
+    private void handle(byte op, DataInputStream in, DataOutputStream out) throws IOException {
+        try {
+            switch (op) {
+                case OPEN_ACCOUNT: {
+                    String firstName = in.readUTF();
+                    String lastName = in.readUTF();
+                    String pin = in.readUTF();
+                    if (!primary) {
+                        out.writeByte(NOT_OWNER);
+                        return;
+                    }
+                    User user = bank.addUser(firstName, lastName, pin);
+                    out.writeByte(OK);
+                    out.writeUTF(user.getAccountUUID(0));
+                    return;
+                }
+                case BALANCE: {
+                    String accountID = in.readUTF();
+                    if (!owns(accountID)) {
+                        out.writeByte(NOT_OWNER);
+                        return;
+                    }
+                    long balance = getExistingAccount(accountID).getBalance();
+                    out.writeByte(OK);
+                    out.writeLong(balance);
+                    return;
+                }
+                case TRANSACTION: {
+                    String requestId = in.readUTF();
+                    String accountID = in.readUTF();
+                    long amount = in.readLong();
+                    String memo = in.readUTF();
+                    if (!owns(accountID)) {
+                        out.writeByte(NOT_OWNER);
+                        return;
+                    }
+                    getExistingAccount(accountID);
+                    out.writeByte(bank.applyRequest(requestId, accountID, amount, memo) ? OK : REJECTED);
+                    return;
+                }
+                case TRANSFER: {
+                    String requestId = in.readUTF();
+                    String fromID = in.readUTF();
+                    String toID = in.readUTF();
+                    long amount = in.readLong();
+                    if (!owns(fromID)) {
+                        out.writeByte(NOT_OWNER);
+                        return;
+                    }
+                    out.writeByte(transfer(requestId, fromID, toID, amount) ? OK : REJECTED);
+                    return;
+                }
+                case CREDIT: {
+                    String requestId = in.readUTF();
+                    String toID = in.readUTF();
+                    String fromID = in.readUTF();
+                    long amount = in.readLong();
+                    if (!owns(toID)) {
+                        out.writeByte(NOT_OWNER);
+                        return;
+                    }
+                    bank.applyCredit(requestId, toID, fromID, amount);
+                    out.writeByte(OK);
+                    return;
+                }
+                case FORGET_CREDIT: {
+                    String requestId = in.readUTF();
+                    String toID = in.readUTF();
+                    if (!owns(toID)) {
+                        out.writeByte(NOT_OWNER);
+                        return;
+                    }
+                    bank.forgetCredit(requestId);
+                    out.writeByte(OK);
+                    return;
+                }
+                default:
+                    throw new IOException("Unknown cluster request " + op);
+            }
+        } catch (IllegalArgumentException | ArithmeticException e) {
+            out.writeByte(INVALID);
+            out.writeUTF(String.valueOf(e.getMessage()));
+        } catch (UncheckedIOException | IllegalStateException e) {
+            out.writeByte(FAILED);
+            out.writeUTF(String.valueOf(e.getMessage()));
+        }
+    }
+
+    /**
+     * Transfer funds from an account of this node to any account of the
+     * cluster, at most once per request ID. A credit on another node which
+     * can't be sent now stays pending and the transfer counts as done.
+     * @param requestId the unique ID of the request
+     * @param fromID    the UUID of the account to transfer from
+     * @param toID      the UUID of the account to transfer to
+     * @param amount    the amount to transfer in cents
+     * @return          true if the transfer is done, false if the rules
+     *                  of the bank refuse it
+     * @throws IllegalArgumentException if an account is missing, or the
+     *                                  other node refused the credit and
+     *                                  the amount was given back
+     */
+    private boolean transfer(String requestId, String fromID, String toID, long amount) {
+        if (amount < 0) {
+            throw new IllegalArgumentException("Amount must not be negative: " + amount);
+        }
+        if (fromID.equals(toID)) {
+            // Both transactions would have the same request key
+            throw new IllegalArgumentException("Can't transfer to the same account " + toID);
+        }
+        getExistingAccount(fromID);
+
+        // Check the destination before any money leaves the source
+        boolean local = map.rangeOf(toID) == range;
+        if (local) {
+            getExistingAccount(toID);
+        } else {
+            client.getBalance(toID);
+        }
+
+        if (local) {
+            return bank.transfer(requestId, fromID, toID, amount);
+        }
+        PendingCredit credit = bank.transferOut(requestId, fromID, toID, amount);
+        if (credit == null) {
+            return false;
+        }
+        switch (credit.getStatus()) {
+            case COMPLETED:
+                return true;
+            case REFUNDED:
+                throw new IllegalArgumentException("Transfer " + requestId + " was refused by the node of account "
+                        + toID + " and given back");
+            default:
+                break;
+        }
+        try {
+            deliver(credit);
+        } catch (UncheckedIOException | IllegalStateException e) {
+            // The credit stays pending and is sent again
+        }
+        return true;
+    }
+
+    /**
+     * Send a pending credit to the node of its account. A credit which the
+     * node refuses is given back to the account it was withdrawn from.
+     * @param credit    the pending credit
+     * @throws IllegalArgumentException if the node refused the credit
+     * @throws UncheckedIOException if the node can't be reached, the credit
+     *                              stays pending
+     */
+    private void deliver(PendingCredit credit) {
+        try {
+            client.credit(credit.getRequestId(), credit.getToID(), credit.getFromID(), credit.getAmount());
+        } catch (IllegalArgumentException e) {
+            bank.refundCredit(credit);
+            finishedCredits.add(new FinishedCredit(credit, System.currentTimeMillis()));
+            throw e;
+        }
+        bank.completeCredit(credit);
+        finishedCredits.add(new FinishedCredit(credit, System.currentTimeMillis()));
+    }
+
+    /**
+     * Send pending credits again and let other nodes forget the credits of
+     * finished transfers.
+     */
+    private void runOutbox() {
+        deliverPendingCredits();
+        forgetFinishedCredits();
+    }
+
+    /**
+     * Tell the nodes of finished transfers which ended FORGET_DELAY_MILLIS
+     * ago to forget their credits. A node which can't be reached is told
+     * again in the next round.
+     */
+    private void forgetFinishedCredits() {
+        long cutoff = System.currentTimeMillis() - FORGET_DELAY_MILLIS;
+        for (FinishedCredit credit; (credit = finishedCredits.peek()) != null && credit.time < cutoff; ) {
+            try {
+                client.forgetCredit(credit.requestId, credit.toID);
+            } catch (RuntimeException e) {
+                return;
+            }
+            finishedCredits.poll();
+        }
+    }
+
+    /**
+     * Send all pending credits of the bank again, while the node is the
+     * primary of its range.
+     */
+    private void deliverPendingCredits() {
+        for (PendingCredit credit : bank.getPendingCredits()) {
+            if (!primary) {
+                return;
+            }
+            try {
+                deliver(credit);
+            } catch (RuntimeException e) {
+                // Sent again in the next round, unless it was given back
+            }
+        }
+    }
+
+    /**
+     * Check whether the node serves an account now.
+     * @param accountID the UUID of the account
+     * @return          whether the node is the primary of its range
+     */
+    private boolean owns(String accountID) {
+        return primary && map.rangeOf(accountID) == range;
+    }
+
+    private Account getExistingAccount(String accountID) {
+        Account account = bank.getAccount(accountID);
+        if (account == null) {
+            throw new IllegalArgumentException("No account with ID " + accountID);
+        }
+        return account;
+    }
+
+    /**
+     * Receive rounds of the primary's log and store them, until the
+     * connection is closed or the node is promoted.
+     * @param in    the stream from the primary
+     * @param out   the stream to the primary
+     * @throws IOException if the connection fails or the records can't be
+     *                     stored
+     */
+    private void serveReplication(DataInputStream in, DataOutputStream out) throws IOException {
+        synchronized (replicationLock) {
+            if (primary) {
+                out.writeByte(NOT_OWNER);
+                out.flush();
+                return;
+            }
+            out.writeByte(OK);
+            out.writeLong(bank.journalPosition());
+            out.flush();
+
+            while (true) {
+                byte[] records = new byte[in.readInt()];
+                in.readFully(records);
+                long position;
+                synchronized (this) {
+                    if (primary) {
+                        return;
+                    }
+                    position = bank.replicate(records);
+                }
+                out.writeLong(position);
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * Replica of the log of the bank on another node. Every round is sent
+     * as its length and bytes, the node answers with the length of its log.
+     */
+    private static class SocketReplica implements WriteAheadLog.Replica {
+
+        private final Socket socket;
+
+        private final DataInputStream in;
+
+        private final DataOutputStream out;
+
+        SocketReplica(Socket socket, DataInputStream in, DataOutputStream out) {
+            this.socket = socket;
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public void replicate(byte[] records, int length) throws IOException {
+            out.writeInt(length);
+            out.write(records, 0, length);
+            out.flush();
+            in.readLong();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * A transfer to another node which is finished.
+     */
+    private static class FinishedCredit {
+
+        private final String requestId;
+
+        private final String toID;
+
+        /**
+         * The end of the transfer in epoch milliseconds.
+         * */
+        private final long time;
+
+        FinishedCredit(PendingCredit credit, long time) {
+            this.requestId = credit.getRequestId();
+            this.toID = credit.getToID();
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import java.util.function.Consumer;
+
+/**
+ *  Thread-safe hash map with non-negative long keys. Keys are spread over
+ *  a number of LongHashMap stripes, each guarded by its own lock, so
+ *  operations on keys from different stripes never contend.
+ * @param <V> type of values
+ */
+public class ConcurrentLongHashMap<V> {
+
+    private static final int STRIPES_SHIFT = 6;
+
+    static final int NUM_STRIPES = 1 << STRIPES_SHIFT;
+
+    /**
+     * The stripes of the map, every stripe is used only under its own lock.
+     * */
+    private final LongHashMap<V>[] stripes;
+
+    /**
+     * Create a new empty map.
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentLongHashMap() {
+        this.stripes = (LongHashMap<V>[]) new LongHashMap<?>[NUM_STRIPES];
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            this.stripes[i] = new LongHashMap<>();
+        }
+    }
+
+    /**
+     * Get the number of entries in the map. The result is not a snapshot,
+     * if the map is modified concurrently.
+     * @return the number of entries
+     */
+    public int size() {
+        int size = 0;
+        for (LongHashMap<V> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get the value for a key.
+     * @param key   the key to look up
+     * @return      the value, or null if there is no such key
+     */
+    public V get(long key) {
+        if (key < 0) {
+            return null;
+        }
+        LongHashMap<V> stripe = stripeFor(key);
+        synchronized (stripe) {
+            return stripe.get(key);
+        }
+    }
+
+    /**
+     * Put a value for a key.
+     * @param key   the key
+     * @param value the value
+     * @return      the previous value for the key, or null
+     */
+    public V put(long key, V value) {
+        LongHashMap<V> stripe = stripeFor(key);
+        synchronized (stripe) {
+            return stripe.put(key, value);
+        }
+    }
+
+    /**
+     * Perform an action for every value of the map, in no particular order.
+     * Every stripe is locked while its values are visited, so the action
+     * must not use the map.
+     * @param action    the action to perform
+     */
+    public void forEachValue(Consumer<? super V> action) {
+        for (LongHashMap<V> stripe : stripes) {
+            synchronized (stripe) {
+                stripe.forEachValue(action);
+            }
+        }
+    }
+
+    /**
+     * Grow the map so that it can hold expected number of entries without
+     * rehashing, assuming the keys are spread evenly.
+     * @param expected  the expected number of entries
+     */
+    public void ensureCapacity(int expected) {
+        int perStripe = expected / NUM_STRIPES + 1;
+        for (LongHashMap<V> stripe : stripes) {
+            synchronized (stripe) {
+                stripe.ensureCapacity(perStripe);
+            }
+        }
+    }
+
+    private LongHashMap<V> stripeFor(long key) {
+        return stripes[stripeIndex(key)];
+    }
+
+    /**
+     * Get the stripe of a key. Uses high bits of the hash, while stripes
+     * themselves use low bits, so keys stay evenly spread inside a stripe.
+     * @param key   the key
+     * @return      the stripe index
+     */
+    static int stripeIndex(long key) {
+        return (int) ((key * 0xC2B2AE3D27D4EB4FL) >>> (Long.SIZE - STRIPES_SHIFT));
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ *  Thread-safe hash set of non-negative long values. Values are spread over
+ *  a number of LongHashSet stripes, each guarded by its own lock.
+ */
+public class ConcurrentLongHashSet {
+
+    private static final int NUM_STRIPES = ConcurrentLongHashMap.NUM_STRIPES;
+
+    /**
+     * The stripes of the set, every stripe is used only under its own lock.
+     * */
+    private final LongHashSet[] stripes;
+
+    /**
+     * Create a new empty set.
+     */
+    public ConcurrentLongHashSet() {
+        this.stripes = new LongHashSet[NUM_STRIPES];
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            this.stripes[i] = new LongHashSet();
+        }
+    }
+
+    /**
+     * Get the number of keys in the set. The result is not a snapshot,
+     * if the set is modified concurrently.
+     * @return the number of keys
+     */
+    public int size() {
+        int size = 0;
+        for (LongHashSet stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Check whether the set contains a key.
+     * @param key   the key to check
+     * @return      whether the key is in the set
+     */
+    public boolean contains(long key) {
+        LongHashSet stripe = stripeFor(key);
+        synchronized (stripe) {
+            return stripe.contains(key);
+        }
+    }
+
+    /**
+     * Add a key to the set.
+     * @param key   the key to add
+     * @return      true if the key was added, false if it was already present
+     */
+    public boolean add(long key) {
+        LongHashSet stripe = stripeFor(key);
+        synchronized (stripe) {
+            return stripe.add(key);
+        }
+    }
+
+    /**
+     * Grow the set so that it can hold expected number of keys without
+     * rehashing, assuming the keys are spread evenly.
+     * @param expected  the expected number of keys
+     */
+    public void ensureCapacity(int expected) {
+        int perStripe = expected / NUM_STRIPES + 1;
+        for (LongHashSet stripe : stripes) {
+            synchronized (stripe) {
+                stripe.ensureCapacity(perStripe);
+            }
+        }
+    }
+
+    private LongHashSet stripeFor(long key) {
+        return stripes[ConcurrentLongHashMap.stripeIndex(key)];
+    }
+}
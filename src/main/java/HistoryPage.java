@@ -0,0 +1,66 @@
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *  One page of the transaction history of an account, newest first. The
+ *  next page is requested with the cursor of this one, transactions added
+ *  meanwhile don't shift the pages, since the history is append-only.
+ */
+public class HistoryPage {
+
+    /**
+     * The cursor of the first page, which starts with the newest transaction.
+     */
+    public static final int FIRST = Integer.MAX_VALUE;
+
+    /**
+     * The transactions of the page, newest first.
+     * */
+    private final List<Transaction> transactions;
+
+    /**
+     * The cursor of the next page.
+     * */
+    private final int nextCursor;
+
+    /**
+     * Whether there are older transactions in the requested range.
+     * */
+    private final boolean hasMore;
+
+    /**
+     * Create a new page.
+     * @param transactions  the transactions, newest first
+     * @param nextCursor    the cursor of the next page
+     * @param hasMore       whether there are older transactions
+     */
+    HistoryPage(List<Transaction> transactions, int nextCursor, boolean hasMore) {
+        this.transactions = Collections.unmodifiableList(transactions);
+        this.nextCursor = nextCursor;
+        this.hasMore = hasMore;
+    }
+
+    /**
+     * Get the transactions of the page.
+     * @return the transactions, newest first
+     */
+    public List<Transaction> getTransactions() {
+        return transactions;
+    }
+
+    /**
+     * Get the cursor to request the next, older page with.
+     * @return the cursor
+     */
+    public int getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * Check whether there is a next page.
+     * @return whether there are older transactions in the requested range
+     */
+    public boolean hasMore() {
+        return hasMore;
+    }
+}
@@ -0,0 +1,161 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *  Lock-free histogram of latencies in the style of HdrHistogram. Every
+ *  power of two is split into SUB_BUCKETS linear buckets, so a recorded
+ *  value is known to within 1/SUB_BUCKETS of itself, about 3%, over the
+ *  whole range of long. Values below 2 * SUB_BUCKETS are counted exactly.
+ *  <p>
+ *  Recording is a few atomic updates of preallocated slots and never
+ *  allocates or blocks. Reads sum the buckets and are not atomic with
+ *  respect to concurrent recording, which is fine for monitoring.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /**
+     * Values below this are counted in buckets of width 1.
+     */
+    private static final int EXACT_LIMIT = 2 * SUB_BUCKETS;
+
+    /**
+     * The number of buckets needed for all non-negative long values.
+     */
+    private static final int NUM_BUCKETS = EXACT_LIMIT + (Long.SIZE - 2 - SUB_BITS) * SUB_BUCKETS;
+
+    /**
+     * The counts of values by bucket.
+     * */
+    private final AtomicLongArray buckets;
+
+    /**
+     * The sum of all recorded values.
+     * */
+    private final AtomicLong sum;
+
+    /**
+     * The greatest recorded value.
+     * */
+    private final AtomicLong max;
+
+    /**
+     * Create an empty histogram.
+     */
+    public LatencyHistogram() {
+        this.buckets = new AtomicLongArray(NUM_BUCKETS);
+        this.sum = new AtomicLong();
+        this.max = new AtomicLong();
+    }
+
+    /**
+     * Record a value.
+     * @param value the value, negative values are recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(bucketOf(value));
+        sum.addAndGet(value);
+
+        // The maximum only grows, most calls don't write at all
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Get the number of recorded values.
+     * @return the number of values
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Get the mean of the recorded values.
+     * @return the mean, or 0 if nothing is recorded
+     */
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) sum.get() / count;
+    }
+
+    /**
+     * Get the greatest recorded value.
+     * @return the value, or 0 if nothing is recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the value which a given share of the recorded values doesn't
+     * exceed. The value is the upper bound of its bucket, but not greater
+     * than the maximum.
+     * @param quantile  the share, from 0 to 1
+     * @return          the value, or 0 if nothing is recorded
+     */
+    public long getValueAtQuantile(double quantile) {
+        if (quantile < 0 || quantile > 1) {
+            throw new IllegalArgumentException("Quantile must be from 0 to 1: " + quantile);
+        }
+        long[] counts = new long[NUM_BUCKETS];
+        long total = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Get the bucket of a value.
+     * @param value the non-negative value
+     * @return      the index of the bucket
+     */
+    static int bucketOf(long value) {
+        if (value < EXACT_LIMIT) {
+            return (int) value;
+        }
+        // Keep the highest SUB_BITS + 1 bits of the value
+        int shift = Long.SIZE - Long.numberOfLeadingZeros(value) - SUB_BITS - 1;
+        int top = (int) (value >>> shift);
+        return EXACT_LIMIT + (shift - 1) * SUB_BUCKETS + (top - SUB_BUCKETS);
+    }
+
+    /**
+     * Get the greatest value of a bucket.
+     * @param bucket    the index of the bucket
+     * @return          the value
+     */
+    static long highestValueOf(int bucket) {
+        if (bucket < EXACT_LIMIT) {
+            return bucket;
+        }
+        int shift = (bucket - EXACT_LIMIT) / SUB_BUCKETS + 1;
+        long top = SUB_BUCKETS + (bucket - EXACT_LIMIT) % SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+}
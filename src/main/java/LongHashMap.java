@@ -0,0 +1,178 @@
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ *  Open-addressed hash map with non-negative long keys.
+ *  Used as directory of objects by their numeric UUID, so no boxing is
+ *  done on lookups.
+ * @param <V> type of values
+ */
+public class LongHashMap<V> {
+
+    private static final long EMPTY = -1L;
+
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * The table of keys. Free slots hold EMPTY.
+     * */
+    private long[] keys;
+
+    /**
+     * The table of values, value for keys[i] is in values[i].
+     * */
+    private Object[] values;
+
+    /**
+     * The number of keys in the map.
+     * */
+    private int size;
+
+    /**
+     * Create a new empty map.
+     */
+    public LongHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Create a new empty map which can hold expected number of entries
+     * without rehashing.
+     * @param expected  the expected number of entries
+     */
+    public LongHashMap(int expected) {
+        int capacity = tableSizeFor(expected);
+        this.keys = newKeys(capacity);
+        this.values = new Object[capacity];
+    }
+
+    /**
+     * Get the number of entries in the map.
+     * @return the number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the value for a key.
+     * @param key   the key to look up
+     * @return      the value, or null if there is no such key
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        if (key < 0) {
+            return null;
+        }
+        int mask = keys.length - 1;
+        for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+            long current = keys[i];
+            if (current == key) {
+                return (V) values[i];
+            }
+            if (current == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Put a value for a key.
+     * @param key   the key
+     * @param value the value
+     * @return      the previous value for the key, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        checkKey(key);
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        for (; keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V previous = (V) values[i];
+                values[i] = value;
+                return previous;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * Perform an action for every value of the map, in no particular order.
+     * @param action    the action to perform
+     */
+    @SuppressWarnings("unchecked")
+    public void forEachValue(Consumer<? super V> action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                action.accept((V) values[i]);
+            }
+        }
+    }
+
+    /**
+     * Grow the table so that it can hold expected number of entries
+     * without rehashing.
+     * @param expected  the expected number of entries
+     */
+    public void ensureCapacity(int expected) {
+        int capacity = tableSizeFor(expected);
+        if (capacity > keys.length) {
+            rehash(capacity);
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = newKeys(capacity);
+        values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            long key = oldKeys[j];
+            if (key != EMPTY) {
+                int i = mix(key) & mask;
+                while (keys[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private static long[] newKeys(int capacity) {
+        long[] table = new long[capacity];
+        Arrays.fill(table, EMPTY);
+        return table;
+    }
+
+    /**
+     * Get the table size which keeps load factor under 0.5.
+     * @param expected  the expected number of entries
+     * @return          power of two table size
+     */
+    private static int tableSizeFor(int expected) {
+        long capacity = Math.max(MIN_CAPACITY, (long) expected * 2);
+        if (capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Too many entries: " + expected);
+        }
+        return Integer.highestOneBit((int) capacity - 1) << 1;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static void checkKey(long key) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Key must be non-negative: " + key);
+        }
+    }
+}
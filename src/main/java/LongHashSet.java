@@ -0,0 +1,143 @@
+import java.util.Arrays;
+
+/**
+ *  Open-addressed hash set of non-negative long values.
+ *  Used for numeric UUIDs, so no boxing is done on lookups.
+ */
+public class LongHashSet {
+
+    private static final long EMPTY = -1L;
+
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * The table of keys. Free slots hold EMPTY.
+     * */
+    private long[] keys;
+
+    /**
+     * The number of keys in the set.
+     * */
+    private int size;
+
+    /**
+     * Create a new empty set.
+     */
+    public LongHashSet() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Create a new empty set which can hold expected number of keys
+     * without rehashing.
+     * @param expected  the expected number of keys
+     */
+    public LongHashSet(int expected) {
+        this.keys = newTable(tableSizeFor(expected));
+    }
+
+    /**
+     * Get the number of keys in the set.
+     * @return the number of keys
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Check whether the set contains a key.
+     * @param key   the key to check
+     * @return      whether the key is in the set
+     */
+    public boolean contains(long key) {
+        checkKey(key);
+        int mask = keys.length - 1;
+        for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+            long current = keys[i];
+            if (current == key) {
+                return true;
+            }
+            if (current == EMPTY) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Add a key to the set.
+     * @param key   the key to add
+     * @return      true if the key was added, false if it was already present
+     */
+    public boolean add(long key) {
+        checkKey(key);
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        for (; keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return false;
+            }
+        }
+        keys[i] = key;
+        if (++size * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * Grow the table so that it can hold expected number of keys
+     * without rehashing.
+     * @param expected  the expected number of keys
+     */
+    public void ensureCapacity(int expected) {
+        int capacity = tableSizeFor(expected);
+        if (capacity > keys.length) {
+            rehash(capacity);
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        keys = newTable(capacity);
+        int mask = capacity - 1;
+        for (long key : oldKeys) {
+            if (key != EMPTY) {
+                int i = mix(key) & mask;
+                while (keys[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+            }
+        }
+    }
+
+    private static long[] newTable(int capacity) {
+        long[] table = new long[capacity];
+        Arrays.fill(table, EMPTY);
+        return table;
+    }
+
+    /**
+     * Get the table size which keeps load factor under 0.5.
+     * @param expected  the expected number of keys
+     * @return          power of two table size
+     */
+    private static int tableSizeFor(int expected) {
+        long capacity = Math.max(MIN_CAPACITY, (long) expected * 2);
+        if (capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Too many keys: " + expected);
+        }
+        return Integer.highestOneBit((int) capacity - 1) << 1;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static void checkKey(long key) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Key must be non-negative: " + key);
+        }
+    }
+}
@@ -0,0 +1,352 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+/**
+ *  Read-only transaction history of an account, kept in a block of a
+ *  memory-mapped snapshot file. Nothing is copied on the heap, pages of
+ *  the block are read by the OS when they are accessed.
+ *  <p>
+ *  Block layout, n is the number of transactions, c = n / CHECKPOINT_INTERVAL,
+ *  k = ceil(n / CHECKPOINT_INTERVAL): long[n] timestamps, long[n] amounts,
+ *  int[n] memo IDs, long[c] balance checkpoints, long[k] first timestamps
+ *  of chunks, int number of memos m, int[m] offsets of memos from the block
+ *  start, then every memo as int length and UTF-8 bytes. Blocks of version 1
+ *  snapshots have no chunk timestamps. Blocks are written by BlockWriter.
+ */
+public class MappedHistory {
+
+    /**
+     * The mapped region containing the block.
+     * */
+    private final ByteBuffer buffer;
+
+    /**
+     * The offset of the block in the region.
+     * */
+    private final int start;
+
+    /**
+     * The number of transactions.
+     * */
+    private final int size;
+
+    /**
+     * Whether the block has the first timestamps of chunks.
+     * */
+    private final boolean chunkIndexed;
+
+    /**
+     * Create a history over a block of a mapped region.
+     * @param buffer        the mapped region, only absolute reads are made
+     * @param start         the offset of the block in the region
+     * @param size          the number of transactions
+     * @param chunkIndexed  whether the block has the first timestamps of
+     *                      chunks
+     */
+    MappedHistory(ByteBuffer buffer, int start, int size, boolean chunkIndexed) {
+        this.buffer = buffer;
+        this.start = start;
+        this.size = size;
+        this.chunkIndexed = chunkIndexed;
+    }
+
+    /**
+     * Get the number of transactions.
+     * @return the number of transactions
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the timestamp of a transaction.
+     * @param index the index of the transaction
+     * @return      the timestamp in epoch milliseconds
+     */
+    public long timestamp(int index) {
+        return buffer.getLong(start + index * Long.BYTES);
+    }
+
+    /**
+     * Get the amount of a transaction.
+     * @param index the index of the transaction
+     * @return      the amount in cents
+     */
+    public long amount(int index) {
+        return buffer.getLong(start + (size + index) * Long.BYTES);
+    }
+
+    /**
+     * Get the balance checkpoint, which is the balance after the first
+     * (index + 1) * CHECKPOINT_INTERVAL transactions.
+     * @param index the index of the checkpoint
+     * @return      the balance in cents
+     */
+    public long checkpoint(int index) {
+        return buffer.getLong(start + size * (2 * Long.BYTES + Integer.BYTES) + index * Long.BYTES);
+    }
+
+    /**
+     * Get the timestamp of the first transaction of a chunk. The chunk
+     * timestamps are packed together, so a search over them touches few
+     * pages of the block.
+     * @param index the index of the chunk
+     * @return      the timestamp in epoch milliseconds
+     */
+    public long chunkStart(int index) {
+        if (!chunkIndexed) {
+            return timestamp(index * TransactionStore.CHECKPOINT_INTERVAL);
+        }
+        return buffer.getLong(start + size * (2 * Long.BYTES + Integer.BYTES)
+                + (numCheckpoints(size) + index) * Long.BYTES);
+    }
+
+    /**
+     * Get the memo of a transaction, decoded from the block.
+     * @param index the index of the transaction
+     * @return      the memo
+     */
+    public String memo(int index) {
+        return memoAt(buffer.getInt(start + size * 2 * Long.BYTES + index * Integer.BYTES));
+    }
+
+    /**
+     * Get the offset of the memo table of the block in the region.
+     * @return the offset of the number of memos
+     */
+    private int memoTable() {
+        int numChunks = chunkIndexed ? numChunks(size) : 0;
+        return start + size * (2 * Long.BYTES + Integer.BYTES) + (numCheckpoints(size) + numChunks) * Long.BYTES;
+    }
+
+    /**
+     * Get the number of distinct memos of the block.
+     * @return the number of memos
+     */
+    private int numMemos() {
+        return buffer.getInt(memoTable());
+    }
+
+    /**
+     * Decode a memo of the block.
+     * @param memoId    the memo ID
+     * @return          the memo
+     */
+    private String memoAt(int memoId) {
+        int offset = start + buffer.getInt(memoTable() + Integer.BYTES + memoId * Integer.BYTES);
+        byte[] bytes = new byte[buffer.getInt(offset)];
+        buffer.get(offset + Integer.BYTES, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writer of the history of a store as a block, which streams the
+     * columns to a channel instead of building the block on the heap. The
+     * store is read under the lock of its owner in batches of BATCH_ROWS,
+     * so the owner is never held up for long. The rows of the base of the
+     * store, a block of an earlier snapshot, never change, their columns
+     * are copied from that block as they are. The memo dictionary starts
+     * with the one of base, so their memo IDs stay valid.
+     */
+    static final class BlockWriter {
+
+        /**
+         * The number of rows read under the lock at once.
+         */
+        static final int BATCH_ROWS = 4096;
+
+        private final TransactionStore store;
+
+        /**
+         * The number of transactions to write.
+         * */
+        private final int size;
+
+        private final Lock lock;
+
+        /**
+         * The block of an earlier snapshot the store starts with, or null.
+         * */
+        private final MappedHistory base;
+
+        private final int baseSize;
+
+        /**
+         * The IDs of the memos of the block.
+         * */
+        private final Map<String, Integer> ids = new HashMap<>();
+
+        /**
+         * The UTF-8 bytes of the memos, by ID.
+         * */
+        private final List<byte[]> memos = new ArrayList<>();
+
+        /**
+         * The length of the block in bytes.
+         * */
+        private final long length;
+
+        /**
+         * Collect the memos of the first transactions of a store.
+         * @param store the store to write
+         * @param size  the number of transactions to write, not more than
+         *              the size of the store
+         * @param lock  the lock of the owner of the store
+         */
+        BlockWriter(TransactionStore store, int size, Lock lock) {
+            this.store = store;
+            this.size = size;
+            this.lock = lock;
+            this.base = store.base();
+            this.baseSize = base == null ? 0 : base.size();
+            if (base != null) {
+                for (int id = 0; id < base.numMemos(); id++) {
+                    addMemo(base.memoAt(id));
+                }
+            }
+            for (int from = baseSize; from < size; from += BATCH_ROWS) {
+                lock.lock();
+                try {
+                    for (int i = from; i < Math.min(size, from + BATCH_ROWS); i++) {
+                        addMemo(store.memo(i));
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            long length = (long) size * (2 * Long.BYTES + Integer.BYTES)
+                    + (long) (numCheckpoints(size) + numChunks(size)) * Long.BYTES + Integer.BYTES;
+            for (byte[] utf : memos) {
+                length += 2 * Integer.BYTES + utf.length;
+            }
+            this.length = length;
+        }
+
+        private void addMemo(String memo) {
+            if (!ids.containsKey(memo)) {
+                ids.put(memo, memos.size());
+                memos.add(memo.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        /**
+         * Get the length of the block.
+         * @return the length in bytes
+         */
+        long length() {
+            return length;
+        }
+
+        /**
+         * Write the block at the position of a channel.
+         * @param channel   the channel to write to
+         * @throws IOException if the block can't be written
+         */
+        void writeTo(WritableByteChannel channel) throws IOException {
+            ByteBuffer chunk = ByteBuffer.allocate(BATCH_ROWS * Long.BYTES);
+            copyBaseColumn(channel, 0, Long.BYTES);
+            writeColumn(channel, chunk, baseSize, size, (out, i) -> out.putLong(store.timestamp(i)));
+            copyBaseColumn(channel, baseSize * Long.BYTES, Long.BYTES);
+            writeColumn(channel, chunk, baseSize, size, (out, i) -> out.putLong(store.amount(i)));
+            copyBaseColumn(channel, baseSize * 2 * Long.BYTES, Integer.BYTES);
+            writeColumn(channel, chunk, baseSize, size, (out, i) -> out.putInt(ids.get(store.memo(i))));
+            writeColumn(channel, chunk, 0, numCheckpoints(size), (out, i) -> out.putLong(store.checkpoint(i)));
+            writeColumn(channel, chunk, 0, numChunks(size), (out, i) -> out.putLong(store.chunkStart(i)));
+
+            // The memo table, offsets are from the block start
+            chunk.putInt(memos.size());
+            long offset = length;
+            for (int id = memos.size() - 1; id >= 0; id--) {
+                offset -= Integer.BYTES + memos.get(id).length;
+            }
+            for (byte[] utf : memos) {
+                if (chunk.remaining() < Integer.BYTES) {
+                    flush(channel, chunk);
+                }
+                chunk.putInt((int) offset);
+                offset += Integer.BYTES + utf.length;
+            }
+            for (byte[] utf : memos) {
+                if (chunk.remaining() < Integer.BYTES) {
+                    flush(channel, chunk);
+                }
+                chunk.putInt(utf.length);
+                flush(channel, chunk);
+                writeFully(channel, ByteBuffer.wrap(utf));
+            }
+            flush(channel, chunk);
+        }
+
+        /**
+         * Copy the rows of base of a column of the block.
+         * @param channel   the channel to write to
+         * @param offset    the offset of the column in the base block
+         * @param width     the number of bytes per row
+         * @throws IOException if the column can't be written
+         */
+        private void copyBaseColumn(WritableByteChannel channel, int offset, int width) throws IOException {
+            if (base != null) {
+                writeFully(channel, base.buffer.slice(base.start + offset, baseSize * width));
+            }
+        }
+
+        /**
+         * Write a range of a column, read under the lock in batches.
+         * @param channel   the channel to write to
+         * @param chunk     the empty buffer of a batch
+         * @param from      the first index to write
+         * @param to        the index after the last one to write
+         * @param column    the reader of one value of the column
+         * @throws IOException if the column can't be written
+         */
+        private void writeColumn(WritableByteChannel channel, ByteBuffer chunk, int from, int to,
+                                 ColumnReader column) throws IOException {
+            for (int batch = from; batch < to; batch += BATCH_ROWS) {
+                lock.lock();
+                try {
+                    for (int i = batch; i < Math.min(to, batch + BATCH_ROWS); i++) {
+                        column.read(chunk, i);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                flush(channel, chunk);
+            }
+        }
+
+        private static void flush(WritableByteChannel channel, ByteBuffer chunk) throws IOException {
+            chunk.flip();
+            writeFully(channel, chunk);
+            chunk.clear();
+        }
+
+        private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Reader of one value of a column of a store into a buffer.
+     */
+    private interface ColumnReader {
+        void read(ByteBuffer out, int index);
+    }
+
+    private static int numCheckpoints(int size) {
+        return size / TransactionStore.CHECKPOINT_INTERVAL;
+    }
+
+    static int numChunks(int size) {
+        return (size + TransactionStore.CHECKPOINT_INTERVAL - 1) / TransactionStore.CHECKPOINT_INTERVAL;
+    }
+}
@@ -0,0 +1,66 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  Dictionary which encodes transaction memos as int IDs, so every
+ *  distinct memo is stored only once. A store keeps the memos which are not
+ *  shared by all stores here, see SharedMemoDictionary.
+ */
+public class MemoDictionary {
+
+    /**
+     * The IDs of known memos.
+     * */
+    private final Map<String, Integer> ids;
+
+    /**
+     * The memos, memos.get(id) is the memo with that ID.
+     * */
+    private final List<String> memos;
+
+    /**
+     * The memo encoded last and its ID. Accounts often get the same memo
+     * many times in a row, which then skips the hash lookup.
+     * */
+    private String lastMemo;
+    private int lastId;
+
+    /**
+     * Create a new empty dictionary.
+     */
+    public MemoDictionary() {
+        this.ids = new HashMap<>();
+        this.memos = new ArrayList<>();
+    }
+
+    /**
+     * Get the ID of a memo, adding the memo if it is new.
+     * @param memo  the memo to encode
+     * @return      the memo ID
+     */
+    public int encode(String memo) {
+        if (memo.equals(this.lastMemo)) {
+            return this.lastId;
+        }
+        Integer id = this.ids.get(memo);
+        if (id == null) {
+            id = this.memos.size();
+            this.memos.add(memo);
+            this.ids.put(memo, id);
+        }
+        this.lastMemo = memo;
+        this.lastId = id;
+        return id;
+    }
+
+    /**
+     * Get the memo with a particular ID.
+     * @param id    the memo ID
+     * @return      the memo
+     */
+    public String decode(int id) {
+        return this.memos.get(id);
+    }
+}
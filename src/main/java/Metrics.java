@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ *  The metrics of the ATM operations, shared by all banks of the process.
+ *  They are always recorded, and can be read through JMX, as MBeans named
+ *  ATM:type=Operation,name=..., or as text from MetricsEndpoint.
+ */
+public final class Metrics {
+
+    public static final OperationMetrics LOGIN = new OperationMetrics("login");
+    public static final OperationMetrics WITHDRAW = new OperationMetrics("withdraw");
+    public static final OperationMetrics DEPOSIT = new OperationMetrics("deposit");
+    public static final OperationMetrics TRANSFER = new OperationMetrics("transfer");
+    public static final OperationMetrics HISTORY = new OperationMetrics("history");
+
+    /**
+     * Reads of account balances, which are only counted, since timing them
+     * would cost more than the read itself.
+     */
+    public static final OperationMetrics BALANCE = new OperationMetrics("balance");
+
+    public static final OperationMetrics UUID_GENERATION = new OperationMetrics("uuid");
+
+    /**
+     * Random UUIDs which were already in use and had to be generated again.
+     */
+    public static final OperationMetrics UUID_COLLISIONS = new OperationMetrics("uuid_collision");
+
+    /**
+     * Events published to the audit log.
+     */
+    public static final OperationMetrics AUDIT = new OperationMetrics("audit");
+
+    /**
+     * Audit events dropped because the ring of the audit log was full.
+     */
+    public static final OperationMetrics AUDIT_DROPS = new OperationMetrics("audit_drop");
+
+    private static final List<OperationMetrics> ALL = List.of(LOGIN, WITHDRAW, DEPOSIT,
+            TRANSFER, HISTORY, BALANCE, UUID_GENERATION, UUID_COLLISIONS, AUDIT, AUDIT_DROPS);
+
+    /**
+     * The quantiles of latency in the text output.
+     */
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private Metrics() {
+    }
+
+    /**
+     * Get the metrics of all operations.
+     * @return the list of metrics
+     */
+    public static List<OperationMetrics> all() {
+        return ALL;
+    }
+
+    /**
+     * Register the metrics of all operations with the platform MBean server,
+     * unless they are registered already.
+     */
+    public static synchronized void registerMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (OperationMetrics metrics : ALL) {
+                ObjectName name = objectName(metrics);
+                if (!server.isRegistered(name)) {
+                    server.registerMBean(metrics, name);
+                }
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to register metrics MBeans", e);
+        }
+    }
+
+    /**
+     * Get the JMX name of the metrics of an operation.
+     * @param metrics   the metrics
+     * @return          the name
+     * @throws JMException if the name is malformed
+     */
+    static ObjectName objectName(OperationMetrics metrics) throws JMException {
+        return new ObjectName("ATM:type=Operation,name=" + metrics.getName());
+    }
+
+    /**
+     * Write the metrics of all operations in the Prometheus text format.
+     * Latencies are in microseconds.
+     * @param out   the output
+     * @throws IOException if the output fails
+     */
+    public static void writeText(Appendable out) throws IOException {
+        out.append("# TYPE atm_operation_count counter\n");
+        for (OperationMetrics metrics : ALL) {
+            writeSample(out, "atm_operation_count", metrics, null, metrics.getCount());
+        }
+        out.append("# TYPE atm_operation_failures counter\n");
+        for (OperationMetrics metrics : ALL) {
+            writeSample(out, "atm_operation_failures", metrics, null, metrics.getFailures());
+        }
+        out.append("# TYPE atm_operation_latency_micros summary\n");
+        for (OperationMetrics metrics : ALL) {
+            LatencyHistogram latency = metrics.getLatency();
+            long count = latency.getCount();
+            if (count == 0) {
+                continue;
+            }
+            for (double quantile : QUANTILES) {
+                writeSample(out, "atm_operation_latency_micros", metrics, quantile,
+                        latency.getValueAtQuantile(quantile) / 1000.0);
+            }
+            writeSample(out, "atm_operation_latency_micros_max", metrics, null,
+                    latency.getMax() / 1000.0);
+            writeSample(out, "atm_operation_latency_micros_count", metrics, null, count);
+        }
+    }
+
+    private static void writeSample(Appendable out, String metric, OperationMetrics metrics,
+                                    Double quantile, Object value) throws IOException {
+        out.append(metric).append("{operation=\"").append(metrics.getName()).append('"');
+        if (quantile != null) {
+            out.append(",quantile=\"").append(quantile.toString()).append('"');
+        }
+        out.append("} ").append(value.toString()).append('\n');
+    }
+}
@@ -0,0 +1,68 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *  Local HTTP endpoint which serves the metrics as text on GET /metrics,
+ *  for pulling by a monitoring agent. It listens on the loopback interface
+ *  only.
+ */
+public class MetricsEndpoint implements Closeable {
+
+    public static final int DEFAULT_PORT = 9404;
+
+    private final HttpServer server;
+
+    /**
+     * Create an endpoint bound to a port on the loopback interface.
+     * @param port  the port to listen on, 0 for any free port
+     * @throws IOException if the port can't be bound
+     */
+    public MetricsEndpoint(int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.createContext("/metrics", this::serve);
+    }
+
+    /**
+     * Get the port the endpoint is listening on.
+     * @return the port
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Start serving requests in a background thread.
+     */
+    public void start() {
+        server.start();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringBuilder text = new StringBuilder(4096);
+            Metrics.writeText(text);
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+}
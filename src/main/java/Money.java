@@ -0,0 +1,91 @@
+/**
+ *  Fixed-point money arithmetic. Amounts are kept as long number of cents,
+ *  so there is no rounding drift and no objects are allocated for them.
+ */
+public final class Money {
+
+    /**
+     * Number of cents in one dollar.
+     */
+    public static final long CENTS_PER_UNIT = 100;
+
+    private Money() {
+    }
+
+    /**
+     * Parse amount like "12", "12.3" or "-12.34" to cents.
+     * @param text  the amount string
+     * @return      the amount in cents
+     * @throws NumberFormatException if the text is not a valid amount
+     */
+    public static long parse(String text) {
+        int length = text.length();
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && (text.charAt(0) == '-' || text.charAt(0) == '+')) {
+            negative = text.charAt(0) == '-';
+            i++;
+        }
+
+        long units = 0;
+        int digits = 0;
+        for (; i < length && text.charAt(i) != '.'; i++, digits++) {
+            units = Math.addExact(Math.multiplyExact(units, 10), digit(text, i));
+        }
+
+        long cents = 0;
+        if (i < length) {
+            // Skip the decimal point, at most two digits may follow it
+            i++;
+            if (length - i > 2) {
+                throw new NumberFormatException("Too many decimal places: " + text);
+            }
+            for (int scale = 10; i < length; i++, digits++, scale /= 10) {
+                cents += digit(text, i) * scale;
+            }
+        }
+        if (digits == 0) {
+            throw new NumberFormatException("Not an amount: \"" + text + "\"");
+        }
+
+        long amount = Math.addExact(Math.multiplyExact(units, CENTS_PER_UNIT), cents);
+        return negative ? -amount : amount;
+    }
+
+    /**
+     * Format amount in cents as "12.34", negative amounts as "-12.34".
+     * @param cents the amount in cents
+     * @return      the amount string
+     */
+    public static String format(long cents) {
+        return appendTo(new StringBuilder(24), cents).toString();
+    }
+
+    /**
+     * Append amount in cents to a builder, in the same form as format.
+     * @param builder   the builder to append to
+     * @param cents     the amount in cents
+     * @return          the builder
+     */
+    public static StringBuilder appendTo(StringBuilder builder, long cents) {
+        if (cents < 0) {
+            builder.append('-');
+        }
+        // Work with non-positive values, so Long.MIN_VALUE is formatted too
+        long negated = cents < 0 ? cents : -cents;
+        long units = -(negated / CENTS_PER_UNIT);
+        int rest = (int) -(negated % CENTS_PER_UNIT);
+        return builder.append(units)
+                .append('.')
+                .append((char) ('0' + rest / 10))
+                .append((char) ('0' + rest % 10));
+    }
+
+    private static int digit(String text, int index) {
+        char c = text.charAt(index);
+        if (c < '0' || c > '9') {
+            throw new NumberFormatException("Not an amount: \"" + text + "\"");
+        }
+        return c - '0';
+    }
+}
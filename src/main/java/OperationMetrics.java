@@ -0,0 +1,128 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *  Counters and latency histogram of one operation. Timed calls record
+ *  the nanoTime they started at, cheap calls are only counted. Recording
+ *  takes no locks and, once the counters have seen contention, allocates
+ *  nothing.
+ */
+public class OperationMetrics implements OperationMetricsMXBean {
+
+    private static final double NANOS_PER_MICRO = 1000.0;
+
+    /**
+     * The name of the operation.
+     * */
+    private final String name;
+
+    /**
+     * The number of calls, timed or not.
+     * */
+    private final LongAdder calls;
+
+    /**
+     * The number of calls which failed or were refused.
+     * */
+    private final LongAdder failures;
+
+    /**
+     * The latencies of timed calls in nanoseconds.
+     * */
+    private final LatencyHistogram latency;
+
+    /**
+     * Create empty metrics of an operation.
+     * @param name  the name of the operation
+     */
+    public OperationMetrics(String name) {
+        this.name = name;
+        this.calls = new LongAdder();
+        this.failures = new LongAdder();
+        this.latency = new LatencyHistogram();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Record a successful call.
+     * @param startNanos    the System.nanoTime when the call started
+     */
+    public void record(long startNanos) {
+        latency.record(System.nanoTime() - startNanos);
+        calls.increment();
+    }
+
+    /**
+     * Record a call which failed or was refused.
+     * @param startNanos    the System.nanoTime when the call started
+     */
+    public void recordFailure(long startNanos) {
+        record(startNanos);
+        failures.increment();
+    }
+
+    /**
+     * Count a call without timing it.
+     */
+    public void increment() {
+        calls.increment();
+    }
+
+    /**
+     * Count a number of events without timing them.
+     * @param n the number of events
+     */
+    public void add(long n) {
+        calls.add(n);
+    }
+
+    /**
+     * Get the histogram of latencies in nanoseconds.
+     * @return the histogram
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    @Override
+    public long getCount() {
+        return calls.sum();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public double getMeanMicros() {
+        return latency.getMean() / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getP50Micros() {
+        return latency.getValueAtQuantile(0.5) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getP90Micros() {
+        return latency.getValueAtQuantile(0.9) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getP99Micros() {
+        return latency.getValueAtQuantile(0.99) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getP999Micros() {
+        return latency.getValueAtQuantile(0.999) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getMaxMicros() {
+        return latency.getMax() / NANOS_PER_MICRO;
+    }
+}
@@ -0,0 +1,22 @@
+/**
+ *  JMX view of the metrics of one operation, see OperationMetrics.
+ *  Latencies are in microseconds.
+ */
+public interface OperationMetricsMXBean {
+
+    long getCount();
+
+    long getFailures();
+
+    double getMeanMicros();
+
+    double getP50Micros();
+
+    double getP90Micros();
+
+    double getP99Micros();
+
+    double getP999Micros();
+
+    double getMaxMicros();
+}
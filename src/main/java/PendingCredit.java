@@ -0,0 +1,78 @@
+/**
+ *  The incoming side of a transfer to an account of another bank of the
+ *  cluster, which is withdrawn already but not credited yet. Kept by the
+ *  bank of the source account until the other bank confirms the credit,
+ *  see Bank.transferOut. A retry of a finished transfer gets a credit with
+ *  the outcome of the transfer instead.
+ */
+public class PendingCredit {
+
+    /**
+     * The outcome of a transfer to another bank.
+     */
+    public enum Status {
+        /** The credit is not confirmed yet. */
+        PENDING,
+        /** The other bank has done the credit. */
+        COMPLETED,
+        /** The other bank refused the credit and the amount was given back. */
+        REFUNDED
+    }
+
+    /**
+     * The unique ID of the transfer.
+     * */
+    private final String requestId;
+
+    /**
+     * The UUID of the account the money is transferred from.
+     * */
+    private final String fromID;
+
+    /**
+     * The UUID of the account the money is transferred to.
+     * */
+    private final String toID;
+
+    /**
+     * The amount in cents.
+     * */
+    private final long amount;
+
+    /**
+     * The outcome of the transfer.
+     * */
+    private final Status status;
+
+    PendingCredit(String requestId, String fromID, String toID, long amount) {
+        this(requestId, fromID, toID, amount, Status.PENDING);
+    }
+
+    PendingCredit(String requestId, String fromID, String toID, long amount, Status status) {
+        this.requestId = requestId;
+        this.fromID = fromID;
+        this.toID = toID;
+        this.amount = amount;
+        this.status = status;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public String getFromID() {
+        return fromID;
+    }
+
+    public String getToID() {
+        return toID;
+    }
+
+    public long getAmount() {
+        return amount;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,137 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ *  Salted PBKDF2-HMAC-SHA256 hashes of pins. A hash is stored as a
+ *  credential: [byte format][int iterations][salt][derived key], so the
+ *  cost can be raised later and old credentials still verify. Bare 16-byte
+ *  MD5 hashes written by older versions are verified too.
+ *  <p>
+ *  Mac and MessageDigest instances are cached per thread, so neither a
+ *  provider lookup nor a new digest object is needed per login.
+ */
+public class PinHash {
+
+    /**
+     * The default number of PBKDF2 iterations of new credentials.
+     */
+    public static final int DEFAULT_ITERATIONS = 10_000;
+
+    private static final byte PBKDF2_SHA256 = 1;
+
+    private static final int SALT_LENGTH = 16;
+
+    private static final int KEY_LENGTH = 32;
+
+    private static final int CREDENTIAL_LENGTH = 1 + Integer.BYTES + SALT_LENGTH + KEY_LENGTH;
+
+    private static final int LEGACY_MD5_LENGTH = 16;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final ThreadLocal<Mac> HMAC = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance("HmacSHA256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    });
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    });
+
+    private PinHash() {
+    }
+
+    /**
+     * Hash a pin with a new random salt.
+     * @param pin           the pin to hash
+     * @param iterations    the number of PBKDF2 iterations
+     * @return              the credential
+     */
+    public static byte[] create(String pin, int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Iterations must be positive: " + iterations);
+        }
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        return ByteBuffer.allocate(CREDENTIAL_LENGTH)
+                .put(PBKDF2_SHA256)
+                .putInt(iterations)
+                .put(salt)
+                .put(pbkdf2(pin, salt, iterations))
+                .array();
+    }
+
+    /**
+     * Check whether a pin matches a credential.
+     * @param pin           the pin to check
+     * @param credential    the credential made by create, or a legacy MD5
+     *                      hash
+     * @return              whether the pin matches
+     */
+    public static boolean verify(String pin, byte[] credential) {
+        if (credential.length == LEGACY_MD5_LENGTH) {
+            byte[] hash = MD5.get().digest(pin.getBytes(StandardCharsets.UTF_8));
+            return MessageDigest.isEqual(hash, credential);
+        }
+        if (credential.length != CREDENTIAL_LENGTH || credential[0] != PBKDF2_SHA256) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(credential, 1, CREDENTIAL_LENGTH - 1);
+        int iterations = buffer.getInt();
+        byte[] salt = new byte[SALT_LENGTH];
+        buffer.get(salt);
+        byte[] key = new byte[KEY_LENGTH];
+        buffer.get(key);
+        return iterations > 0 && MessageDigest.isEqual(pbkdf2(pin, salt, iterations), key);
+    }
+
+    /**
+     * Derive one block of PBKDF2-HMAC-SHA256 (RFC 8018), which is exactly
+     * KEY_LENGTH bytes.
+     * @param pin           the password
+     * @param salt          the salt
+     * @param iterations    the number of iterations
+     * @return              the derived key
+     */
+    static byte[] pbkdf2(String pin, byte[] salt, int iterations) {
+        Mac mac = HMAC.get();
+        try {
+            // An empty key is not accepted, HMAC pads the key with zeros anyway
+            byte[] password = pin.isEmpty() ? new byte[1] : pin.getBytes(StandardCharsets.UTF_8);
+            mac.init(new SecretKeySpec(password, "HmacSHA256"));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+
+        // U1 = HMAC(salt || INT(1)), Ui = HMAC(Ui-1), key = U1 ^ ... ^ Un
+        byte[] u = new byte[KEY_LENGTH];
+        mac.update(salt);
+        mac.update(new byte[] {0, 0, 0, 1});
+        try {
+            mac.doFinal(u, 0);
+            byte[] key = u.clone();
+            for (int i = 1; i < iterations; i++) {
+                mac.update(u);
+                mac.doFinal(u, 0);
+                for (int j = 0; j < KEY_LENGTH; j++) {
+                    key[j] ^= u[j];
+                }
+            }
+            return key;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
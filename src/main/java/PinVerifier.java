@@ -0,0 +1,79 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  Runs pin checks on a small bounded pool. Hashing a pin is deliberately
+ *  slow, so during a login storm the hashing is limited to the pool's
+ *  threads and the rest of the machine keeps serving transactions. Checks
+ *  which don't fit into the queue are rejected like a wrong pin.
+ */
+public class PinVerifier {
+
+    /**
+     * The number of checks which may wait for a thread.
+     */
+    static final int MAX_PENDING = 1024;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Create a verifier using half of the processors.
+     */
+    public PinVerifier() {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), MAX_PENDING);
+    }
+
+    /**
+     * Create a verifier.
+     * @param threads       the number of hashing threads
+     * @param maxPending    the number of checks which may wait for a thread
+     */
+    public PinVerifier(int threads, int maxPending) {
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(maxPending), r -> {
+                    Thread thread = new Thread(r, "pin-verifier-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        // Idle threads go away, so a bank which is never closed leaks nothing
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Check the pin of a user on the pool and wait for the result.
+     * @param user  the user
+     * @param pin   the pin to check
+     * @return      whether the pin is valid, false if the check was
+     *              rejected or interrupted
+     */
+    public boolean verify(User user, String pin) {
+        Future<Boolean> result;
+        try {
+            result = executor.submit(() -> user.validatePin(pin));
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Pin check failed", e.getCause());
+        }
+    }
+
+    /**
+     * Stop the hashing threads, later checks are rejected.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,275 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Bounded table of the recent client requests of one account, so a retry
+ *  of a request gets the result of the first try instead of being applied
+ *  again. Requests are kept by a 64-bit fingerprint of their ID in an
+ *  open-addressed table, and in a ring in order of arrival.
+ *  <p>
+ *  Entries older than RETENTION_MILLIS are evicted from the head of the
+ *  ring as new requests arrive, and when MAX_ENTRIES are kept, the oldest
+ *  one is evicted early. Lookups, inserts and evictions cost O(1). The
+ *  table starts small and grows by doubling, since most accounts see only
+ *  a few requests. Not thread-safe, it is used under the account lock.
+ */
+public class RequestTable {
+
+    /**
+     * The time for which a request is remembered.
+     */
+    static final long RETENTION_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * The greatest number of requests remembered per account.
+     */
+    static final int MAX_ENTRIES = 1024;
+
+    private static final int MIN_ENTRIES = 4;
+
+    /**
+     * The result of find for a request which is not in the table.
+     */
+    static final long NOT_FOUND = Long.MIN_VALUE;
+
+    /**
+     * The result of a request which was refused by the rules of the bank.
+     */
+    static final long REJECTED = -1;
+
+    /**
+     * The result of a transfer to another bank whose credit was refused
+     * there and given back, see Bank.refundCredit.
+     */
+    static final long REFUNDED = -2;
+
+    private static final long EMPTY = 0;
+
+    /**
+     * The fingerprints in the open-addressed table, twice the size of the
+     * ring. Free slots hold EMPTY.
+     * */
+    private long[] keys;
+
+    /**
+     * The results of the requests, by slot of the table.
+     * */
+    private long[] results;
+
+    /**
+     * The fingerprints in order of arrival.
+     * */
+    private long[] ringKeys;
+
+    /**
+     * The times of arrival in epoch milliseconds, by slot of the ring.
+     * */
+    private long[] ringTimes;
+
+    /**
+     * The slot of the oldest entry in the ring.
+     * */
+    private int head;
+
+    /**
+     * The number of entries.
+     * */
+    private int size;
+
+    /**
+     * Create an empty table.
+     */
+    public RequestTable() {
+        allocate(MIN_ENTRIES);
+    }
+
+    /**
+     * Compute the fingerprint of a request ID, which is never EMPTY.
+     * FNV-1a over the characters, followed by the MurmurHash3 finalizer.
+     * @param requestId the request ID
+     * @return          the fingerprint
+     */
+    static long fingerprint(String requestId) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < requestId.length(); i++) {
+            h = (h ^ requestId.charAt(i)) * 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h == EMPTY ? 1 : h;
+    }
+
+    /**
+     * Get the number of remembered requests.
+     * @return the number of requests
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Find the result of a request.
+     * @param fingerprint   the fingerprint of the request ID
+     * @return              the result, or NOT_FOUND
+     */
+    long find(long fingerprint) {
+        int mask = keys.length - 1;
+        for (int i = mix(fingerprint) & mask; ; i = (i + 1) & mask) {
+            long key = keys[i];
+            if (key == fingerprint) {
+                return results[i];
+            }
+            if (key == EMPTY) {
+                return NOT_FOUND;
+            }
+        }
+    }
+
+    /**
+     * Remember a request which is not in the table. The oldest request is
+     * forgotten, if the table is full.
+     * @param fingerprint   the fingerprint of the request ID
+     * @param time          the time of the request in epoch milliseconds
+     * @param result        the result of the request, not NOT_FOUND
+     */
+    void put(long fingerprint, long time, long result) {
+        if (size == ringKeys.length) {
+            if (size < MAX_ENTRIES) {
+                grow();
+            } else {
+                evictOldest();
+            }
+        }
+        int mask = keys.length - 1;
+        int i = mix(fingerprint) & mask;
+        while (keys[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = fingerprint;
+        results[i] = result;
+
+        int tail = (head + size) & (ringKeys.length - 1);
+        ringKeys[tail] = fingerprint;
+        ringTimes[tail] = time;
+        size++;
+    }
+
+    /**
+     * Change the result of a request which is in the table.
+     * @param fingerprint   the fingerprint of the request ID
+     * @param result        the new result of the request, not NOT_FOUND
+     */
+    void update(long fingerprint, long result) {
+        int mask = keys.length - 1;
+        for (int i = mix(fingerprint) & mask; keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == fingerprint) {
+                results[i] = result;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forget the requests which arrived before a given time.
+     * @param cutoff    the time in epoch milliseconds
+     */
+    void evictBefore(long cutoff) {
+        while (size > 0 && ringTimes[head] < cutoff) {
+            evictOldest();
+        }
+    }
+
+    /**
+     * Receiver of the entries of a table.
+     */
+    interface EntryVisitor {
+        void visit(long fingerprint, long time, long result);
+    }
+
+    /**
+     * Visit all entries in order of arrival.
+     * @param visitor   the receiver of the entries
+     */
+    void forEach(EntryVisitor visitor) {
+        int mask = ringKeys.length - 1;
+        for (int n = 0; n < size; n++) {
+            int slot = (head + n) & mask;
+            visitor.visit(ringKeys[slot], ringTimes[slot], find(ringKeys[slot]));
+        }
+    }
+
+    private void evictOldest() {
+        remove(ringKeys[head]);
+        head = (head + 1) & (ringKeys.length - 1);
+        size--;
+    }
+
+    /**
+     * Remove a key from the open-addressed table, moving later keys of its
+     * probe run back, so lookups never stop at a hole.
+     * @param fingerprint   the key to remove
+     */
+    private void remove(long fingerprint) {
+        int mask = keys.length - 1;
+        int i = mix(fingerprint) & mask;
+        while (keys[i] != fingerprint) {
+            if (keys[i] == EMPTY) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+            // A key may fill the hole, unless its home slot is after the hole
+            int home = mix(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                results[i] = results[j];
+                i = j;
+            }
+        }
+        keys[i] = EMPTY;
+    }
+
+    private void grow() {
+        long[] oldRingKeys = ringKeys;
+        long[] oldRingTimes = ringTimes;
+        long[] oldKeys = keys;
+        long[] oldResults = results;
+        int oldHead = head;
+        int oldSize = size;
+        int oldMask = oldRingKeys.length - 1;
+
+        allocate(oldRingKeys.length * 2);
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int j = mix(oldKeys[i]) & mask;
+                while (keys[j] != EMPTY) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                results[j] = oldResults[i];
+            }
+        }
+        for (int n = 0; n < oldSize; n++) {
+            ringKeys[n] = oldRingKeys[(oldHead + n) & oldMask];
+            ringTimes[n] = oldRingTimes[(oldHead + n) & oldMask];
+        }
+        size = oldSize;
+    }
+
+    private void allocate(int entries) {
+        this.keys = new long[2 * entries];
+        this.results = new long[2 * entries];
+        this.ringKeys = new long[entries];
+        this.ringTimes = new long[entries];
+        this.head = 0;
+        this.size = 0;
+    }
+
+    private static int mix(long key) {
+        return (int) (key ^ (key >>> 32));
+    }
+}
@@ -0,0 +1,352 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ *  Cold tier of transaction histories: immutable blocks of BLOCK_ROWS
+ *  transactions, compressed and appended to segment files shared by all
+ *  accounts of a bank. A TransactionStore moves its oldest heap rows into
+ *  a block once its heap tail is full, and reads them back through a small
+ *  cache of decoded blocks, see TransactionStore.attachSegments.
+ *  <p>
+ *  Segment files are a spill area, not a copy of record: histories are
+ *  restored from the snapshot and the log of the bank, so files left by an
+ *  earlier run are deleted when a store is opened. Block layout before
+ *  compression: int n, long first timestamp, long[n - 1] deltas of
+ *  timestamps, long[n] amounts, int number of memos m, every memo as int
+ *  length and UTF-8 bytes, then int[n] memo IDs. A block is written as int
+ *  compressed length, int length, then the compressed bytes.
+ *  <p>
+ *  Thread-safe.
+ */
+public class SegmentStore implements Closeable {
+
+    /**
+     * The number of transactions in a block.
+     */
+    static final int BLOCK_ROWS = TransactionStore.CHECKPOINT_INTERVAL;
+
+    /**
+     * The size after which a new segment file is started.
+     */
+    static final long SEGMENT_BYTES = 64L << 20;
+
+    /**
+     * The default number of decoded blocks kept in the cache.
+     */
+    static final int DEFAULT_CACHE_BLOCKS = 256;
+
+    private static final int HEADER_BYTES = 2 * Integer.BYTES;
+
+    /**
+     * The directory of segment files.
+     * */
+    private final Path directory;
+
+    /**
+     * The segment files, by number. Guarded by this.
+     * */
+    private final List<FileChannel> segments = new ArrayList<>();
+
+    /**
+     * The decoded blocks most recently read, by address. Guarded by itself.
+     * */
+    private final LinkedHashMap<Long, Block> cache;
+
+    /**
+     * The number of blocks read from segment files.
+     * */
+    private final AtomicLong blockReads = new AtomicLong();
+
+    /**
+     * Open a store with the default cache.
+     * @param directory     the directory of segment files, created if missing
+     * @throws IOException if the directory can't be prepared
+     */
+    public SegmentStore(Path directory) throws IOException {
+        this(directory, DEFAULT_CACHE_BLOCKS);
+    }
+
+    /**
+     * Open a store, deleting the segment files of an earlier run.
+     * @param directory     the directory of segment files, created if missing
+     * @param cacheBlocks   the number of decoded blocks kept in the cache
+     * @throws IOException if the directory can't be prepared
+     */
+    public SegmentStore(Path directory, int cacheBlocks) throws IOException {
+        if (cacheBlocks <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + cacheBlocks);
+        }
+        this.directory = directory;
+        Files.createDirectories(directory);
+        deleteSegments(directory);
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Block> eldest) {
+                return size() > cacheBlocks;
+            }
+        };
+        this.segments.add(openSegment(0));
+    }
+
+    /**
+     * Compress and append a block of transactions.
+     * @param timestamps    the timestamps in epoch milliseconds
+     * @param amounts       the amounts in cents
+     * @param memos         the memos
+     * @param offset        the index of the first transaction in the arrays
+     * @param count         the number of transactions
+     * @return              the address of the block
+     * @throws UncheckedIOException if the block can't be written
+     */
+    long write(long[] timestamps, long[] amounts, String[] memos, int offset, int count) {
+        byte[] raw = encode(timestamps, amounts, memos, offset, count);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        byte[] compressed;
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + HEADER_BYTES);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            compressed = out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + compressed.length);
+        record.putInt(compressed.length).putInt(raw.length).put(compressed).flip();
+        try {
+            synchronized (this) {
+                int number = segments.size() - 1;
+                FileChannel segment = segments.get(number);
+                if (segment.size() >= SEGMENT_BYTES) {
+                    number++;
+                    segment = openSegment(number);
+                    segments.add(segment);
+                }
+                long position = segment.size();
+                while (record.hasRemaining()) {
+                    segment.write(record, position + record.position());
+                }
+                return ((long) number << 32) | position;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Get a block, from the cache or read from its segment file.
+     * @param address   the address of the block
+     * @return          the decoded block
+     * @throws UncheckedIOException if the block can't be read
+     */
+    Block read(long address) {
+        synchronized (cache) {
+            Block block = cache.get(address);
+            if (block != null) {
+                return block;
+            }
+        }
+
+        // Racing readers may decode the same block, either copy is fine
+        Block block;
+        try {
+            FileChannel segment;
+            synchronized (this) {
+                segment = segments.get((int) (address >>> 32));
+            }
+            long position = address & 0xFFFFFFFFL;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(segment, header, position);
+            ByteBuffer compressed = ByteBuffer.allocate(header.getInt(0));
+            readFully(segment, compressed, position + HEADER_BYTES);
+            block = decode(inflate(compressed.array(), header.getInt(Integer.BYTES)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        blockReads.incrementAndGet();
+        synchronized (cache) {
+            cache.put(address, block);
+        }
+        return block;
+    }
+
+    /**
+     * Get the number of blocks read from segment files, which missed the
+     * cache.
+     * @return the number of reads
+     */
+    public long getBlockReads() {
+        return blockReads.get();
+    }
+
+    /**
+     * Close the segment files and delete them.
+     * @throws IOException if the files can't be closed or deleted
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for (FileChannel segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+        synchronized (cache) {
+            cache.clear();
+        }
+        deleteSegments(directory);
+    }
+
+    /**
+     * Decoded block of transactions.
+     */
+    static final class Block {
+
+        final long[] timestamps;
+
+        final long[] amounts;
+
+        /**
+         * The memos by transaction, equal memos are the same String.
+         * */
+        final String[] memos;
+
+        Block(long[] timestamps, long[] amounts, String[] memos) {
+            this.timestamps = timestamps;
+            this.amounts = amounts;
+            this.memos = memos;
+        }
+    }
+
+    private static byte[] encode(long[] timestamps, long[] amounts, String[] memos, int offset, int count) {
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> dictionary = new ArrayList<>();
+        int[] memoIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            memoIds[i] = ids.computeIfAbsent(memos[offset + i], memo -> {
+                dictionary.add(memo);
+                return dictionary.size() - 1;
+            });
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(count * 20 + 64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(count);
+            out.writeLong(timestamps[offset]);
+            for (int i = 1; i < count; i++) {
+                out.writeLong(timestamps[offset + i] - timestamps[offset + i - 1]);
+            }
+            for (int i = 0; i < count; i++) {
+                out.writeLong(amounts[offset + i]);
+            }
+            out.writeInt(dictionary.size());
+            for (String memo : dictionary) {
+                byte[] utf = memo.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(utf.length);
+                out.write(utf);
+            }
+            for (int id : memoIds) {
+                out.writeInt(id);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Not possible for in-memory stream
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Block decode(byte[] raw) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+        int count = in.readInt();
+        long[] timestamps = new long[count];
+        long[] amounts = new long[count];
+        String[] memos = new String[count];
+        timestamps[0] = in.readLong();
+        for (int i = 1; i < count; i++) {
+            timestamps[i] = timestamps[i - 1] + in.readLong();
+        }
+        for (int i = 0; i < count; i++) {
+            amounts[i] = in.readLong();
+        }
+        String[] dictionary = new String[in.readInt()];
+        for (int i = 0; i < dictionary.length; i++) {
+            byte[] utf = new byte[in.readInt()];
+            in.readFully(utf);
+            dictionary[i] = new String(utf, StandardCharsets.UTF_8);
+        }
+        for (int i = 0; i < count; i++) {
+            memos[i] = dictionary[in.readInt()];
+        }
+        return new Block(timestamps, amounts, memos);
+    }
+
+    private static byte[] inflate(byte[] compressed, int length) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] raw = new byte[length];
+            int done = 0;
+            while (done < length && !inflater.finished()) {
+                int n = inflater.inflate(raw, done, length - done);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                done += n;
+            }
+            if (done != length) {
+                throw new IOException("Truncated block: " + done + " of " + length + " bytes");
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt block", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of segment at " + position);
+            }
+        }
+    }
+
+    private FileChannel openSegment(int number) throws IOException {
+        return FileChannel.open(directory.resolve(String.format("segment-%06d.seg", number)),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static void deleteSegments(Path directory) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.seg")) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+    }
+}
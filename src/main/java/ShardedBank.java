@@ -0,0 +1,473 @@
+import java.io.Closeable;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ *  Front end of a Bank which partitions accounts by UUID hash across
+ *  shards. Every shard is owned by one thread which takes requests from
+ *  its queue, so deposits and withdrawals of different shards never
+ *  contend, and the account locks they take are always uncontended.
+ *  <p>
+ *  A shard applies the requests it has drained at once and then waits for
+ *  the log of the bank once for all of them, before completing their
+ *  futures.
+ *  <p>
+ *  A shard writes only the accounts it owns. A transfer between shards
+ *  works like one between banks of a cluster (see ClusterNode): the shard
+ *  of the source account withdraws the amount and logs it with a pending
+ *  credit (see Bank.transferOut), then passes the credit as a message to
+ *  the shard of the destination account, which applies it at most once
+ *  and finishes the transfer. A credit which the destination refuses is
+ *  passed back and given back to the source account by its shard. Credits
+ *  cut off by a crash are pending in the log and sent again when the
+ *  front end is created.
+ */
+public class ShardedBank implements Closeable {
+
+    /**
+     * The number of requests from callers which may wait in the queue of
+     * a shard. Callers wait when the queue is full, shards never wait for
+     * each other.
+     */
+    static final int QUEUE_CAPACITY = 65_536;
+
+    /**
+     * The maximum number of requests applied between two log syncs.
+     */
+    static final int MAX_BATCH = 1024;
+
+    private final Bank bank;
+
+    private final Shard[] shards;
+
+    /**
+     * Create a sharded front end with one shard per processor.
+     * @param bank  the bank
+     */
+    public ShardedBank(Bank bank) {
+        this(bank, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a sharded front end and start the shard threads.
+     * @param bank      the bank
+     * @param numShards the number of shards
+     */
+    public ShardedBank(Bank bank, int numShards) {
+        if (numShards < 1) {
+            throw new IllegalArgumentException("Number of shards must be positive: " + numShards);
+        }
+        this.bank = bank;
+        this.shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++) {
+            this.shards[i] = new Shard(i);
+        }
+
+        // Transfers between shards cut off before their credits, accounts
+        // of other banks are credited by their nodes
+        for (PendingCredit credit : bank.getPendingCredits()) {
+            if (bank.getAccount(credit.getToID()) != null) {
+                CompletableFuture<Boolean> done = new CompletableFuture<>();
+                submit(shardOf(credit.getToID()), shard -> credit(shard, credit, done), done);
+            }
+        }
+    }
+
+    public Bank getBank() {
+        return bank;
+    }
+
+    public int getNumShards() {
+        return shards.length;
+    }
+
+    /**
+     * Get the shard owning an account.
+     * @param accountID the UUID of the account
+     * @return          the index of the shard
+     */
+    public int shardOf(String accountID) {
+        int h = accountID.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), shards.length);
+    }
+
+    /**
+     * Deposit money to an account, if the rules of the bank allow it.
+     * @param accountID the UUID of the account
+     * @param amount    the non-negative amount in cents
+     * @param memo      the memo of the transaction
+     * @return          the future of whether the money was deposited,
+     *                  completed when the deposit is durable
+     */
+    public CompletableFuture<Boolean> deposit(String accountID, long amount, String memo) {
+        checkAmount(amount);
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        submit(shardOf(accountID), shard -> {
+            Account account = shard.getAccount(accountID);
+            long seq;
+            account.getLock().lock();
+            try {
+                long timestamp = System.currentTimeMillis();
+                if (account.checkRules(timestamp, amount) != TransactionRules.Verdict.ALLOWED) {
+                    result.complete(false);
+                    return 0;
+                }
+                seq = account.importTransaction(timestamp, amount, memo);
+            } finally {
+                account.getLock().unlock();
+            }
+            account.spill();
+            return shard.completeAfterSync(seq, result, true);
+        }, result);
+        return result;
+    }
+
+    /**
+     * Withdraw money from an account, if the rules of the bank allow it.
+     * @param accountID the UUID of the account
+     * @param amount    the non-negative amount in cents
+     * @param memo      the memo of the transaction
+     * @return          the future of whether the money was withdrawn,
+     *                  completed when the withdrawal is durable
+     */
+    public CompletableFuture<Boolean> withdraw(String accountID, long amount, String memo) {
+        checkAmount(amount);
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        submit(shardOf(accountID), shard -> {
+            Account account = shard.getAccount(accountID);
+            long seq;
+            account.getLock().lock();
+            try {
+                long timestamp = System.currentTimeMillis();
+                if (account.checkRules(timestamp, -amount) != TransactionRules.Verdict.ALLOWED) {
+                    result.complete(false);
+                    return 0;
+                }
+                seq = account.importTransaction(timestamp, -amount, memo);
+            } finally {
+                account.getLock().unlock();
+            }
+            account.spill();
+            return shard.completeAfterSync(seq, result, true);
+        }, result);
+        return result;
+    }
+
+    /**
+     * Transfer money between two accounts, which may be owned by different
+     * shards.
+     * @param fromID    the UUID of the account to transfer from
+     * @param toID      the UUID of the account to transfer to
+     * @param amount    the non-negative amount in cents
+     * @return          the future of whether the money was transferred,
+     *                  false if the rules of the bank refuse it, completed when
+     *                  the transfer is durable
+     */
+    public CompletableFuture<Boolean> transfer(String fromID, String toID, long amount) {
+        checkAmount(amount);
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        int fromShard = shardOf(fromID);
+        int toShard = shardOf(toID);
+        if (toShard == fromShard) {
+            // The shard owns both accounts
+            submit(fromShard, shard -> {
+                long seq = bank.putTransfer(shard.getAccount(fromID), shard.getAccount(toID), amount);
+                if (seq < 0) {
+                    result.complete(false);
+                    return 0;
+                }
+                return shard.completeAfterSync(seq, result, true);
+            }, result);
+            return result;
+        }
+
+        // The source shard withdraws the amount with a pending credit
+        submit(fromShard, shard -> {
+            Account from = shard.getAccount(fromID);
+            // Only looked up, nothing is withdrawn for a missing account
+            shard.getAccount(toID);
+            PendingCredit credit = new PendingCredit(Bank.newRequestId(), fromID, toID, amount);
+            long seq;
+            from.getLock().lock();
+            try {
+                seq = bank.putTransferOut(from, credit, System.currentTimeMillis());
+            } finally {
+                from.getLock().unlock();
+            }
+            from.spill();
+            if (seq < 0) {
+                result.complete(false);
+                return 0;
+            }
+            submit(toShard, destination -> credit(destination, credit, result), result);
+            return 0;
+        }, result);
+        return result;
+    }
+
+    /**
+     * Apply a pending credit on the shard of its account and finish the
+     * transfer. A refused credit is passed back to the shard of the source
+     * account, which gives the amount back and fails the transfer.
+     * @param shard     the shard of the account to transfer to
+     * @param credit    the pending credit
+     * @param result    the future of the transfer
+     * @return          the sequence number of the last log record, or 0
+     */
+    private long credit(Shard shard, PendingCredit credit, CompletableFuture<Boolean> result) {
+        String requestId = credit.getRequestId();
+        long seq;
+        try {
+            seq = bank.putCredit(requestId, credit.getToID(), credit.getFromID(), credit.getAmount());
+        } catch (ArithmeticException e) {
+            submit(shardOf(credit.getFromID()), source -> {
+                bank.refundCredit(credit);
+                bank.forgetCredit(requestId);
+                throw e;
+            }, result);
+            return 0;
+        }
+
+        // The records of the bank share one log, so the credit is never
+        // sent again once its end is logged
+        seq = Math.max(seq, bank.putCreditDone(credit));
+        bank.forgetCredit(requestId);
+        return shard.completeAfterSync(seq, result, true);
+    }
+
+    /**
+     * Stop the shard threads after the requests already queued are done.
+     */
+    @Override
+    public void close() {
+        for (Shard shard : shards) {
+            shard.stop();
+        }
+        for (Shard shard : shards) {
+            try {
+                shard.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static void checkAmount(long amount) {
+        if (amount < 0) {
+            throw new IllegalArgumentException("Amount must not be negative: " + amount);
+        }
+    }
+
+    /**
+     * A step of a request, which runs on a shard thread.
+     */
+    private interface Step {
+        /**
+         * Apply the step.
+         * @param shard the shard running the step
+         * @return      the sequence number of the log record to wait for
+         *              before completing, or 0
+         */
+        long apply(Shard shard);
+    }
+
+    /**
+     * Queue a step on a shard.
+     * @param index     the index of the shard
+     * @param step      the step
+     * @param result    the future of the request, which is completed
+     *                  exceptionally if the step fails
+     */
+    private void submit(int index, Step step, CompletableFuture<?> result) {
+        Shard shard = shards[index];
+
+        // Steps queued by shards don't take permits, so a shard never
+        // waits for a full queue of another one
+        boolean external = !(Thread.currentThread() instanceof ShardThread);
+        if (external) {
+            try {
+                shard.permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result.completeExceptionally(e);
+                return;
+            }
+        }
+        if (shard.stopped) {
+            if (external) {
+                shard.permits.release();
+            }
+            result.completeExceptionally(new IllegalStateException("Bank shard is stopped"));
+            return;
+        }
+        Task task = new Task(step, result, external);
+        shard.queue.add(task);
+        // The thread fails the tasks it finds after it terminates, the
+        // rest are failed here
+        if (shard.terminated && shard.queue.remove(task)) {
+            result.completeExceptionally(new IllegalStateException("Bank shard is stopped"));
+        }
+    }
+
+    /**
+     * A step queued on a shard with the future of its request.
+     */
+    private static class Task {
+
+        final Step step;
+
+        final CompletableFuture<?> result;
+
+        /**
+         * Whether the task was queued by a caller and holds a permit.
+         * */
+        final boolean external;
+
+        Task(Step step, CompletableFuture<?> result, boolean external) {
+            this.step = step;
+            this.result = result;
+            this.external = external;
+        }
+    }
+
+    private static class ShardThread extends Thread {
+        ShardThread(Runnable target, String name) {
+            super(target, name);
+        }
+    }
+
+    /**
+     * One shard with its thread and the state owned by the thread.
+     */
+    private class Shard {
+
+        private final BlockingQueue<Task> queue = new LinkedBlockingQueue<>();
+
+        /**
+         * Free places for requests of callers in the queue.
+         * */
+        private final Semaphore permits = new Semaphore(QUEUE_CAPACITY);
+
+        /**
+         * Futures waiting for the log sync of the current batch, with the
+         * values to complete them with.
+         * */
+        private final List<CompletableFuture<Object>> completions = new ArrayList<>();
+        private final List<Object> values = new ArrayList<>();
+
+        /**
+         * The last log record of the current batch.
+         * */
+        private long maxSeq;
+
+        private volatile boolean stopped;
+
+        /**
+         * Set when the thread doesn't take tasks any more.
+         * */
+        private volatile boolean terminated;
+
+        private final Thread thread;
+
+        Shard(int index) {
+            this.thread = new ShardThread(this::run, "bank-shard-" + index);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        Account getAccount(String accountID) {
+            Account account = bank.getAccount(accountID);
+            if (account == null) {
+                throw new IllegalArgumentException("No account with ID " + accountID);
+            }
+            return account;
+        }
+
+        /**
+         * Complete a future after the log sync of the current batch.
+         * @param seq       the sequence number of the log record
+         * @param future    the future
+         * @param value     the value to complete the future with
+         * @return          the sequence number
+         */
+        @SuppressWarnings("unchecked")
+        <T> long completeAfterSync(long seq, CompletableFuture<T> future, T value) {
+            completions.add((CompletableFuture<Object>) future);
+            values.add(value);
+            return seq;
+        }
+
+        void stop() {
+            stopped = true;
+            thread.interrupt();
+        }
+
+        private void run() {
+            List<Task> batch = new ArrayList<>(MAX_BATCH);
+            while (true) {
+                // Once stopped, finish the queued requests and exit
+                Task first;
+                try {
+                    first = stopped ? queue.poll() : queue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (first == null) {
+                    terminate(new IllegalStateException("Bank shard is stopped"));
+                    return;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for (Task task : batch) {
+                    if (task.external) {
+                        permits.release();
+                    }
+                    try {
+                        maxSeq = Math.max(maxSeq, task.step.apply(this));
+                    } catch (RuntimeException e) {
+                        task.result.completeExceptionally(e);
+                    }
+                }
+                batch.clear();
+
+                // One log sync for the whole batch
+                try {
+                    bank.sync(maxSeq);
+                    for (int i = 0; i < completions.size(); i++) {
+                        completions.get(i).complete(values.get(i));
+                    }
+                } catch (UncheckedIOException e) {
+                    // Nothing can be made durable any more
+                    stopped = true;
+                    completions.forEach(future -> future.completeExceptionally(e));
+                    terminate(e);
+                    return;
+                } finally {
+                    completions.clear();
+                    values.clear();
+                    maxSeq = 0;
+                }
+            }
+        }
+
+        /**
+         * Stop taking tasks and fail the queued ones.
+         * @param cause the reason of the failure
+         */
+        private void terminate(RuntimeException cause) {
+            terminated = true;
+            for (Task task = queue.poll(); task != null; task = queue.poll()) {
+                if (task.external) {
+                    permits.release();
+                }
+                task.result.completeExceptionally(cause);
+            }
+        }
+    }
+}
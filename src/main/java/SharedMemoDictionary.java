@@ -0,0 +1,180 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *  Encoding of transaction memos shared by all transaction stores. A memo
+ *  is encoded as a long code of one of three kinds, by the top byte:
+ *  <ul>
+ *  <li>a template ID and a parameter, for transfer memos which name the
+ *  counterpart account, so no string is kept for them at all;</li>
+ *  <li>an ID in the shared dictionary, which keeps every distinct memo of
+ *  at most MAX_LENGTH characters once for all accounts, until it holds
+ *  its maximum number of memos;</li>
+ *  <li>an ID in the local MemoDictionary of the store, for longer memos
+ *  and once the shared dictionary is full.</li>
+ *  </ul>
+ *  Memos in the shared dictionary are never removed, since codes of them
+ *  are kept by the stores. Thread-safe.
+ */
+public class SharedMemoDictionary {
+
+    /**
+     * The memo of a transfer, followed by the UUID of the account the
+     * money is transferred to.
+     */
+    static final String TRANSFER_TO = "Transfer to account ";
+
+    /**
+     * The memo of a transfer, followed by the UUID of the account the
+     * money is transferred from.
+     */
+    static final String TRANSFER_FROM = "Transfer from account ";
+
+    /**
+     * The default maximum number of memos in the shared dictionary.
+     */
+    static final int MAX_MEMOS = 1 << 16;
+
+    /**
+     * The length of the longest memo kept in the shared dictionary.
+     */
+    static final int MAX_LENGTH = 64;
+
+    /**
+     * The dictionary shared by all transaction stores.
+     */
+    static final SharedMemoDictionary SHARED = new SharedMemoDictionary(MAX_MEMOS);
+
+    private static final String[] TEMPLATES = {TRANSFER_TO, TRANSFER_FROM};
+
+    private static final int KIND_SHIFT = 56;
+    private static final long VALUE_MASK = (1L << KIND_SHIFT) - 1;
+    private static final long KIND_LOCAL = 0;
+    private static final long KIND_SHARED = 1;
+    private static final long KIND_TEMPLATE = 2;
+
+    /**
+     * The greatest number of memos.
+     * */
+    private final int maxMemos;
+
+    /**
+     * The IDs of the memos.
+     * */
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+
+    /**
+     * The memos by ID, replaced by a larger copy when full. Written under
+     * the lock of this.
+     * */
+    private volatile String[] memos = new String[256];
+
+    /**
+     * The number of memos. Guarded by this.
+     * */
+    private int size;
+
+    /**
+     * Create an empty dictionary.
+     * @param maxMemos  the greatest number of memos
+     */
+    SharedMemoDictionary(int maxMemos) {
+        this.maxMemos = maxMemos;
+    }
+
+    /**
+     * Encode a memo.
+     * @param memo  the memo
+     * @param local the dictionary of the store, for memos which can't be
+     *              shared
+     * @return      the code of the memo
+     */
+    long encode(String memo, MemoDictionary local) {
+        for (int t = 0; t < TEMPLATES.length; t++) {
+            String prefix = TEMPLATES[t];
+            if (memo.length() == prefix.length() + Bank.ACCOUNT_UUID_LENGTH && memo.startsWith(prefix)) {
+                long parameter = parseDigits(memo, prefix.length());
+                if (parameter >= 0) {
+                    return ((KIND_TEMPLATE + t) << KIND_SHIFT) | parameter;
+                }
+            }
+        }
+        Integer id = ids.get(memo);
+        if (id == null && memo.length() <= MAX_LENGTH) {
+            id = add(memo);
+        }
+        if (id != null) {
+            return (KIND_SHARED << KIND_SHIFT) | id;
+        }
+        return local.encode(memo);
+    }
+
+    /**
+     * Decode a memo.
+     * @param code  the code of the memo
+     * @param local the dictionary of the store the code was made for
+     * @return      the memo
+     */
+    String decode(long code, MemoDictionary local) {
+        long kind = code >>> KIND_SHIFT;
+        if (kind == KIND_LOCAL) {
+            return local.decode((int) code);
+        }
+        if (kind == KIND_SHARED) {
+            return memos[(int) (code & VALUE_MASK)];
+        }
+
+        // The parameter is an account UUID with leading zeros
+        String prefix = TEMPLATES[(int) (kind - KIND_TEMPLATE)];
+        String digits = Long.toString(code & VALUE_MASK);
+        StringBuilder memo = new StringBuilder(prefix.length() + Bank.ACCOUNT_UUID_LENGTH).append(prefix);
+        for (int i = digits.length(); i < Bank.ACCOUNT_UUID_LENGTH; i++) {
+            memo.append('0');
+        }
+        return memo.append(digits).toString();
+    }
+
+    /**
+     * Check whether a code refers to the local dictionary of its store.
+     * @param code  the code of a memo
+     * @return      true if the memo is in the local dictionary
+     */
+    static boolean isLocal(long code) {
+        return code >>> KIND_SHIFT == KIND_LOCAL;
+    }
+
+    /**
+     * Get the number of memos in the dictionary.
+     * @return the number of memos
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    private synchronized Integer add(String memo) {
+        Integer id = ids.get(memo);
+        if (id != null || size == maxMemos) {
+            return id;
+        }
+        String[] memos = this.memos;
+        if (size == memos.length) {
+            memos = Arrays.copyOf(memos, Math.min(maxMemos, size * 2));
+        }
+        memos[size] = memo;
+        this.memos = memos;
+        ids.put(memo, size);
+        return size++;
+    }
+
+    private static long parseDigits(String memo, int start) {
+        long value = 0;
+        for (int i = start; i < memo.length(); i++) {
+            char c = memo.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
@@ -0,0 +1,202 @@
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ *  Renders summary lines of transactions and accounts into a reusable
+ *  builder, without String.format and Date.toString. The output is the
+ *  same as theirs: dates look like "Tue Mar 05 14:07:09 MSK 2024", amounts
+ *  like "12.34" or "(-12.34)".
+ *  <p>
+ *  The date is rendered from a cached window of time in which the day and
+ *  the zone offset don't change, only the time of day is computed per line.
+ *  A formatter is not thread-safe, use forCurrentThread to share them.
+ */
+public class SummaryFormatter {
+
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+
+    private static final String[] DAYS = {"Mon", "Tue", "Wed", "Thu", "Fri", "Sat", "Sun"};
+
+    private static final String[] MONTHS = {
+            "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"
+    };
+
+    private static final ThreadLocal<SummaryFormatter> FORMATTERS =
+            ThreadLocal.withInitial(SummaryFormatter::new);
+
+    /**
+     * The time zone of dates.
+     * */
+    private final TimeZone timeZone;
+
+    private final ZoneId zone;
+
+    private final ZoneRules rules;
+
+    /**
+     * The reusable builder of lines.
+     * */
+    private final StringBuilder line = new StringBuilder(128);
+
+    /**
+     * The cached window [windowStart, windowEnd) in epoch milliseconds.
+     * */
+    private long windowStart = 1;
+    private long windowEnd = 0;
+
+    /**
+     * The epoch milliseconds at which the cached local day starts with
+     * the cached zone offset.
+     * */
+    private long dayStart;
+
+    /**
+     * The cached "EEE MMM dd " part of the date.
+     * */
+    private String datePrefix;
+
+    /**
+     * The cached " zzz yyyy" part of the date.
+     * */
+    private String dateSuffix;
+
+    /**
+     * Create a formatter for the default time zone.
+     */
+    public SummaryFormatter() {
+        this(TimeZone.getDefault());
+    }
+
+    /**
+     * Create a formatter for a time zone.
+     * @param timeZone  the time zone of dates
+     */
+    public SummaryFormatter(TimeZone timeZone) {
+        this.timeZone = timeZone;
+        this.zone = timeZone.toZoneId();
+        this.rules = zone.getRules();
+    }
+
+    /**
+     * Get the formatter of the current thread, for the default time zone
+     * as of the first use in the thread.
+     * @return the formatter
+     */
+    public static SummaryFormatter forCurrentThread() {
+        return FORMATTERS.get();
+    }
+
+    /**
+     * Get the reusable line builder, cleared. Its content stays valid until
+     * the next call.
+     * @return the builder
+     */
+    public StringBuilder line() {
+        line.setLength(0);
+        return line;
+    }
+
+    /**
+     * Append the summary line of a transaction, with the line break.
+     * @param out       the builder to append to
+     * @param timestamp the timestamp in epoch milliseconds
+     * @param amount    the amount in cents
+     * @param memo      the memo
+     * @return          the builder
+     */
+    public StringBuilder appendTransaction(StringBuilder out, long timestamp, long amount, String memo) {
+        appendDate(out, timestamp);
+        out.append("\t:\t$");
+        appendAmount(out, amount);
+        return out.append("\t:\t").append(memo).append('\n');
+    }
+
+    /**
+     * Append the summary line of an account, without the line break.
+     * @param out       the builder to append to
+     * @param uuid      the account UUID
+     * @param balance   the balance in cents
+     * @param name      the account name
+     * @return          the builder
+     */
+    public StringBuilder appendAccount(StringBuilder out, String uuid, long balance, String name) {
+        out.append(uuid).append("\t:\t$");
+        appendAmount(out, balance);
+        return out.append("\t:\t").append(name);
+    }
+
+    /**
+     * Append an amount, negative amounts in parentheses.
+     * @param out   the builder to append to
+     * @param cents the amount in cents
+     * @return      the builder
+     */
+    public static StringBuilder appendAmount(StringBuilder out, long cents) {
+        if (cents < 0) {
+            return Money.appendTo(out.append('('), cents).append(')');
+        }
+        return Money.appendTo(out, cents);
+    }
+
+    /**
+     * Append a date in the form of Date.toString.
+     * @param out       the builder to append to
+     * @param timestamp the time in epoch milliseconds
+     * @return          the builder
+     */
+    public StringBuilder appendDate(StringBuilder out, long timestamp) {
+        if (timestamp < windowStart || timestamp >= windowEnd) {
+            cacheWindow(timestamp);
+        }
+        int seconds = (int) ((timestamp - dayStart) / 1000);
+        out.append(datePrefix);
+        appendTwoDigits(out, seconds / 3600);
+        out.append(':');
+        appendTwoDigits(out, seconds / 60 % 60);
+        out.append(':');
+        appendTwoDigits(out, seconds % 60);
+        return out.append(dateSuffix);
+    }
+
+    /**
+     * Render the parts of the date which are the same for the day and zone
+     * offset of a moment, and find the window they are valid in.
+     * @param timestamp the time in epoch milliseconds
+     */
+    private void cacheWindow(long timestamp) {
+        Instant instant = Instant.ofEpochMilli(timestamp);
+        ZonedDateTime time = instant.atZone(zone);
+
+        // The window is the local day, cut by zone offset transitions
+        long localMillis = timestamp + time.getOffset().getTotalSeconds() * 1000L;
+        dayStart = timestamp - Math.floorMod(localMillis, MILLIS_PER_DAY);
+        windowStart = dayStart;
+        windowEnd = dayStart + MILLIS_PER_DAY;
+        ZoneOffsetTransition previous = rules.previousTransition(instant.plusMillis(1));
+        if (previous != null) {
+            windowStart = Math.max(windowStart, previous.toEpochSecond() * 1000);
+        }
+        ZoneOffsetTransition next = rules.nextTransition(instant);
+        if (next != null) {
+            windowEnd = Math.min(windowEnd, next.toEpochSecond() * 1000);
+        }
+
+        StringBuilder prefix = new StringBuilder(11)
+                .append(DAYS[time.getDayOfWeek().ordinal()]).append(' ')
+                .append(MONTHS[time.getMonthValue() - 1]).append(' ');
+        appendTwoDigits(prefix, time.getDayOfMonth()).append(' ');
+        datePrefix = prefix.toString();
+        boolean daylight = rules.isDaylightSavings(instant);
+        dateSuffix = ' ' + timeZone.getDisplayName(daylight, TimeZone.SHORT, Locale.US)
+                + ' ' + time.getYear();
+    }
+
+    private static StringBuilder appendTwoDigits(StringBuilder out, int value) {
+        return out.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+}
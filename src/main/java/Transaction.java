@@ -3,9 +3,9 @@ import java.util.Date;
 public class Transaction {
 
     /**
-     * The amount of this transaction.
+     * The amount of this transaction in cents.
      * */
-    private final double amount;
+    private final long amount;
 
     /**
      * The time and date of this transaction.
@@ -24,10 +24,10 @@ public class Transaction {
 
     /**
      * Create a new transaction without memo.
-     * @param amount    the account transacted
+     * @param amount    the account transacted in cents
      * @param inAccount the account the transaction belongs to
      */
-    public Transaction(double amount, Account inAccount) {
+    public Transaction(long amount, Account inAccount) {
         this.amount = amount;
         this.inAccount = inAccount;
         this.timestamp = new Date();
@@ -36,11 +36,11 @@ public class Transaction {
 
     /**
      * Create a new transaction without memo.
-     * @param amount    the account transacted
+     * @param amount    the account transacted in cents
      * @param memo      the memo for the transaction
      * @param inAccount the account the transaction belongs to
      */
-    public Transaction(double amount, String memo, Account inAccount) {
+    public Transaction(long amount, String memo, Account inAccount) {
         // Call two-args constructor first
         this(amount, inAccount);
 
@@ -48,33 +48,51 @@ public class Transaction {
         this.memo = memo;
     }
 
+    /**
+     * Create a transaction which was already made at a particular time.
+     * @param amount    the account transacted in cents
+     * @param timestamp the time and date of the transaction
+     * @param memo      the memo for the transaction
+     * @param inAccount the account the transaction belongs to
+     */
+    Transaction(long amount, Date timestamp, String memo, Account inAccount) {
+        this.amount = amount;
+        this.timestamp = timestamp;
+        this.memo = memo;
+        this.inAccount = inAccount;
+    }
+
     /**
      * Get the amount of the transaction.
-     * @return the amount
+     * @return the amount in cents
      */
-    public double getAmount() {
+    public long getAmount() {
         return this.amount;
     }
 
     /**
-     * Get a string summarizing the transaction
-     * @return the summary string
+     * Get the time and date of the transaction.
+     * @return the timestamp
      */
-    public String getSummaryLine() {
-        return String.format("%s\t:\t$%s\t:\t%s\n", this.timestamp.toString(),
-                getAmountLine(), this.memo);
+    public Date getTimestamp() {
+        return this.timestamp;
     }
 
     /**
-     * Get a string of amount. Negative amount add in rounded parentheses.
-     * @return string of amount
+     * Get the memo of the transaction.
+     * @return the memo
      */
-    private String getAmountLine() {
-        StringBuilder builder = new StringBuilder();
-        builder.append(this.amount);
-        if (amount < 0) {
-            builder.insert(0, "(").append(")");
-        }
-        return builder.toString();
+    public String getMemo() {
+        return this.memo;
+    }
+
+    /**
+     * Get a string summarizing the transaction
+     * @return the summary string
+     */
+    public String getSummaryLine() {
+        SummaryFormatter formatter = SummaryFormatter.forCurrentThread();
+        return formatter.appendTransaction(formatter.line(), this.timestamp.getTime(),
+                this.amount, this.memo).toString();
     }
 }
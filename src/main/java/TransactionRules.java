@@ -0,0 +1,409 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Rules checked before a client operation changes an account: an overdraft
+ *  limit, daily withdrawal caps, velocity limits on the number of
+ *  operations and withdrawal limits over a sliding window. The Builder
+ *  compiles the rules into flat arrays, which check walks in one loop.
+ *  <p>
+ *  The rules which look back in time read rolling aggregates of the
+ *  account, all kept in one long array per account, see newState. The array
+ *  is built from the recent history of the account on first use and then
+ *  updated with every transaction, so every rule costs O(1) per check.
+ *  Rules are immutable and shared by all accounts of a bank, a state array
+ *  is used under the lock of its account.
+ */
+public class TransactionRules {
+
+    /**
+     * The outcome of a check.
+     */
+    public enum Verdict {
+        ALLOWED("Allowed."),
+        OVERDRAFT("Amount must not be greater than account balance."),
+        DAILY_LIMIT("Amount exceeds the daily withdrawal limit of the account."),
+        VELOCITY_LIMIT("Too many operations on the account, try again later."),
+        WINDOW_LIMIT("Amount exceeds the withdrawal limit of the account, try again later.");
+
+        /**
+         * The message shown to the user.
+         * */
+        private final String message;
+
+        Verdict(String message) {
+            this.message = message;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    /**
+     * The number of buckets a sliding window is split into. A window limit
+     * counts withdrawals of up to one bucket more than its window.
+     */
+    static final int WINDOW_BUCKETS = 32;
+
+    private static final int WINDOW_SLOTS = WINDOW_BUCKETS + 1;
+
+    private static final long MILLIS_PER_DAY = TimeUnit.DAYS.toMillis(1);
+
+    private static final byte OVERDRAFT = 0;
+    private static final byte DAILY = 1;
+    private static final byte VELOCITY = 2;
+    private static final byte WINDOW = 3;
+
+    /**
+     * The rules of a bank which is not configured: no overdraft.
+     */
+    public static final TransactionRules DEFAULT = builder().build();
+
+    /**
+     * The kind of every rule, in order of evaluation.
+     * */
+    private final byte[] kinds;
+
+    /**
+     * The limit of every rule: cents, or operations for a velocity rule.
+     * */
+    private final long[] limits;
+
+    /**
+     * The window of a velocity rule, or the bucket width of a window rule,
+     * in milliseconds.
+     * */
+    private final long[] windows;
+
+    /**
+     * The offset of the aggregates of every rule in a state array.
+     * */
+    private final int[] offsets;
+
+    /**
+     * The length of a state array.
+     * */
+    private final int stateSize;
+
+    /**
+     * How far back in time the aggregates look, in milliseconds.
+     * */
+    private final long horizon;
+
+    /**
+     * The time zone in which days start.
+     * */
+    private final TimeZone timeZone;
+
+    private TransactionRules(Builder builder) {
+        int count = builder.kinds.size();
+        this.kinds = new byte[count];
+        this.limits = new long[count];
+        this.windows = new long[count];
+        this.offsets = new int[count];
+        this.timeZone = builder.timeZone;
+
+        int size = 0;
+        long horizon = 0;
+        for (int i = 0; i < count; i++) {
+            kinds[i] = builder.kinds.get(i);
+            limits[i] = builder.limits.get(i);
+            windows[i] = builder.windows.get(i);
+            offsets[i] = size;
+            switch (kinds[i]) {
+                case DAILY:
+                    // The day, the withdrawn amount
+                    size += 2;
+                    horizon = Math.max(horizon, 2 * MILLIS_PER_DAY);
+                    break;
+                case VELOCITY:
+                    // The count, the head of the ring, the ring of times
+                    size += 2 + (int) limits[i];
+                    horizon = Math.max(horizon, windows[i]);
+                    break;
+                case WINDOW:
+                    // The last bucket, the total, the buckets
+                    size += 2 + WINDOW_SLOTS;
+                    horizon = Math.max(horizon, windows[i] * WINDOW_SLOTS);
+                    break;
+                default:
+                    break;
+            }
+        }
+        this.stateSize = size;
+        this.horizon = horizon;
+    }
+
+    /**
+     * Start building rules.
+     * @return the builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Create the aggregates of an account from its recent history.
+     * @param store the transactions of the account
+     * @param now   the current time in epoch milliseconds
+     * @return      the state array
+     */
+    long[] newState(TransactionStore store, long now) {
+        long[] state = new long[stateSize];
+        for (int i = 0; i < kinds.length; i++) {
+            if (kinds[i] == DAILY || kinds[i] == WINDOW) {
+                state[offsets[i]] = Long.MIN_VALUE;
+            }
+        }
+        if (stateSize > 0) {
+            for (int i = store.countUntil(now - horizon); i < store.size(); i++) {
+                record(state, store.timestamp(i), store.amount(i));
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Check a new transaction against the rules.
+     * @param state     the aggregates of the account
+     * @param balance   the balance of the account in cents
+     * @param timestamp the time of the transaction in epoch milliseconds
+     * @param amount    the amount in cents, negative for a withdrawal
+     * @return          ALLOWED, or the first rule which is broken
+     */
+    Verdict check(long[] state, long balance, long timestamp, long amount) {
+        long withdrawal = amount < 0 ? -amount : 0;
+        for (int i = 0; i < kinds.length; i++) {
+            int o = offsets[i];
+            switch (kinds[i]) {
+                case OVERDRAFT:
+                    if (withdrawal > 0 && balance - withdrawal < -limits[i]) {
+                        return Verdict.OVERDRAFT;
+                    }
+                    break;
+                case DAILY:
+                    if (withdrawal > 0) {
+                        long today = state[o] == dayOf(timestamp) ? state[o + 1] : 0;
+                        if (today + withdrawal > limits[i]) {
+                            return Verdict.DAILY_LIMIT;
+                        }
+                    }
+                    break;
+                case VELOCITY:
+                    if (state[o] == limits[i] && state[o + 2 + (int) state[o + 1]] > timestamp - windows[i]) {
+                        return Verdict.VELOCITY_LIMIT;
+                    }
+                    break;
+                case WINDOW:
+                    if (withdrawal > 0) {
+                        advance(state, o, timestamp / windows[i]);
+                        if (state[o + 1] + withdrawal > limits[i]) {
+                            return Verdict.WINDOW_LIMIT;
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return Verdict.ALLOWED;
+    }
+
+    /**
+     * Add a transaction to the aggregates of an account.
+     * @param state     the aggregates of the account
+     * @param timestamp the time of the transaction in epoch milliseconds
+     * @param amount    the amount in cents, negative for a withdrawal
+     */
+    void record(long[] state, long timestamp, long amount) {
+        long withdrawal = amount < 0 ? -amount : 0;
+        for (int i = 0; i < kinds.length; i++) {
+            int o = offsets[i];
+            switch (kinds[i]) {
+                case DAILY: {
+                    long day = dayOf(timestamp);
+                    if (state[o] != day) {
+                        state[o] = day;
+                        state[o + 1] = 0;
+                    }
+                    state[o + 1] += withdrawal;
+                    break;
+                }
+                case VELOCITY: {
+                    int capacity = (int) limits[i];
+                    int count = (int) state[o];
+                    int head = (int) state[o + 1];
+                    if (count < capacity) {
+                        state[o + 2 + (head + count) % capacity] = timestamp;
+                        state[o] = count + 1;
+                    } else {
+                        state[o + 2 + head] = timestamp;
+                        state[o + 1] = (head + 1) % capacity;
+                    }
+                    break;
+                }
+                case WINDOW: {
+                    long bucket = timestamp / windows[i];
+                    advance(state, o, bucket);
+                    if (withdrawal > 0 && state[o] - bucket < WINDOW_SLOTS) {
+                        state[o + 2 + Math.floorMod(bucket, WINDOW_SLOTS)] += withdrawal;
+                        state[o + 1] += withdrawal;
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Move a sliding window forward, forgetting the buckets which fall out
+     * of it.
+     * @param state     the aggregates of the account
+     * @param o         the offset of the window in the state
+     * @param bucket    the number of the current bucket
+     */
+    private static void advance(long[] state, int o, long bucket) {
+        long last = state[o];
+        if (bucket <= last) {
+            return;
+        }
+        if (last == Long.MIN_VALUE || bucket - last >= WINDOW_SLOTS) {
+            for (int s = 0; s < WINDOW_SLOTS; s++) {
+                state[o + 2 + s] = 0;
+            }
+            state[o + 1] = 0;
+        } else {
+            for (long b = last + 1; b <= bucket; b++) {
+                int slot = o + 2 + Math.floorMod(b, WINDOW_SLOTS);
+                state[o + 1] -= state[slot];
+                state[slot] = 0;
+            }
+        }
+        state[o] = bucket;
+    }
+
+    /**
+     * Get the number of the local day of a time.
+     * @param timestamp the time in epoch milliseconds
+     * @return          the days since the epoch in the time zone
+     */
+    private long dayOf(long timestamp) {
+        return Math.floorDiv(timestamp + timeZone.getOffset(timestamp), MILLIS_PER_DAY);
+    }
+
+    /**
+     * Builder of rules. Rules are evaluated in the order they are added,
+     * after the overdraft limit.
+     */
+    public static class Builder {
+
+        private final List<Byte> kinds = new ArrayList<>();
+        private final List<Long> limits = new ArrayList<>();
+        private final List<Long> windows = new ArrayList<>();
+        private long overdraftLimit;
+        private TimeZone timeZone = TimeZone.getDefault();
+
+        private Builder() {
+        }
+
+        /**
+         * Set how far below zero a withdrawal may take the balance, zero
+         * by default.
+         * @param cents the overdraft limit in cents
+         * @return      this builder
+         */
+        public Builder overdraftLimit(long cents) {
+            this.overdraftLimit = requireNonNegative(cents);
+            return this;
+        }
+
+        /**
+         * Limit the amount withdrawn from an account per local day.
+         * @param cents the limit in cents
+         * @return      this builder
+         */
+        public Builder dailyWithdrawalLimit(long cents) {
+            return add(DAILY, requireNonNegative(cents), 0);
+        }
+
+        /**
+         * Limit the number of transactions of an account in any window of
+         * time, including deposits and transfers to it.
+         * @param operations    the greatest number of transactions
+         * @param windowMillis  the window in milliseconds
+         * @return              this builder
+         */
+        public Builder velocityLimit(int operations, long windowMillis) {
+            if (operations <= 0) {
+                throw new IllegalArgumentException("Operations must be positive: " + operations);
+            }
+            return add(VELOCITY, operations, requirePositive(windowMillis));
+        }
+
+        /**
+         * Limit the amount withdrawn from an account in a sliding window
+         * of time.
+         * @param cents         the limit in cents
+         * @param windowMillis  the window in milliseconds
+         * @return              this builder
+         */
+        public Builder withdrawalLimit(long cents, long windowMillis) {
+            long width = (requirePositive(windowMillis) + WINDOW_BUCKETS - 1) / WINDOW_BUCKETS;
+            return add(WINDOW, requireNonNegative(cents), width);
+        }
+
+        /**
+         * Set the time zone in which days start, the default one by
+         * default.
+         * @param timeZone  the time zone
+         * @return          this builder
+         */
+        public Builder timeZone(TimeZone timeZone) {
+            this.timeZone = timeZone;
+            return this;
+        }
+
+        /**
+         * Compile the rules.
+         * @return the rules
+         */
+        public TransactionRules build() {
+            kinds.add(0, OVERDRAFT);
+            limits.add(0, overdraftLimit);
+            windows.add(0, 0L);
+            try {
+                return new TransactionRules(this);
+            } finally {
+                kinds.remove(0);
+                limits.remove(0);
+                windows.remove(0);
+            }
+        }
+
+        private Builder add(byte kind, long limit, long window) {
+            kinds.add(kind);
+            limits.add(limit);
+            windows.add(window);
+            return this;
+        }
+
+        private static long requireNonNegative(long value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("Limit must not be negative: " + value);
+            }
+            return value;
+        }
+
+        private static long requirePositive(long window) {
+            if (window <= 0) {
+                throw new IllegalArgumentException("Window must be positive: " + window);
+            }
+            return window;
+        }
+    }
+}
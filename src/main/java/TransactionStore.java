@@ -0,0 +1,506 @@
+import java.util.Arrays;
+
+/**
+ *  Columnar storage of account transactions. Every transaction is kept as
+ *  a row in primitive arrays: timestamp in epoch milliseconds, amount in
+ *  cents and memo code, see SharedMemoDictionary. The oldest transactions may be kept
+ *  in a mapped snapshot file instead, then only newer ones are on the heap.
+ *  With a SegmentStore attached, older transactions of a full heap tail are
+ *  moved to compressed blocks of the segment store and read back through
+ *  its cache. Moving them is a separate step after add, see startSpill, so
+ *  the block is written without the lock of the owner and a failed write
+ *  never fails a transaction.
+ *  <p>
+ *  Transactions are in order of time and split into chunks of
+ *  CHECKPOINT_INTERVAL rows. Every chunk has its first timestamp indexed
+ *  and a balance checkpoint at its end, so time lookups search the small
+ *  chunk index first and then one chunk.
+ *  <p>
+ *  The store is not thread-safe, except the balance which may be read at
+ *  any time.
+ */
+public class TransactionStore {
+
+    /**
+     * Number of transactions between two balance checkpoints.
+     */
+    static final int CHECKPOINT_INTERVAL = 256;
+
+    /**
+     * The greatest number of transactions in the heap tail, once a
+     * SegmentStore is attached.
+     */
+    static final int HOT_ROWS = 2 * SegmentStore.BLOCK_ROWS;
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    /**
+     * The oldest transactions loaded from a snapshot, or null.
+     * */
+    private final MappedHistory base;
+
+    /**
+     * The number of transactions in base.
+     * */
+    private final int baseSize;
+
+    /**
+     * The store of cold blocks, or null if the whole tail is on the heap.
+     * */
+    private SegmentStore segments;
+
+    /**
+     * The addresses of cold blocks, which hold the transactions after base
+     * and before tailStart in order.
+     * */
+    private long[] blocks;
+
+    /**
+     * The number of cold blocks.
+     * */
+    private int numBlocks;
+
+    /**
+     * The index of the first transaction on the heap.
+     * */
+    private int tailStart;
+
+    /**
+     * The cold block being written, or null.
+     * */
+    private Spill spill;
+
+    /**
+     * Whether writing a cold block failed, then no block is written again
+     * and the whole tail stays on the heap.
+     * */
+    private boolean spillFailed;
+
+    /**
+     * The cold block read last and its number, so reading a run of
+     * transactions looks the block up once.
+     * */
+    private SegmentStore.Block lastBlock;
+    private int lastBlockNumber = -1;
+
+    /**
+     * The timestamps of transactions in the heap tail, never decreasing.
+     * */
+    private long[] timestamps;
+
+    /**
+     * The amounts of transactions in the heap tail in cents.
+     * */
+    private long[] amounts;
+
+    /**
+     * The memo codes of transactions in the heap tail.
+     * */
+    private long[] memoCodes;
+
+    /**
+     * The dictionary of memos of transactions in the heap tail which are
+     * not in the shared dictionary, rebuilt when transactions are moved to
+     * a cold block.
+     * */
+    private MemoDictionary memos;
+
+    /**
+     * The number of transactions, including base.
+     * */
+    private int size;
+
+    /**
+     * The current balance in cents.
+     * */
+    private volatile long balance;
+
+    /**
+     * Balance checkpoints after base, checkpoints[i] is the balance after
+     * the first (i + 1 + baseSize / CHECKPOINT_INTERVAL) * CHECKPOINT_INTERVAL
+     * transactions.
+     * */
+    private long[] checkpoints;
+
+    /**
+     * The first timestamps of chunks which start after base, chunkStarts[i]
+     * is the timestamp of transaction (i + ceil(baseSize / CHECKPOINT_INTERVAL))
+     * * CHECKPOINT_INTERVAL.
+     * */
+    private long[] chunkStarts;
+
+    /**
+     * Create a new empty store.
+     */
+    public TransactionStore() {
+        this(null, 0);
+    }
+
+    /**
+     * Create a store which starts with the history loaded from a snapshot.
+     * @param base      the history from the snapshot, or null
+     * @param balance   the balance after the history in cents
+     */
+    TransactionStore(MappedHistory base, long balance) {
+        this.base = base;
+        this.baseSize = base == null ? 0 : base.size();
+        this.size = this.baseSize;
+        this.tailStart = this.baseSize;
+        this.balance = balance;
+        this.timestamps = new long[INITIAL_CAPACITY];
+        this.amounts = new long[INITIAL_CAPACITY];
+        this.memoCodes = new long[INITIAL_CAPACITY];
+        this.memos = new MemoDictionary();
+        this.blocks = new long[0];
+        this.checkpoints = new long[INITIAL_CAPACITY];
+        this.chunkStarts = new long[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Get the number of transactions.
+     * @return the number of transactions
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the history loaded from a snapshot which the store starts with.
+     * @return the history, or null
+     */
+    MappedHistory base() {
+        return base;
+    }
+
+    /**
+     * Get the current balance.
+     * @return the balance in cents
+     */
+    public long balance() {
+        return balance;
+    }
+
+    /**
+     * Get the timestamp of a transaction.
+     * @param index the index of the transaction
+     * @return      the timestamp in epoch milliseconds
+     */
+    public long timestamp(int index) {
+        checkIndex(index);
+        if (index >= tailStart) {
+            return timestamps[index - tailStart];
+        }
+        return index < baseSize ? base.timestamp(index) : coldBlock(index).timestamps[coldRow(index)];
+    }
+
+    /**
+     * Get the amount of a transaction.
+     * @param index the index of the transaction
+     * @return      the amount in cents
+     */
+    public long amount(int index) {
+        checkIndex(index);
+        if (index >= tailStart) {
+            return amounts[index - tailStart];
+        }
+        return index < baseSize ? base.amount(index) : coldBlock(index).amounts[coldRow(index)];
+    }
+
+    /**
+     * Get the memo of a transaction.
+     * @param index the index of the transaction
+     * @return      the memo
+     */
+    public String memo(int index) {
+        checkIndex(index);
+        if (index >= tailStart) {
+            return SharedMemoDictionary.SHARED.decode(memoCodes[index - tailStart], memos);
+        }
+        return index < baseSize ? base.memo(index) : coldBlock(index).memos[coldRow(index)];
+    }
+
+    /**
+     * Get a balance checkpoint.
+     * @param index the index of the checkpoint
+     * @return      the balance after the first (index + 1) * CHECKPOINT_INTERVAL
+     *              transactions in cents
+     */
+    long checkpoint(int index) {
+        int baseCheckpoints = baseSize / CHECKPOINT_INTERVAL;
+        return index < baseCheckpoints ? base.checkpoint(index) : checkpoints[index - baseCheckpoints];
+    }
+
+    /**
+     * Get the timestamp of the first transaction of a chunk.
+     * @param index the index of the chunk
+     * @return      the timestamp of transaction index * CHECKPOINT_INTERVAL
+     *              in epoch milliseconds
+     */
+    long chunkStart(int index) {
+        int baseChunks = MappedHistory.numChunks(baseSize);
+        return index < baseChunks ? base.chunkStart(index) : chunkStarts[index - baseChunks];
+    }
+
+    /**
+     * Add a new transaction.
+     * @param timestamp the timestamp in epoch milliseconds. Timestamp which
+     *                  is earlier than the last one is moved to the last one,
+     *                  so the transactions always stay in order of time
+     * @param amount    the amount in cents
+     * @param memo      the memo
+     */
+    public void add(long timestamp, long amount, String memo) {
+        // Check for overflow before anything is stored
+        long newBalance = Math.addExact(balance, amount);
+
+        int tailSize = size - tailStart;
+        if (tailSize == timestamps.length) {
+            int capacity = tailSize * 2;
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            amounts = Arrays.copyOf(amounts, capacity);
+            memoCodes = Arrays.copyOf(memoCodes, capacity);
+        }
+        if (size > 0) {
+            timestamp = Math.max(timestamp, timestamp(size - 1));
+        }
+        timestamps[tailSize] = timestamp;
+        amounts[tailSize] = amount;
+        memoCodes[tailSize] = SharedMemoDictionary.SHARED.encode(memo, memos);
+
+        // Index the first timestamp of a new chunk
+        if (size % CHECKPOINT_INTERVAL == 0) {
+            int index = size / CHECKPOINT_INTERVAL - MappedHistory.numChunks(baseSize);
+            if (index == chunkStarts.length) {
+                chunkStarts = Arrays.copyOf(chunkStarts, index * 2);
+            }
+            chunkStarts[index] = timestamp;
+        }
+        size++;
+
+        // Update the running balance and save a checkpoint, if it is time
+        balance = newBalance;
+        if (size % CHECKPOINT_INTERVAL == 0) {
+            int index = size / CHECKPOINT_INTERVAL - 1 - baseSize / CHECKPOINT_INTERVAL;
+            if (index == checkpoints.length) {
+                checkpoints = Arrays.copyOf(checkpoints, index * 2);
+            }
+            checkpoints[index] = newBalance;
+        }
+    }
+
+    /**
+     * Keep older transactions in compressed blocks of a segment store from
+     * now on, moved by startSpill and finishSpill.
+     * @param segments  the segment store
+     */
+    void attachSegments(SegmentStore segments) {
+        this.segments = segments;
+    }
+
+    /**
+     * Get the number of transactions in the heap tail.
+     * @return the number of transactions
+     */
+    int hotSize() {
+        return size - tailStart;
+    }
+
+    /**
+     * Copy the oldest BLOCK_ROWS transactions of a heap tail of at least
+     * HOT_ROWS to a new cold block, unless a block is being written. The
+     * block is written by Spill.write without the lock of the store, since
+     * transactions never change once added, and then installed by
+     * finishSpill. Transactions may be added meanwhile.
+     * @return  the block to write, or null if there is none
+     */
+    Spill startSpill() {
+        if (segments == null || spill != null || size - tailStart < HOT_ROWS || spillFailed) {
+            return null;
+        }
+        int rows = SegmentStore.BLOCK_ROWS;
+        String[] blockMemos = new String[rows];
+        for (int i = 0; i < rows; i++) {
+            blockMemos[i] = SharedMemoDictionary.SHARED.decode(memoCodes[i], memos);
+        }
+        spill = new Spill(segments, Arrays.copyOf(timestamps, rows), Arrays.copyOf(amounts, rows), blockMemos);
+        return spill;
+    }
+
+    /**
+     * Move the transactions of a written block off the heap. A block which
+     * could not be written leaves them on the heap, and no block is
+     * written again, see isSpillFailed.
+     * @param spill the block from startSpill
+     */
+    void finishSpill(Spill spill) {
+        if (spill != this.spill) {
+            throw new IllegalStateException("Block is not being written");
+        }
+        this.spill = null;
+        long address = spill.address;
+        if (address < 0) {
+            spillFailed = true;
+            return;
+        }
+        int rows = SegmentStore.BLOCK_ROWS;
+        if (numBlocks == blocks.length) {
+            blocks = Arrays.copyOf(blocks, Math.max(INITIAL_CAPACITY, numBlocks * 2));
+        }
+        blocks[numBlocks++] = address;
+        tailStart += rows;
+
+        // Shift the rest of the tail and encode its local memos again, so
+        // the local dictionary holds only memos of the heap tail
+        int rest = size - tailStart;
+        System.arraycopy(timestamps, rows, timestamps, 0, rest);
+        System.arraycopy(amounts, rows, amounts, 0, rest);
+        MemoDictionary tailMemos = new MemoDictionary();
+        for (int i = 0; i < rest; i++) {
+            long code = memoCodes[rows + i];
+            memoCodes[i] = SharedMemoDictionary.isLocal(code) ? tailMemos.encode(memos.decode((int) code)) : code;
+        }
+        memos = tailMemos;
+    }
+
+    /**
+     * Check whether writing a cold block failed, so the heap tail grows
+     * without bound.
+     * @return  true if a block could not be written
+     */
+    boolean isSpillFailed() {
+        return spillFailed;
+    }
+
+    /**
+     * The oldest transactions of a heap tail copied for a new cold block.
+     */
+    static final class Spill {
+
+        private final SegmentStore segments;
+
+        private final long[] timestamps;
+
+        private final long[] amounts;
+
+        private final String[] memos;
+
+        /**
+         * The address of the written block, or -1.
+         * */
+        private long address = -1;
+
+        private Spill(SegmentStore segments, long[] timestamps, long[] amounts, String[] memos) {
+            this.segments = segments;
+            this.timestamps = timestamps;
+            this.amounts = amounts;
+            this.memos = memos;
+        }
+
+        /**
+         * Compress and append the block to the segment store. Needs no lock.
+         * @throws java.io.UncheckedIOException if the block can't be written,
+         *                                      finishSpill then keeps the
+         *                                      transactions on the heap
+         */
+        void write() {
+            address = segments.write(timestamps, amounts, memos, 0, memos.length);
+        }
+    }
+
+    private SegmentStore.Block coldBlock(int index) {
+        int number = (index - baseSize) / SegmentStore.BLOCK_ROWS;
+        if (number != lastBlockNumber) {
+            lastBlock = segments.read(blocks[number]);
+            lastBlockNumber = number;
+        }
+        return lastBlock;
+    }
+
+    private int coldRow(int index) {
+        return (index - baseSize) % SegmentStore.BLOCK_ROWS;
+    }
+
+    /**
+     * Get the balance as of a particular moment, including all transactions
+     * made at that moment. Starts from the nearest balance checkpoint before
+     * or after the moment, so at most CHECKPOINT_INTERVAL / 2 amounts are
+     * added up.
+     * @param time  the time in epoch milliseconds
+     * @return      the balance in cents
+     */
+    public long balanceAt(long time) {
+        int count = countUntil(time);
+        int floor = count / CHECKPOINT_INTERVAL;
+        int ceiling = Math.min(size, (floor + 1) * CHECKPOINT_INTERVAL);
+        long result;
+        if (count - floor * CHECKPOINT_INTERVAL <= ceiling - count) {
+            result = floor == 0 ? 0 : checkpoint(floor - 1);
+            for (int i = floor * CHECKPOINT_INTERVAL; i < count; i++) {
+                result += amount(i);
+            }
+        } else {
+            // The end of the chunk is closer, go back from it
+            result = ceiling == size ? balance : checkpoint(floor);
+            for (int i = ceiling - 1; i >= count; i--) {
+                result -= amount(i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of transactions with timestamp not later than the
+     * given one. Binary searches the chunk index, then the chunk.
+     * @param time  the time in epoch milliseconds
+     * @return      the number of transactions
+     */
+    public int countUntil(long time) {
+        // The number of chunks starting not later than time
+        int low = 0;
+        int high = MappedHistory.numChunks(size);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (chunkStart(mid) <= time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (low == 0) {
+            return 0;
+        }
+
+        // All earlier chunks are not later than time, all later ones are
+        low = (low - 1) * CHECKPOINT_INTERVAL;
+        high = Math.min(size, low + CHECKPOINT_INTERVAL);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamp(mid) <= time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Get the number of transactions made in a range of time.
+     * @param from  the start of the range in epoch milliseconds, inclusive
+     * @param to    the end of the range in epoch milliseconds, inclusive
+     * @return      the number of transactions
+     */
+    public int countBetween(long from, long to) {
+        if (from > to) {
+            return 0;
+        }
+        return countUntil(to) - (from == Long.MIN_VALUE ? 0 : countUntil(from - 1));
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Transaction index " + index
+                    + " out of bounds for length " + size);
+        }
+    }
+}
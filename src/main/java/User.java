@@ -1,13 +1,12 @@
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class User implements UUID {
 
-    private static final String SEC_HASH_ALG = "MD5";
-
     /**
      * The first name of user.
      * */
@@ -24,15 +23,22 @@ public class User implements UUID {
     private final String uuid;
 
     /**
-     * The MD5 hash of the user's pin number.
+     * The salted hash of the user's pin number, see PinHash.
      * */
-    private byte[] pinHash;
+    private final byte[] pinHash;
 
     /**
-     * The list accounts for this user.
+     * The list accounts for this user. Accounts are added rarely, while
+     * the list is read on every menu redraw.
      * */
     private final List<Account> accounts;
 
+    /**
+     * The last rendered summary of the accounts, replaced as a whole when
+     * an account changes. Readers never lock, racing renders are equal.
+     * */
+    private volatile AccountsSummary summary;
+
     /**
      * Create a new User.
      * @param firstName the user's first name
@@ -45,28 +51,36 @@ public class User implements UUID {
         this.firstName = firstName;
         this.lastName  = lastName;
 
-        // Store the pin's MD5 hash, rather than original value, for security
-        // reasons
-        try {
-            MessageDigest md = MessageDigest.getInstance(SEC_HASH_ALG);
-            this.pinHash = md.digest(pin.getBytes(StandardCharsets.UTF_8));
-        } catch (NoSuchAlgorithmException e) {
-            System.err.println("Error, caught NoSuchAlgorithmException.");
-            e.printStackTrace();
-            System.exit(1);
-        }
+        // Store the pin's salted hash, rather than original value, for
+        // security reasons
+        this.pinHash = PinHash.create(pin, bank.getPinIterations());
 
         // Get a new unique universal ID for the user
         this.uuid = bank.getNewUserUUID();
 
         // Create empty list of accounts
-        this.accounts = new ArrayList<>();
+        this.accounts = new CopyOnWriteArrayList<>();
 
         // Print log message
         System.out.printf("New user %s %s with ID %s created.\n",
                 this.lastName, this.firstName, this.uuid);
     }
 
+    /**
+     * Create a User restored from the log of the bank.
+     * @param firstName the user's first name
+     * @param lastName  the user's last name
+     * @param uuid      the user's UUID
+     * @param pinHash   the credential of the user's pin, see PinHash
+     */
+    User(String firstName, String lastName, String uuid, byte[] pinHash) {
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.uuid = uuid;
+        this.pinHash = pinHash;
+        this.accounts = new CopyOnWriteArrayList<>();
+    }
+
     /**
      * Add an account for the user.
      * @param account   the account to add
@@ -90,16 +104,7 @@ public class User implements UUID {
      * @return      whether the pin is valid or not
      */
     public boolean validatePin(String aPin) {
-        try {
-            MessageDigest md = MessageDigest.getInstance(SEC_HASH_ALG);
-            return MessageDigest.isEqual(md.digest(aPin.getBytes(StandardCharsets.UTF_8)),
-                    this.pinHash);
-        } catch (NoSuchAlgorithmException e) {
-            System.err.println("Error, caught NoSuchAlgorithmException.");
-            e.printStackTrace();
-            System.exit(1);
-        }
-        return false;
+        return PinHash.verify(aPin, this.pinHash);
     }
 
     /**
@@ -110,16 +115,63 @@ public class User implements UUID {
         return firstName;
     }
 
+    /**
+     * Return the user's last name.
+     * @return the last name
+     */
+    public String getLastName() {
+        return lastName;
+    }
+
+    /**
+     * Return the credential of the user's pin.
+     * @return the credential
+     */
+    byte[] getPinHash() {
+        return pinHash;
+    }
+
     /**
      * Print summaries for the accounts of this user.
      */
     public void printAccountsSummary() {
+        printAccountsSummary(System.out);
+    }
+
+    /**
+     * Print summaries for the accounts of this user to a stream.
+     * @param out   the stream to print to
+     */
+    public void printAccountsSummary(PrintStream out) {
+        out.print(getAccountsSummary());
+        out.println();
+    }
+
+    /**
+     * Get the summaries for the accounts of this user. The text is rendered
+     * again only after a transaction in one of the accounts, or after an
+     * account is added.
+     * @return the text of the summaries
+     */
+    String getAccountsSummary() {
+        AccountsSummary cached = this.summary;
+        if (cached != null && cached.isValid(this.accounts)) {
+            return cached.text;
+        }
+        Account[] current = this.accounts.toArray(new Account[0]);
 
-        System.out.printf("\n\n%s's accounts summary\n", this.firstName);
-        for (int i = 0; i < this.accounts.size(); i++) {
-            System.out.printf("%d) %s\n", i + 1, this.accounts.get(i).getSummaryLine());
+        // Versions are read before the lines, so a change made meanwhile
+        // leaves the summary invalid rather than stale
+        long[] versions = new long[current.length];
+        StringBuilder text = new StringBuilder(64 + 64 * current.length);
+        text.append("\n\n").append(this.firstName).append("'s accounts summary\n");
+        for (int i = 0; i < current.length; i++) {
+            versions[i] = current[i].getVersion();
+            text.append(i + 1).append(") ").append(current[i].getSummaryLine()).append('\n');
         }
-        System.out.println();
+        cached = new AccountsSummary(current, versions, text.toString());
+        this.summary = cached;
+        return cached.text;
     }
 
     /**
@@ -135,15 +187,79 @@ public class User implements UUID {
      * @param acctIndex the index of the account use
      */
     public void printAccountTransHistory(int acctIndex) {
-        this.accounts.get(acctIndex).printTransHistory();
+        printAccountTransHistory(acctIndex, System.out);
+    }
+
+    /**
+     * Print transaction history for a particular account to a stream.
+     * @param acctIndex the index of the account use
+     * @param out       the stream to print to
+     */
+    public void printAccountTransHistory(int acctIndex, PrintStream out) {
+        this.accounts.get(acctIndex).printTransHistory(out);
+    }
+
+    /**
+     * Get a page of the transaction history of a particular account.
+     * @param accountUUID   the UUID of the account
+     * @param cursor        HistoryPage.FIRST or the cursor of the previous
+     *                      page
+     * @param limit         the maximum number of transactions in the page
+     * @return              the page, newest first
+     */
+    public HistoryPage history(String accountUUID, int cursor, int limit) {
+        return getOwnAccount(accountUUID).history(cursor, limit);
+    }
+
+    /**
+     * Get a page of the transactions made in a range of time in a particular
+     * account.
+     * @param accountUUID   the UUID of the account
+     * @param cursor        HistoryPage.FIRST or the cursor of the previous
+     *                      page
+     * @param limit         the maximum number of transactions in the page
+     * @param from          the start of the range inclusive, or null
+     * @param to            the end of the range inclusive, or null
+     * @return              the page, newest first
+     */
+    public HistoryPage history(String accountUUID, int cursor, int limit, Date from, Date to) {
+        return getOwnAccount(accountUUID).history(cursor, limit, from, to);
+    }
+
+    /**
+     * Write the transaction history of a particular account, newest first.
+     * @param accountUUID   the UUID of the account
+     * @param out           the writer, which should be buffered
+     * @param from          the start of the range inclusive, or null
+     * @param to            the end of the range inclusive, or null
+     * @throws IOException if the writer fails
+     */
+    public void writeAccountHistory(String accountUUID, Writer out, Date from, Date to)
+            throws IOException {
+        getOwnAccount(accountUUID).writeHistory(out, from, to);
+    }
+
+    /**
+     * Find an account of this user.
+     * @param accountUUID   the UUID of the account
+     * @return              the account
+     * @throws IllegalArgumentException if the user has no such account
+     */
+    private Account getOwnAccount(String accountUUID) {
+        for (Account account : this.accounts) {
+            if (account.getUUID().equals(accountUUID)) {
+                return account;
+            }
+        }
+        throw new IllegalArgumentException("User " + this.uuid + " has no account " + accountUUID);
     }
 
     /**
      * Get the balance of a particular account.
      * @param accountIndex  the index of the account to use
-     * @return              the balance of the account
+     * @return              the balance of the account in cents
      */
-    public double getAccountBalance(int accountIndex) {
+    public long getAccountBalance(int accountIndex) {
         return this.accounts.get(accountIndex).getBalance();
     }
 
@@ -159,10 +275,71 @@ public class User implements UUID {
     /**
      * Add the transaction to a particular account
      * @param accountIndex      the index of the account
-     * @param amount            the amount of the transaction
+     * @param amount            the amount of the transaction in cents
      * @param memo              the memo of the transaction
      */
-    public void addAccountTransaction(int accountIndex, double amount, String memo) {
+    public void addAccountTransaction(int accountIndex, long amount, String memo) {
         this.accounts.get(accountIndex).addTransaction(amount, memo);
     }
+
+    /**
+     * Check a transaction on a particular account against the rules of the
+     * bank, without adding it
+     * @param accountIndex      the index of the account
+     * @param amount            the amount of the transaction in cents
+     * @return                  ALLOWED, or the first rule which is broken
+     */
+    public TransactionRules.Verdict checkAccountTransaction(int accountIndex, long amount) {
+        return this.accounts.get(accountIndex).checkTransaction(amount);
+    }
+
+    /**
+     * Add the transaction of a client request to a particular account, at
+     * most once however often the request is retried
+     * @param requestId         the unique ID of the request
+     * @param accountIndex      the index of the account
+     * @param amount            the amount of the transaction in cents
+     * @param memo              the memo of the transaction
+     * @return                  true if the transaction is done, false if the
+     *                          rules of the bank refuse it
+     */
+    public boolean addAccountTransaction(String requestId, int accountIndex, long amount, String memo) {
+        return this.accounts.get(accountIndex).addTransaction(requestId, amount, memo);
+    }
+
+    /**
+     * Immutable summary of the accounts with the versions it was rendered
+     * from.
+     */
+    private static final class AccountsSummary {
+
+        private final Account[] accounts;
+
+        private final long[] versions;
+
+        private final String text;
+
+        AccountsSummary(Account[] accounts, long[] versions, String text) {
+            this.accounts = accounts;
+            this.versions = versions;
+            this.text = text;
+        }
+
+        /**
+         * Check whether the summary is still up to date.
+         * @param current   the current accounts of the user
+         * @return          true if the accounts are the same and unchanged
+         */
+        boolean isValid(List<Account> current) {
+            if (current.size() != accounts.length) {
+                return false;
+            }
+            for (int i = 0; i < accounts.length; i++) {
+                if (current.get(i) != accounts[i] || accounts[i].getVersion() != versions[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
 }
@@ -0,0 +1,871 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ *  Append-only binary log of all changes of a Bank. Every record is framed
+ *  as [int payload length][int CRC32 of payload][payload], the payload
+ *  starts with the record type.
+ *  <p>
+ *  Transaction records carry the index of the transaction in its account,
+ *  so records which are already in a snapshot of the bank are skipped on
+ *  replay.
+ *  <p>
+ *  Records are appended to an in-memory buffer and written by a background
+ *  flusher thread, which fsyncs everything appended since its last round
+ *  at once (group commit). Callers which need durability wait with sync.
+ *  <p>
+ *  A replica may be attached to the log. The flusher sends it every round
+ *  after the fsync and counts the records durable only when the replica
+ *  has stored them too, so a record synced on the primary survives the
+ *  loss of either node. A replica which fails is dropped, and the log goes
+ *  on alone.
+ */
+public class WriteAheadLog implements Closeable {
+
+    static final byte USER = 1;
+    static final byte ACCOUNT = 2;
+    static final byte TRANSACTION = 3;
+    static final byte TRANSFER = 4;
+    static final byte REQUEST = 5;
+    static final byte REQUEST_TRANSFER = 6;
+    static final byte TRANSFER_OUT = 7;
+    static final byte CREDIT_DONE = 8;
+    static final byte CREDIT_REFUND = 9;
+    static final byte CREDIT_IN = 10;
+    static final byte CREDIT_REFUSED = 11;
+    static final byte CREDIT_FORGET = 12;
+
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+
+    /**
+     * The number of bytes of older records sent to a new replica at once.
+     */
+    private static final int CATCH_UP_CHUNK = 1 << 20;
+
+    /**
+     * Receiver of the records written to the log, usually a replica of the
+     * bank on another node.
+     */
+    interface Replica extends Closeable {
+
+        /**
+         * Store records on the replica and return when they are on its disk.
+         * @param records   the framed records, whole records only
+         * @param length    the number of bytes to store
+         * @throws IOException if the replica can't store the records
+         */
+        void replicate(byte[] records, int length) throws IOException;
+    }
+
+    /**
+     * The path of the log file.
+     * */
+    private final Path file;
+
+    /**
+     * The file of the log.
+     * */
+    private final FileChannel channel;
+
+    /**
+     * The monitor guarding the fields below.
+     * */
+    private final Object lock = new Object();
+
+    /**
+     * Records appended, but not written yet.
+     * */
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+    /**
+     * The sequence number of the last appended record.
+     * */
+    private long appendedSeq;
+
+    /**
+     * The sequence number of the last record which is on disk.
+     * */
+    private long durableSeq;
+
+    /**
+     * The length of the part of the file which is on disk.
+     * */
+    private long durablePosition;
+
+    /**
+     * The error of the last failed write, after which nothing is durable.
+     * */
+    private IOException failure;
+
+    private boolean closed;
+
+    /**
+     * The replica to attach at the start of the next round, or null.
+     * */
+    private Replica newReplica;
+
+    /**
+     * The length of the log the new replica already has.
+     * */
+    private long newReplicaPosition;
+
+    /**
+     * The replica receiving every round, or null. Used only by the flusher.
+     * */
+    private Replica replica;
+
+    /**
+     * The thread writing and syncing the pending records.
+     * */
+    private final Thread flusher;
+
+    /**
+     * Open the log for appending, creating the file if needed.
+     * @param file  the log file
+     * @param size  the length of the valid part of the file, the rest
+     *              (a torn record after crash) is cut off
+     * @throws IOException if the file can't be opened
+     */
+    private WriteAheadLog(Path file, long size) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (this.channel.size() < size) {
+            this.channel.close();
+            throw new IOException("Write-ahead log " + file + " is shorter than expected " + size + " bytes");
+        }
+        this.channel.truncate(size);
+        this.channel.position(size);
+        this.durablePosition = size;
+        this.flusher = new Thread(this::flushLoop, "wal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Replay the log into a bank and open it for appending.
+     * @param file      the log file, which may not exist yet
+     * @param offset    the offset of the first record to replay, records
+     *                  before it are already in the bank
+     * @param bank      the bank to restore
+     * @return          the opened log
+     * @throws IOException if the file can't be read or opened
+     */
+    static WriteAheadLog open(Path file, long offset, Bank bank) throws IOException {
+        long validSize = Files.exists(file) ? replay(file, offset, bank) : offset;
+        return new WriteAheadLog(file, validSize);
+    }
+
+    /**
+     * Apply all records of the log, which start at a particular offset,
+     * to a bank. Reading stops at the end of the file or at the first
+     * incomplete or damaged record.
+     * @param file      the log file
+     * @param offset    the offset of the first record to apply
+     * @param bank      the bank to restore
+     * @return          the offset after the last applied record
+     * @throws IOException if the file can't be read
+     */
+    static long replay(Path file, long offset, Bank bank) throws IOException {
+        try (FileChannel input = FileChannel.open(file, StandardOpenOption.READ)) {
+            input.position(offset);
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(input)));
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    if (length <= 0 || length > input.size()) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(payload);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                apply(payload, bank);
+                offset += HEADER_SIZE + payload.length;
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Apply one record to a bank.
+     * @param payload   the record payload
+     * @param bank      the bank to restore
+     * @throws IOException if the record is malformed
+     */
+    private static void apply(byte[] payload, Bank bank) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        switch (type) {
+            case USER: {
+                String uuid = in.readUTF();
+                String firstName = in.readUTF();
+                String lastName = in.readUTF();
+                byte[] pinHash = new byte[in.readUnsignedShort()];
+                in.readFully(pinHash);
+                if (bank.getUser(uuid) == null) {
+                    bank.restoreUser(new User(firstName, lastName, uuid, pinHash));
+                }
+                break;
+            }
+            case ACCOUNT: {
+                String uuid = in.readUTF();
+                String holderID = in.readUTF();
+                String name = in.readUTF();
+                if (bank.getAccount(uuid) == null) {
+                    bank.restoreAccount(uuid, holderID, name, new TransactionStore());
+                }
+                break;
+            }
+            case TRANSACTION: {
+                String accountID = in.readUTF();
+                int index = in.readInt();
+                long timestamp = in.readLong();
+                long amount = in.readLong();
+                String memo = in.readUTF();
+                bank.getAccount(accountID).replayTransaction(index, timestamp, amount, memo);
+                break;
+            }
+            case TRANSFER: {
+                String fromID = in.readUTF();
+                int fromIndex = in.readInt();
+                String toID = in.readUTF();
+                int toIndex = in.readInt();
+                long timestamp = in.readLong();
+                long amount = in.readLong();
+                bank.replayTransfer(fromID, fromIndex, toID, toIndex, timestamp, amount);
+                break;
+            }
+            case REQUEST_TRANSFER: {
+                String requestId = in.readUTF();
+                String fromID = in.readUTF();
+                int fromIndex = in.readInt();
+                String toID = in.readUTF();
+                int toIndex = in.readInt();
+                long timestamp = in.readLong();
+                long amount = in.readLong();
+                bank.replayTransfer(requestId, fromID, fromIndex, toID, toIndex, timestamp, amount);
+                break;
+            }
+            case REQUEST: {
+                String requestId = in.readUTF();
+                String accountID = in.readUTF();
+                int index = in.readInt();
+                long timestamp = in.readLong();
+                long amount = in.readLong();
+                String memo = in.readUTF();
+                bank.replayRequest(requestId, accountID, index, timestamp, amount, memo);
+                break;
+            }
+            case TRANSFER_OUT: {
+                String requestId = in.readUTF();
+                String fromID = in.readUTF();
+                int index = in.readInt();
+                long timestamp = in.readLong();
+                long amount = in.readLong();
+                String toID = in.readUTF();
+                bank.replayTransferOut(requestId, fromID, index, timestamp, amount, toID);
+                break;
+            }
+            case CREDIT_DONE: {
+                bank.replayCreditDone(in.readUTF());
+                break;
+            }
+            case CREDIT_REFUND: {
+                String requestId = in.readUTF();
+                String fromID = in.readUTF();
+                int index = in.readInt();
+                long timestamp = in.readLong();
+                long amount = in.readLong();
+                String toID = in.readUTF();
+                bank.replayCreditRefund(requestId, fromID, index, timestamp, amount, toID);
+                break;
+            }
+            case CREDIT_IN: {
+                String requestId = in.readUTF();
+                String toID = in.readUTF();
+                int index = in.readInt();
+                long timestamp = in.readLong();
+                long amount = in.readLong();
+                String fromID = in.readUTF();
+                bank.replayCreditIn(requestId, toID, index, timestamp, amount, fromID);
+                break;
+            }
+            case CREDIT_REFUSED: {
+                bank.replayCreditRefused(in.readUTF());
+                break;
+            }
+            case CREDIT_FORGET: {
+                bank.replayCreditForget(in.readUTF());
+                break;
+            }
+            default:
+                throw new IOException("Unknown log record type " + type);
+        }
+    }
+
+    /**
+     * Append a record of a new user.
+     * @param user  the new user
+     * @return      the sequence number of the record
+     */
+    long logUser(User user) {
+        byte[] pinHash = user.getPinHash();
+        return append(out -> {
+            out.writeByte(USER);
+            out.writeUTF(user.getUUID());
+            out.writeUTF(user.getFirstName());
+            out.writeUTF(user.getLastName());
+            out.writeShort(pinHash.length);
+            out.write(pinHash);
+        });
+    }
+
+    /**
+     * Append a record of a new account.
+     * @param account   the new account
+     * @return          the sequence number of the record
+     */
+    long logAccount(Account account) {
+        return append(out -> {
+            out.writeByte(ACCOUNT);
+            out.writeUTF(account.getUUID());
+            out.writeUTF(account.getHolder().getUUID());
+            out.writeUTF(account.getName());
+        });
+    }
+
+    /**
+     * Append a record of a new transaction.
+     * @param accountID the UUID of the account
+     * @param index     the index of the transaction in the account
+     * @param timestamp the timestamp in epoch milliseconds
+     * @param amount    the amount in cents
+     * @param memo      the memo
+     * @return          the sequence number of the record
+     */
+    long logTransaction(String accountID, int index, long timestamp, long amount, String memo) {
+        return append(out -> {
+            out.writeByte(TRANSACTION);
+            out.writeUTF(accountID);
+            out.writeInt(index);
+            out.writeLong(timestamp);
+            out.writeLong(amount);
+            out.writeUTF(memo);
+        });
+    }
+
+    /**
+     * Append a record of a transfer. Both transactions of the transfer are
+     * in one record, so the transfer is never restored half-applied.
+     * @param fromID    the UUID of the account to transfer from
+     * @param fromIndex the index of the transaction in the account to
+     *                  transfer from
+     * @param toID      the UUID of the account to transfer to
+     * @param toIndex   the index of the transaction in the account to
+     *                  transfer to
+     * @param timestamp the timestamp in epoch milliseconds
+     * @param amount    the amount in cents
+     * @return          the sequence number of the record
+     */
+    long logTransfer(String fromID, int fromIndex, String toID, int toIndex, long timestamp, long amount) {
+        return logTransfer(null, fromID, fromIndex, toID, toIndex, timestamp, amount);
+    }
+
+    /**
+     * Append a record of a transfer, see logTransfer, which carries the ID
+     * of the client request when there is one.
+     * @param requestId the unique ID of the request, or null
+     * @param fromID    the UUID of the account to transfer from
+     * @param fromIndex the index of the transaction in the account to
+     *                  transfer from
+     * @param toID      the UUID of the account to transfer to
+     * @param toIndex   the index of the transaction in the account to
+     *                  transfer to
+     * @param timestamp the timestamp in epoch milliseconds
+     * @param amount    the amount in cents
+     * @return          the sequence number of the record
+     */
+    long logTransfer(String requestId, String fromID, int fromIndex, String toID, int toIndex,
+                     long timestamp, long amount) {
+        return append(out -> {
+            if (requestId == null) {
+                out.writeByte(TRANSFER);
+            } else {
+                out.writeByte(REQUEST_TRANSFER);
+                out.writeUTF(requestId);
+            }
+            out.writeUTF(fromID);
+            out.writeInt(fromIndex);
+            out.writeUTF(toID);
+            out.writeInt(toIndex);
+            out.writeLong(timestamp);
+            out.writeLong(amount);
+        });
+    }
+
+    /**
+     * Append a record of a transaction made for a client request, see
+     * Bank.applyRequest.
+     * @param requestId the unique ID of the request
+     * @param accountID the UUID of the account
+     * @param index     the index of the transaction in the account
+     * @param timestamp the timestamp in epoch milliseconds
+     * @param amount    the amount in cents
+     * @param memo      the memo
+     * @return          the sequence number of the record
+     */
+    long logRequest(String requestId, String accountID, int index, long timestamp,
+                    long amount, String memo) {
+        return append(out -> {
+            out.writeByte(REQUEST);
+            out.writeUTF(requestId);
+            out.writeUTF(accountID);
+            out.writeInt(index);
+            out.writeLong(timestamp);
+            out.writeLong(amount);
+            out.writeUTF(memo);
+        });
+    }
+
+    /**
+     * Append a record of a transfer to an account of another bank, see
+     * Bank.transferOut. The withdrawal and the pending credit are in one
+     * record, so the credit is never lost after the money is withdrawn.
+     * @param requestId the unique ID of the transfer
+     * @param fromID    the UUID of the account to transfer from
+     * @param index     the index of the transaction in the account
+     * @param timestamp the timestamp in epoch milliseconds
+     * @param amount    the amount transferred in cents
+     * @param toID      the UUID of the account to transfer to
+     * @return          the sequence number of the record
+     */
+    long logTransferOut(String requestId, String fromID, int index, long timestamp,
+                        long amount, String toID) {
+        return append(out -> {
+            out.writeByte(TRANSFER_OUT);
+            out.writeUTF(requestId);
+            out.writeUTF(fromID);
+            out.writeInt(index);
+            out.writeLong(timestamp);
+            out.writeLong(amount);
+            out.writeUTF(toID);
+        });
+    }
+
+    /**
+     * Append a record of a pending credit which the other bank has done.
+     * @param requestId the unique ID of the transfer
+     * @return          the sequence number of the record
+     */
+    long logCreditDone(String requestId) {
+        return append(out -> {
+            out.writeByte(CREDIT_DONE);
+            out.writeUTF(requestId);
+        });
+    }
+
+    /**
+     * Append a record of a pending credit which the other bank refused, see
+     * Bank.refundCredit. The refund and the end of the credit are in one
+     * record, so the credit is never sent again after the refund.
+     * @param requestId the unique ID of the transfer
+     * @param fromID    the UUID of the account the amount was withdrawn from
+     * @param index     the index of the refund in the account
+     * @param timestamp the timestamp in epoch milliseconds
+     * @param amount    the amount given back in cents
+     * @param toID      the UUID of the account of the other bank
+     * @return          the sequence number of the record
+     */
+    long logCreditRefund(String requestId, String fromID, int index, long timestamp,
+                         long amount, String toID) {
+        return append(out -> {
+            out.writeByte(CREDIT_REFUND);
+            out.writeUTF(requestId);
+            out.writeUTF(fromID);
+            out.writeInt(index);
+            out.writeLong(timestamp);
+            out.writeLong(amount);
+            out.writeUTF(toID);
+        });
+    }
+
+    /**
+     * Append a record of a credit from another bank, see Bank.applyCredit.
+     * @param requestId the unique ID of the transfer
+     * @param toID      the UUID of the account to transfer to
+     * @param index     the index of the transaction in the account
+     * @param timestamp the timestamp in epoch milliseconds
+     * @param amount    the amount transferred in cents
+     * @param fromID    the UUID of the account of the other bank
+     * @return          the sequence number of the record
+     */
+    long logCreditIn(String requestId, String toID, int index, long timestamp,
+                     long amount, String fromID) {
+        return append(out -> {
+            out.writeByte(CREDIT_IN);
+            out.writeUTF(requestId);
+            out.writeUTF(toID);
+            out.writeInt(index);
+            out.writeLong(timestamp);
+            out.writeLong(amount);
+            out.writeUTF(fromID);
+        });
+    }
+
+    /**
+     * Append a record of a credit from another bank which was refused.
+     * @param requestId the unique ID of the transfer
+     * @return          the sequence number of the record
+     */
+    long logCreditRefused(String requestId) {
+        return append(out -> {
+            out.writeByte(CREDIT_REFUSED);
+            out.writeUTF(requestId);
+        });
+    }
+
+    /**
+     * Append a record of a credit from another bank whose result is not
+     * needed any more.
+     * @param requestId the unique ID of the transfer
+     * @return          the sequence number of the record
+     */
+    long logCreditForget(String requestId) {
+        return append(out -> {
+            out.writeByte(CREDIT_FORGET);
+            out.writeUTF(requestId);
+        });
+    }
+
+    /**
+     * Apply framed records received from the primary log to a bank and
+     * append them as they are, so this log stays a byte copy of the
+     * primary's one.
+     * @param records   the framed records
+     * @param bank      the bank to apply the records to
+     * @return          the sequence number of the last record
+     * @throws IOException if the records are malformed or can't be applied
+     */
+    long appendReplicated(byte[] records, Bank bank) throws IOException {
+        // Check all frames first, so the records are applied all or none
+        List<byte[]> payloads = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(records);
+        CRC32 crc = new CRC32();
+        while (buffer.hasRemaining()) {
+            if (buffer.remaining() < HEADER_SIZE) {
+                throw new IOException("Replicated record is truncated");
+            }
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                throw new IOException("Replicated record is truncated");
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Replicated record is damaged");
+            }
+            payloads.add(payload);
+        }
+        for (byte[] payload : payloads) {
+            apply(payload, bank);
+        }
+
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("Write-ahead log is closed");
+            }
+            if (failure != null) {
+                throw new UncheckedIOException("Write-ahead log failed", failure);
+            }
+            pending.write(records, 0, records.length);
+            lock.notifyAll();
+            appendedSeq += payloads.size();
+            return appendedSeq;
+        }
+    }
+
+    /**
+     * Start sending every round to a replica. Records which are on disk
+     * already, but not on the replica, are sent to it first.
+     * @param replica   the replica, which replaces the current one
+     * @param position  the length of the log the replica already has
+     */
+    void attachReplica(Replica replica, long position) {
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("Write-ahead log is closed");
+            }
+            if (newReplica != null) {
+                closeReplica(newReplica);
+            }
+            newReplica = replica;
+            newReplicaPosition = position;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Get the length of the part of the log file which is on disk. Records
+     * appended later are written after it.
+     * @return the length in bytes
+     */
+    long durablePosition() {
+        synchronized (lock) {
+            return durablePosition;
+        }
+    }
+
+    /**
+     * Wait until a record and all records before it are on disk.
+     * @param seq   the sequence number of the record
+     * @throws UncheckedIOException if the log can't be written
+     */
+    void sync(long seq) {
+        boolean interrupted = false;
+        synchronized (lock) {
+            while (durableSeq < seq && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (durableSeq < seq) {
+                throw new UncheckedIOException("Write-ahead log failed", failure);
+            }
+        }
+    }
+
+    /**
+     * Write and sync all pending records, then stop the flusher.
+     * @throws IOException if the log can't be written
+     */
+    @Override
+    public void close() throws IOException {
+        long last;
+        synchronized (lock) {
+            last = appendedSeq;
+        }
+        try {
+            sync(last);
+        } finally {
+            synchronized (lock) {
+                closed = true;
+                lock.notifyAll();
+            }
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            channel.close();
+        }
+    }
+
+    /**
+     * Encoder of one record payload.
+     */
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Frame a record and add it to the pending buffer.
+     * @param writer    the encoder of the record payload
+     * @return          the sequence number of the record
+     */
+    private long append(RecordWriter writer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try {
+            writer.write(new DataOutputStream(bytes));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] payload = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(payload.length).putInt((int) crc.getValue());
+
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("Write-ahead log is closed");
+            }
+            if (failure != null) {
+                throw new UncheckedIOException("Write-ahead log failed", failure);
+            }
+            pending.write(header.array(), 0, HEADER_SIZE);
+            pending.write(payload, 0, payload.length);
+            lock.notifyAll();
+            return ++appendedSeq;
+        }
+    }
+
+    /**
+     * Write and fsync pending records in rounds. Records appended while a
+     * round is running are all written by the next one.
+     */
+    private void flushLoop() {
+        while (true) {
+            ByteArrayOutputStream batch;
+            long batchSeq;
+            Replica attaching;
+            long attachPosition;
+            synchronized (lock) {
+                while (pending.size() == 0 && newReplica == null && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        // Only close stops the flusher
+                    }
+                }
+                if (pending.size() == 0 && newReplica == null) {
+                    if (replica != null) {
+                        closeReplica(replica);
+                    }
+                    return;
+                }
+                attaching = newReplica;
+                attachPosition = newReplicaPosition;
+                newReplica = null;
+                batch = pending;
+                batchSeq = appendedSeq;
+                pending = new ByteArrayOutputStream(Math.max(32, batch.size()));
+            }
+
+            try {
+                if (attaching != null) {
+                    attach(attaching, attachPosition);
+                }
+                byte[] records = batch.toByteArray();
+                ByteBuffer buffer = ByteBuffer.wrap(records);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+                if (records.length > 0) {
+                    ship(records, records.length);
+                }
+                long position = channel.position();
+                synchronized (lock) {
+                    durableSeq = batchSeq;
+                    durablePosition = position;
+                    lock.notifyAll();
+                }
+            } catch (IOException e) {
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Send the records which are on disk to a new replica and make it the
+     * current one.
+     * @param newReplica    the new replica
+     * @param position      the length of the log the replica already has
+     * @throws IOException if the log file can't be read
+     */
+    private void attach(Replica newReplica, long position) throws IOException {
+        if (replica != null) {
+            closeReplica(replica);
+        }
+        replica = newReplica;
+
+        long end = channel.position();
+        if (position > end) {
+            System.err.printf("Error, replica has %d bytes of the log, which has only %d.\n",
+                    position, end);
+            closeReplica(replica);
+            replica = null;
+            return;
+        }
+
+        // Send whole records in chunks of about CATCH_UP_CHUNK bytes
+        try (FileChannel input = FileChannel.open(file, StandardOpenOption.READ)) {
+            input.position(position);
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(input), 1 << 16));
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream(CATCH_UP_CHUNK);
+            DataOutputStream out = new DataOutputStream(chunk);
+            while (position < end && replica != null) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                out.writeInt(length);
+                out.writeInt(checksum);
+                out.write(payload);
+                position += HEADER_SIZE + length;
+                if (chunk.size() >= CATCH_UP_CHUNK || position == end) {
+                    ship(chunk.toByteArray(), chunk.size());
+                    chunk.reset();
+                }
+            }
+        }
+    }
+
+    /**
+     * Send records to the current replica, if there is one. A replica which
+     * fails is dropped.
+     * @param records   the framed records
+     * @param length    the number of bytes to send
+     */
+    private void ship(byte[] records, int length) {
+        if (replica == null) {
+            return;
+        }
+        try {
+            replica.replicate(records, length);
+        } catch (IOException e) {
+            System.err.println("Error, lost the replica of the log.");
+            e.printStackTrace();
+            closeReplica(replica);
+            replica = null;
+        }
+    }
+
+    private static void closeReplica(Replica replica) {
+        try {
+            replica.close();
+        } catch (IOException e) {
+            // The replica is dropped anyway
+        }
+    }
+}
@@ -0,0 +1,60 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+public class TestATMServer extends Assert {
+
+    @Test(timeout = 10_000)
+    public void testSessionOverLocalhost() throws Exception {
+        Bank bank = new Bank("Bank");
+        User user = bank.addUser("John", "Doe", "1234");
+
+        try (ATMServer server = new ATMServer(bank, 0)) {
+            server.start();
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+                OutputStream in = socket.getOutputStream();
+                // Log in, deposit 12.50 to the first account, quit the menu
+                // and close the session
+                String input = user.getUUID() + "\n1234\n3\n1\n12.50\nsalary\n5\nq\n";
+                in.write(input.getBytes(StandardCharsets.UTF_8));
+                in.flush();
+
+                InputStream out = socket.getInputStream();
+                String output = new String(out.readAllBytes(), StandardCharsets.UTF_8);
+                assertTrue(output.contains("Welcome John"));
+                assertTrue(output.endsWith("Session closed.\n"));
+            }
+        }
+        assertEquals(1250, user.getAccountBalance(0));
+    }
+
+    @Test(timeout = 10_000)
+    public void testOverflowingDepositAsksAgain() throws Exception {
+        Bank bank = new Bank("Bank");
+        User user = bank.addUser("John", "Doe", "1234");
+
+        try (ATMServer server = new ATMServer(bank, 0)) {
+            server.start();
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+                OutputStream in = socket.getOutputStream();
+                // Deposit the greatest balance, then a cent more which is
+                // refused, and nothing instead
+                String input = user.getUUID() + "\n1234\n3\n1\n92233720368547758.07\nsalary\n"
+                        + "3\n1\n0.01\n0\nbonus\n5\nq\n";
+                in.write(input.getBytes(StandardCharsets.UTF_8));
+                in.flush();
+
+                InputStream out = socket.getInputStream();
+                String output = new String(out.readAllBytes(), StandardCharsets.UTF_8);
+                assertTrue(output.contains(ATM.OVERFLOW_MESSAGE));
+                assertTrue(output.endsWith("Session closed.\n"));
+            }
+        }
+        assertEquals(Long.MAX_VALUE, user.getAccountBalance(0));
+    }
+}
@@ -0,0 +1,117 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+public class TestAccount extends Assert {
+
+    @Test
+    public void testRunningBalance() {
+        Bank bank = new Bank("Bank");
+        User user = bank.addUser("John", "Doe", "1234");
+        Account account = bank.getAccount(user.getAccountUUID(0));
+
+        for (int i = 0; i < 1000; i++) {
+            account.addTransaction(200, "deposit");
+        }
+        account.addTransaction(-50000, "withdraw");
+
+        assertEquals(150000, account.getBalance());
+        assertEquals(150000, account.getBalanceAt(new Date()));
+        assertEquals(0, account.getBalanceAt(new Date(0)));
+    }
+
+    @Test
+    public void testTransactionsAreMaterializedFromColumns() {
+        Bank bank = new Bank("Bank");
+        User user = bank.addUser("John", "Doe", "1234");
+        Account account = bank.getAccount(user.getAccountUUID(0));
+
+        account.addTransaction(1025, "first");
+        account.addTransaction(-25, "second");
+
+        assertEquals(1025, account.getTransaction(0).getAmount());
+        assertEquals(-25, account.getTransaction(1).getAmount());
+        assertTrue(account.getTransaction(1).getSummaryLine().endsWith("second\n"));
+        assertEquals(1000, account.getBalance());
+    }
+
+    @Test
+    public void testHistoryPages() {
+        Bank bank = new Bank("Bank");
+        User user = bank.addUser("John", "Doe", "1234");
+        String accountID = user.getAccountUUID(0);
+        Account account = bank.getAccount(accountID);
+        for (int i = 0; i < 10; i++) {
+            account.applyTransaction(1000L * i, i, "t" + i);
+        }
+
+        List<Long> amounts = new ArrayList<>();
+        HistoryPage page = user.history(accountID, HistoryPage.FIRST, 4);
+        while (true) {
+            for (Transaction transaction : page.getTransactions()) {
+                amounts.add(transaction.getAmount());
+            }
+            if (!page.hasMore()) {
+                break;
+            }
+            // New transactions don't shift older pages
+            account.applyTransaction(100_000, 100, "new");
+            page = user.history(accountID, page.getNextCursor(), 4);
+        }
+        assertEquals(List.of(9L, 8L, 7L, 6L, 5L, 4L, 3L, 2L, 1L, 0L), amounts);
+
+        page = account.history(HistoryPage.FIRST, 2, new Date(3000), new Date(6000));
+        assertEquals(6, page.getTransactions().get(0).getAmount());
+        assertEquals(5, page.getTransactions().get(1).getAmount());
+        page = account.history(page.getNextCursor(), 2, new Date(3000), new Date(6000));
+        assertEquals(2, page.getTransactions().size());
+        assertEquals(3, page.getTransactions().get(1).getAmount());
+        assertFalse(page.hasMore());
+    }
+
+    @Test
+    public void testWriteHistory() throws Exception {
+        Bank bank = new Bank("Bank");
+        User user = bank.addUser("John", "Doe", "1234");
+        Account account = bank.getAccount(user.getAccountUUID(0));
+        for (int i = 0; i < Account.HISTORY_CHUNK * 3 + 1; i++) {
+            account.applyTransaction(i, 1, "t" + i);
+        }
+
+        StringWriter out = new StringWriter();
+        user.writeAccountHistory(account.getUUID(), out, null, null);
+        String[] lines = out.toString().split("\n");
+        assertEquals(Account.HISTORY_CHUNK * 3 + 1, lines.length);
+        assertTrue(lines[0].endsWith("t" + Account.HISTORY_CHUNK * 3));
+        assertTrue(lines[lines.length - 1].endsWith("t0"));
+    }
+
+    @Test
+    public void testAccountsSummaryIsCachedUntilChanged() {
+        Bank bank = new Bank("Bank");
+        bank.setPinIterations(1);
+        User user = bank.addUser("John", "Doe", "1234");
+        Account account = bank.getAccount(user.getAccountUUID(0));
+        String summary = user.getAccountsSummary();
+        assertTrue(summary.startsWith("\n\nJohn's accounts summary\n1) "));
+        assertTrue(summary.contains("0.00"));
+        assertSame(summary, user.getAccountsSummary());
+
+        long version = account.getVersion();
+        account.addTransaction(1234, "deposit");
+        assertEquals(version + 1, account.getVersion());
+        String updated = user.getAccountsSummary();
+        assertNotSame(summary, updated);
+        assertTrue(updated.contains("12.34"));
+        assertSame(updated, user.getAccountsSummary());
+
+        Account checking = new Account("Checking", user, bank);
+        user.addAccount(checking);
+        bank.addAccount(checking);
+        assertTrue(user.getAccountsSummary().contains("2) " + checking.getSummaryLine()));
+    }
+}
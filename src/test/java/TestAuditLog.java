@@ -0,0 +1,113 @@
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TestAuditLog extends Assert {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<AuditEvent> readAll(Path directory) throws Exception {
+        List<AuditEvent> events = new ArrayList<>();
+        for (Path file : AuditLog.files(directory)) {
+            AuditLog.read(file, events::add);
+        }
+        return events;
+    }
+
+    @Test
+    public void testBankTransactionsAreAudited() throws Exception {
+        Path directory = folder.getRoot().toPath().resolve("audit");
+        String from;
+        String to;
+        try (Bank bank = new Bank("Bank")) {
+            bank.setPinIterations(1);
+            User user = bank.addUser("John", "Doe", "1234");
+            bank.setAuditLog(new AuditLog(directory));
+            Account checking = new Account("Checking", user, bank);
+            user.addAccount(checking);
+            bank.addAccount(checking);
+            from = user.getAccountUUID(0);
+            to = checking.getUUID();
+
+            user.addAccountTransaction(0, 1000, "deposit");
+            assertTrue(bank.transfer(from, to, 300));
+            user.addAccountTransaction(1, -100, "cash");
+        }
+
+        List<AuditEvent> events = readAll(directory);
+        assertEquals(4, events.size());
+        AuditEvent deposit = events.get(0);
+        assertEquals(from, deposit.getAccountID());
+        assertEquals(0, deposit.getIndex());
+        assertEquals(1000, deposit.getAmount());
+        assertEquals(1000, deposit.getBalance());
+        assertEquals("deposit", deposit.getMemo());
+        assertEquals(700, events.get(1).getBalance());
+        assertEquals(to, events.get(2).getAccountID());
+        assertEquals(300, events.get(2).getBalance());
+        assertEquals(200, events.get(3).getBalance());
+        assertEquals(1, events.get(3).getIndex());
+    }
+
+    @Test
+    public void testBlockingLosesNothing() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        int threads = 4;
+        int perThread = 25_000;
+        AuditLog audit = new AuditLog(directory, 64, AuditLog.Backpressure.BLOCK, 2);
+        List<Thread> publishers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String accountID = String.format("%010d", t);
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    assertTrue(audit.publish(accountID, i, i, 1, i + 1, "event"));
+                }
+            });
+            publishers.add(thread);
+            thread.start();
+        }
+        for (Thread thread : publishers) {
+            thread.join();
+        }
+        audit.close();
+        assertEquals(0, audit.getDropped());
+        assertEquals((long) threads * perThread, audit.getWritten());
+        assertFalse(audit.publish("0000000000", 0, 0, 1, 1, "late"));
+
+        // Every account sees its events in order, sequences are unique
+        List<AuditEvent> events = readAll(directory);
+        assertEquals(threads * perThread, events.size());
+        int[] nextIndex = new int[threads];
+        long lastSequence = -1;
+        for (AuditEvent event : events) {
+            assertTrue(event.getSequence() > lastSequence);
+            lastSequence = event.getSequence();
+            int account = Integer.parseInt(event.getAccountID());
+            assertEquals(nextIndex[account]++, event.getIndex());
+        }
+    }
+
+    @Test
+    public void testDroppingNeverWaits() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        AuditLog audit = new AuditLog(directory, 1, AuditLog.Backpressure.DROP, 1);
+        AtomicLong accepted = new AtomicLong();
+        int attempts = 100_000;
+        for (int i = 0; i < attempts; i++) {
+            if (audit.publish("0000000001", i, i, 1, i, "event")) {
+                accepted.incrementAndGet();
+            }
+        }
+        audit.close();
+        assertEquals(attempts, accepted.get() + audit.getDropped());
+        assertEquals(accepted.get(), audit.getWritten());
+        assertEquals(accepted.get(), readAll(directory).size());
+    }
+}
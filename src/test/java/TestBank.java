@@ -0,0 +1,123 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class TestBank extends Assert {
+
+    @Test
+    public void testReserveAccountUUIDs() {
+        Bank bank = new Bank("Bank");
+        String single = bank.getNewAccountUUID();
+        String[] uuids = bank.reserveAccountUUIDs(10_000);
+
+        Set<String> unique = new HashSet<>();
+        unique.add(single);
+        for (String uuid : uuids) {
+            assertEquals(10, uuid.length());
+            assertTrue(unique.add(uuid));
+        }
+        assertEquals(10_001, unique.size());
+    }
+
+    @Test
+    public void testFormatUUIDKeepsLeadingZeros() {
+        assertEquals("000042", Bank.formatUUID(42, 6));
+        assertEquals("9999999999", Bank.formatUUID(9_999_999_999L, 10));
+    }
+
+    @Test
+    public void testLoginAndLookup() {
+        Bank bank = new Bank("Bank");
+        User user = bank.addUser("John", "Doe", "1234");
+        bank.addUser("Jane", "Doe", "4321");
+
+        assertSame(user, bank.userLogin(user.getUUID(), "1234"));
+        assertNull(bank.userLogin(user.getUUID(), "4321"));
+        assertNull(bank.userLogin("abc", "1234"));
+        assertSame(user, bank.getUser(user.getUUID()));
+
+        String accountID = user.getAccountUUID(0);
+        assertSame(user, bank.getAccount(accountID).getHolder());
+        assertEquals(2, bank.getNumOfUsers());
+        assertEquals(2, bank.getNumOfAccounts());
+    }
+
+    @Test
+    public void testConcurrentDepositsAndUUIDs() throws Exception {
+        Bank bank = new Bank("Bank");
+        User user = bank.addUser("John", "Doe", "1234");
+        Account shared = bank.getAccount(user.getAccountUUID(0));
+
+        int threads = 8;
+        int perThread = 10_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<String[]>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    shared.addTransaction(1, "deposit");
+                }
+                return bank.reserveAccountUUIDs(perThread);
+            }));
+        }
+
+        Set<String> unique = new HashSet<>();
+        for (Future<String[]> future : futures) {
+            for (String uuid : future.get()) {
+                assertTrue(unique.add(uuid));
+            }
+        }
+        executor.shutdown();
+
+        assertEquals((long) threads * perThread, shared.getBalance());
+        assertFalse(unique.contains(shared.getUUID()));
+    }
+
+    @Test
+    public void testTransferIsOverdraftChecked() {
+        Bank bank = new Bank("Bank");
+        User user = bank.addUser("John", "Doe", "1234");
+        String from = user.getAccountUUID(0);
+        String to = bank.addUser("Jane", "Doe", "4321").getAccountUUID(0);
+        bank.getAccount(from).addTransaction(1000, "deposit");
+
+        assertFalse(bank.transfer(from, to, 1001));
+        assertTrue(bank.transfer(from, to, 400));
+        assertEquals(600, bank.getAccount(from).getBalance());
+        assertEquals(400, bank.getAccount(to).getBalance());
+    }
+
+    @Test
+    public void testOppositeTransfersDoNotDeadlock() throws Exception {
+        Bank bank = new Bank("Bank");
+        String a = bank.addUser("John", "Doe", "1234").getAccountUUID(0);
+        String b = bank.addUser("Jane", "Doe", "4321").getAccountUUID(0);
+        bank.getAccount(a).addTransaction(1000, "deposit");
+        bank.getAccount(b).addTransaction(1000, "deposit");
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Future<?> ab = executor.submit(() -> {
+            for (int i = 0; i < 50_000; i++) {
+                bank.transfer(a, b, 1);
+            }
+        });
+        Future<?> ba = executor.submit(() -> {
+            for (int i = 0; i < 50_000; i++) {
+                bank.transfer(b, a, 1);
+            }
+        });
+        ab.get(30, TimeUnit.SECONDS);
+        ba.get(30, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        assertEquals(2000, bank.getAccount(a).getBalance() + bank.getAccount(b).getBalance());
+    }
+}
@@ -0,0 +1,96 @@
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Path;
+
+public class TestBulkLoader extends Assert {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCsvImport() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("bank.wal");
+        String userID;
+        String accountID;
+        try (Bank bank = Bank.open("Bank", file)) {
+            bank.setPinIterations(10);
+            StringBuilder csv = new StringBuilder("U,u1,John,Doe,1234\nA,a1,u1,Checking\n\n");
+            for (int i = 0; i < 3 * BulkLoader.BATCH_SIZE; i++) {
+                csv.append("T,a1,").append(1000 + i).append(",1.25,Salary, March\n");
+            }
+            BulkLoader loader = new BulkLoader(bank, 2);
+            loader.expect(1, 1);
+            loader.loadCsv(new StringReader(csv.toString()));
+
+            userID = loader.getUserUUID("u1");
+            accountID = loader.getAccountUUID("a1");
+            assertEquals(3 * BulkLoader.BATCH_SIZE, loader.getNumTransactions());
+            assertEquals(3 * BulkLoader.BATCH_SIZE * 125L, bank.getAccount(accountID).getBalance());
+            assertEquals("Salary, March", bank.getAccount(accountID).getTransaction(0).getMemo());
+
+            // A later feed refers to the existing account by its UUID
+            new BulkLoader(bank).loadCsv(new StringReader("T," + accountID + ",5000,-0.25,Fee\n"));
+        }
+
+        try (Bank bank = Bank.open("Bank", file)) {
+            User user = bank.userLogin(userID, "1234");
+            assertNotNull(user);
+            assertEquals(accountID, user.getAccountUUID(0));
+            assertEquals(3 * BulkLoader.BATCH_SIZE * 125L - 25, bank.getAccount(accountID).getBalance());
+        }
+    }
+
+    @Test
+    public void testBinaryImport() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte('U');
+        out.writeUTF("u1");
+        out.writeUTF("Jane");
+        out.writeUTF("Doe");
+        out.writeUTF("4321");
+        out.writeByte('A');
+        out.writeUTF("a1");
+        out.writeUTF("u1");
+        out.writeUTF("Savings");
+        out.writeByte('T');
+        out.writeUTF("a1");
+        out.writeLong(1000);
+        out.writeLong(-500);
+        out.writeUTF("Rent");
+
+        Bank bank = new Bank("Bank");
+        bank.setPinIterations(10);
+        BulkLoader loader = new BulkLoader(bank);
+        loader.loadBinary(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertNotNull(bank.userLogin(loader.getUserUUID("u1"), "4321"));
+        assertEquals(-500, bank.getAccount(loader.getAccountUUID("a1")).getBalance());
+    }
+
+    @Test
+    public void testMalformedRecordIsReported() {
+        Bank bank = new Bank("Bank");
+        BulkLoader loader = new BulkLoader(bank);
+        try {
+            loader.loadCsv(new StringReader("U,u1,John,Doe,1234\nA,a1,u2,Checking\n"));
+            fail();
+        } catch (IOException e) {
+            assertEquals("Record 2: unknown user u2", e.getMessage());
+        }
+        try {
+            loader.loadCsv(new StringReader("T,a1,x,1.00,memo\n"));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Record 1: "));
+        }
+    }
+}
@@ -0,0 +1,282 @@
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+public class TestCluster extends Assert {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static InetSocketAddress loopback() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+    }
+
+    @Test
+    public void testCrossNodeTransfersAreIdempotent() throws Exception {
+        ClusterMap map = new ClusterMap(2);
+        try (Bank bank0 = new Bank("Bank");
+             Bank bank1 = new Bank("Bank");
+             ClusterNode node0 = new ClusterNode(bank0, map, 0, true, loopback());
+             ClusterNode node1 = new ClusterNode(bank1, map, 1, true, loopback());
+             ClusterClient client = new ClusterClient(map)) {
+            bank0.setPinIterations(1);
+            bank1.setPinIterations(1);
+            map.setOwner(0, node0.getAddress());
+            map.setOwner(1, node1.getAddress());
+            node0.start();
+            node1.start();
+
+            String a = client.openAccount(0, "John", "Doe", "1234");
+            String b = client.openAccount(1, "Jane", "Doe", "4321");
+            assertEquals(0, map.rangeOf(a));
+            assertEquals(1, map.rangeOf(b));
+            assertNotNull(bank0.getAccount(a));
+            assertNotNull(bank1.getAccount(b));
+
+            String deposit = ClusterClient.newRequestId();
+            client.deposit(deposit, a, 1000, "deposit");
+            client.deposit(deposit, a, 1000, "deposit");
+            assertEquals(1000, client.getBalance(a));
+
+            // A repeated transfer moves the money only once
+            String transfer = ClusterClient.newRequestId();
+            assertTrue(client.transfer(transfer, a, b, 300));
+            assertTrue(client.transfer(transfer, a, b, 300));
+            assertEquals(700, client.getBalance(a));
+            assertEquals(300, client.getBalance(b));
+            assertEquals(1, bank1.getAccount(b).getNumTransactions());
+
+            assertTrue(client.transfer(ClusterClient.newRequestId(), b, a, 100));
+            assertFalse(client.transfer(ClusterClient.newRequestId(), b, a, 1000));
+            assertFalse(client.withdraw(ClusterClient.newRequestId(), a, 1000, "too much"));
+            assertEquals(800, client.getBalance(a));
+            assertEquals(200, client.getBalance(b));
+
+            // Nothing is withdrawn for a missing destination
+            String missing = Bank.formatUUID(map.rangeStart(1), Bank.ACCOUNT_UUID_LENGTH);
+            try {
+                client.transfer(ClusterClient.newRequestId(), a, missing, 100);
+                fail("Transfer to a missing account must fail");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+            assertEquals(800, client.getBalance(a));
+        }
+    }
+
+    @Test
+    public void testReplicaTakesOver() throws Exception {
+        Path primaryLog = folder.getRoot().toPath().resolve("primary.wal");
+        Path replicaLog = folder.getRoot().toPath().resolve("replica.wal");
+        ClusterMap map = new ClusterMap(1);
+        String a;
+        String b;
+        String transfer = ClusterClient.newRequestId();
+        try (Bank replicaBank = Bank.open("Bank", replicaLog);
+             ClusterNode replica = new ClusterNode(replicaBank, map, 0, false, loopback());
+             ClusterClient client = new ClusterClient(map)) {
+            replica.start();
+
+            try (Bank primaryBank = Bank.open("Bank", primaryLog);
+                 ClusterNode primary = new ClusterNode(primaryBank, map, 0, true, loopback())) {
+                primaryBank.setPinIterations(1);
+                map.setOwner(0, primary.getAddress());
+                primary.start();
+
+                // The replica gets the records written before it was attached
+                a = client.openAccount(0, "John", "Doe", "1234");
+                client.deposit(ClusterClient.newRequestId(), a, 1000, "deposit");
+                primary.replicateTo(replica.getAddress());
+                b = client.openAccount(0, "Jane", "Doe", "4321");
+                assertTrue(client.transfer(transfer, a, b, 250));
+            }
+
+            // The replica refuses clients until it is promoted
+            assertFalse(replica.isPrimary());
+            replica.promote();
+            assertEquals(replica.getAddress(), map.getOwner(0));
+
+            // The retry of the transfer which was done on the lost primary
+            assertTrue(client.transfer(transfer, a, b, 250));
+            assertEquals(750, client.getBalance(a));
+            assertEquals(250, client.getBalance(b));
+            assertTrue(client.withdraw(ClusterClient.newRequestId(), b, 50, "cash"));
+        }
+
+        // The log of the replica restores the bank with the request keys
+        try (Bank bank = Bank.open("Bank", replicaLog)) {
+            assertEquals(750, bank.getAccount(a).getBalance());
+            assertEquals(200, bank.getAccount(b).getBalance());
+            assertTrue(bank.applyRequest(transfer, a, -250, "again"));
+            assertEquals(750, bank.getAccount(a).getBalance());
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void testPendingCreditsAreSentAgain() throws Exception {
+        Path log = folder.getRoot().toPath().resolve("source.wal");
+        Path snapshot = folder.getRoot().toPath().resolve("source.snapshot");
+        ClusterMap map = new ClusterMap(2);
+        String transfer = ClusterClient.newRequestId();
+        String a;
+        try (Bank bank1 = new Bank("Bank");
+             ClusterNode node1 = new ClusterNode(bank1, map, 1, true, loopback());
+             ClusterClient client = new ClusterClient(map)) {
+            bank1.setPinIterations(1);
+            bank1.setTransactionRules(TransactionRules.builder()
+                    .velocityLimit(1, TimeUnit.HOURS.toMillis(1))
+                    .build());
+            map.setOwner(1, node1.getAddress());
+            node1.start();
+            String b = client.openAccount(1, "Jane", "Doe", "4321");
+            client.deposit(ClusterClient.newRequestId(), b, 50, "deposit");
+
+            // The source node withdraws and stops before the credit is sent
+            try (Bank bank0 = Bank.open("Bank", log, snapshot)) {
+                bank0.setPinIterations(1);
+                bank0.setAccountUUIDRange(map.rangeStart(0), map.rangeEnd(0));
+                a = bank0.addUser("John", "Doe", "1234").getAccountUUID(0);
+                assertTrue(bank0.applyRequest(ClusterClient.newRequestId(), a, 1000, "deposit"));
+                assertNotNull(bank0.transferOut(transfer, a, b, 300));
+                bank0.checkpoint();
+            }
+
+            // The restarted node sends the credit, which skips the rules
+            try (Bank bank0 = Bank.open("Bank", log, snapshot);
+                 ClusterNode node0 = new ClusterNode(bank0, map, 0, true, loopback())) {
+                assertEquals(1, bank0.getPendingCredits().size());
+                map.setOwner(0, node0.getAddress());
+                node0.start();
+                while (!bank0.getPendingCredits().isEmpty()) {
+                    Thread.sleep(20);
+                }
+                assertEquals(700, client.getBalance(a));
+                assertEquals(350, client.getBalance(b));
+
+                // A retry of the transfer moves nothing
+                assertTrue(client.transfer(transfer, a, b, 300));
+                assertEquals(700, client.getBalance(a));
+                assertEquals(350, client.getBalance(b));
+            }
+        }
+
+        // The log remembers that the credit is done
+        try (Bank bank0 = Bank.open("Bank", log, snapshot)) {
+            assertTrue(bank0.getPendingCredits().isEmpty());
+            assertEquals(700, bank0.getAccount(a).getBalance());
+        }
+    }
+
+    @Test
+    public void testRefundedTransferIsNotSentAgain() throws Exception {
+        Path log = folder.getRoot().toPath().resolve("source.wal");
+        Path snapshot = folder.getRoot().toPath().resolve("source.snapshot");
+        ClusterMap map = new ClusterMap(2);
+        String transfer = ClusterClient.newRequestId();
+        String a;
+        String b;
+        try (Bank bank0 = Bank.open("Bank", log, snapshot);
+             Bank bank1 = new Bank("Bank");
+             ClusterNode node0 = new ClusterNode(bank0, map, 0, true, loopback());
+             ClusterNode node1 = new ClusterNode(bank1, map, 1, true, loopback());
+             ClusterClient client = new ClusterClient(map)) {
+            bank0.setPinIterations(1);
+            bank1.setPinIterations(1);
+            map.setOwner(0, node0.getAddress());
+            map.setOwner(1, node1.getAddress());
+            node0.start();
+            node1.start();
+            a = client.openAccount(0, "John", "Doe", "1234");
+            b = client.openAccount(1, "Jane", "Doe", "4321");
+            client.deposit(ClusterClient.newRequestId(), a, 1000, "deposit");
+            client.deposit(ClusterClient.newRequestId(), b, Long.MAX_VALUE - 100, "deposit");
+
+            // The credit would overflow, so the amount is given back
+            try {
+                client.transfer(transfer, a, b, 300);
+                fail("Transfer to a full account must fail");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+            assertEquals(1000, client.getBalance(a));
+            assertTrue(bank0.getPendingCredits().isEmpty());
+
+            // The retry gets the refund and sends nothing, though the
+            // credit would fit now
+            assertTrue(client.withdraw(ClusterClient.newRequestId(), b, 1000, "cash"));
+            try {
+                client.transfer(transfer, a, b, 300);
+                fail("Retry of a refunded transfer must fail");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+            assertEquals(1000, client.getBalance(a));
+            assertEquals(Long.MAX_VALUE - 1100, client.getBalance(b));
+            assertEquals(2, bank1.getAccount(b).getNumTransactions());
+            bank0.checkpoint();
+        }
+
+        // The snapshot remembers the refund
+        try (Bank bank0 = Bank.open("Bank", log, snapshot)) {
+            assertEquals(1000, bank0.getAccount(a).getBalance());
+            assertTrue(bank0.getPendingCredits().isEmpty());
+            assertEquals(PendingCredit.Status.REFUNDED, bank0.transferOut(transfer, a, b, 300).getStatus());
+            assertEquals(1000, bank0.getAccount(a).getBalance());
+        }
+    }
+
+    @Test
+    public void testCreditResultsAreKeptUntilForgotten() throws Exception {
+        Path log = folder.getRoot().toPath().resolve("destination.wal");
+        Path snapshot = folder.getRoot().toPath().resolve("destination.snapshot");
+        String done = ClusterClient.newRequestId();
+        String refused = ClusterClient.newRequestId();
+        String b;
+        try (Bank bank = Bank.open("Bank", log, snapshot)) {
+            bank.setPinIterations(1);
+            b = bank.addUser("Jane", "Doe", "4321").getAccountUUID(0);
+            bank.applyCredit(done, b, "000000001", 300);
+            assertTrue(bank.applyRequest(ClusterClient.newRequestId(), b, Long.MAX_VALUE - 400, "deposit"));
+            try {
+                bank.applyCredit(refused, b, "000000001", 200);
+                fail("Credit to a full account must fail");
+            } catch (ArithmeticException e) {
+                // Expected
+            }
+
+            // More requests than the request table keeps
+            for (int i = 0; i <= RequestTable.MAX_ENTRIES; i++) {
+                assertTrue(bank.applyRequest(ClusterClient.newRequestId(), b, -1, "fee"));
+            }
+            bank.checkpoint();
+        }
+
+        try (Bank bank = Bank.open("Bank", log, snapshot)) {
+            long balance = bank.getAccount(b).getBalance();
+            bank.applyCredit(done, b, "000000001", 300);
+            assertEquals(balance, bank.getAccount(b).getBalance());
+
+            // A refused credit stays refused, though it would fit now
+            try {
+                bank.applyCredit(refused, b, "000000001", 200);
+                fail("Refused credit must stay refused");
+            } catch (ArithmeticException e) {
+                // Expected
+            }
+            assertEquals(balance, bank.getAccount(b).getBalance());
+
+            bank.forgetCredit(done);
+            bank.forgetCredit(refused);
+        }
+
+        try (Bank bank = Bank.open("Bank", log, snapshot)) {
+            assertTrue(bank.getCreditResults().isEmpty());
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import javax.management.MBeanServer;
+
+public class TestMetrics extends Assert {
+
+    @Test
+    public void testHistogramQuantiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtQuantile(0.99));
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(100_000, histogram.getCount());
+        assertEquals(50_000.5, histogram.getMean(), 1e-9);
+        assertEquals(100_000, histogram.getMax());
+        assertEquals(50_000, histogram.getValueAtQuantile(0.5), 50_000 / 32.0);
+        assertEquals(99_000, histogram.getValueAtQuantile(0.99), 99_000 / 32.0);
+        assertEquals(100_000, histogram.getValueAtQuantile(1));
+
+        // Every value is within its bucket, and buckets are contiguous
+        for (long value : new long[] {0, 1, 63, 64, 65, 1000, 123_456_789, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(value <= LatencyHistogram.highestValueOf(bucket));
+            assertTrue(bucket == 0 || value > LatencyHistogram.highestValueOf(bucket - 1));
+        }
+    }
+
+    @Test
+    public void testOperationsAreExposed() throws Exception {
+        Bank theBank = new Bank("Bank");
+        theBank.setPinIterations(1);
+        User user = theBank.addUser("John", "Doe", "1234");
+        long logins = Metrics.LOGIN.getCount();
+        long failures = Metrics.LOGIN.getFailures();
+        assertSame(user, theBank.userLogin(user.getUUID(), "1234"));
+        assertNull(theBank.userLogin(user.getUUID(), "4321"));
+        assertEquals(logins + 2, Metrics.LOGIN.getCount());
+        assertEquals(failures + 1, Metrics.LOGIN.getFailures());
+        assertTrue(Metrics.UUID_GENERATION.getCount() >= 2);
+
+        Metrics.registerMBeans();
+        Metrics.registerMBeans();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Object count = server.getAttribute(Metrics.objectName(Metrics.LOGIN), "Count");
+        assertTrue((Long) count >= logins + 2);
+
+        try (MetricsEndpoint endpoint = new MetricsEndpoint(0)) {
+            endpoint.start();
+            URL url = new URL("http://localhost:" + endpoint.getPort() + "/metrics");
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            assertEquals(200, connection.getResponseCode());
+            String text;
+            try (InputStream in = connection.getInputStream()) {
+                text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            assertTrue(text.contains("atm_operation_count{operation=\"login\"} "));
+            assertTrue(text.contains("atm_operation_latency_micros{operation=\"login\",quantile=\"0.99\"} "));
+        }
+        theBank.close();
+    }
+}
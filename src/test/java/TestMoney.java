@@ -0,0 +1,32 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestMoney extends Assert {
+
+    @Test
+    public void testParse() {
+        assertEquals(1234, Money.parse("12.34"));
+        assertEquals(1230, Money.parse("12.3"));
+        assertEquals(1200, Money.parse("12"));
+        assertEquals(50, Money.parse(".5"));
+        assertEquals(-1205, Money.parse("-12.05"));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testParseRejectsExtraDecimals() {
+        Money.parse("0.001");
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testParseRejectsGarbage() {
+        Money.parse("1e5");
+    }
+
+    @Test
+    public void testFormat() {
+        assertEquals("12.34", Money.format(1234));
+        assertEquals("0.05", Money.format(5));
+        assertEquals("-0.05", Money.format(-5));
+        assertEquals("-92233720368547758.08", Money.format(Long.MIN_VALUE));
+    }
+}
@@ -0,0 +1,49 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+public class TestPinHash extends Assert {
+
+    @Test
+    public void testVerify() {
+        byte[] credential = PinHash.create("1234", 100);
+        assertTrue(PinHash.verify("1234", credential));
+        assertFalse(PinHash.verify("1235", credential));
+        assertFalse(PinHash.verify("", credential));
+    }
+
+    @Test
+    public void testSaltIsRandom() {
+        assertFalse(MessageDigest.isEqual(PinHash.create("1234", 100), PinHash.create("1234", 100)));
+    }
+
+    @Test
+    public void testMatchesJdkPbkdf2() throws Exception {
+        byte[] salt = "0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        byte[] expected = factory.generateSecret(
+                new PBEKeySpec("1234".toCharArray(), salt, 1000, 256)).getEncoded();
+        assertArrayEquals(expected, PinHash.pbkdf2("1234", salt, 1000));
+    }
+
+    @Test
+    public void testLegacyMd5() throws Exception {
+        byte[] md5 = MessageDigest.getInstance("MD5").digest("1234".getBytes(StandardCharsets.UTF_8));
+        assertTrue(PinHash.verify("1234", md5));
+        assertFalse(PinHash.verify("4321", md5));
+    }
+
+    @Test
+    public void testLoginRejectsUnknownUserAndWrongPin() {
+        Bank bank = new Bank("Bank");
+        bank.setPinIterations(100);
+        User user = bank.addUser("John", "Doe", "1234");
+        assertSame(user, bank.userLogin(user.getUUID(), "1234"));
+        assertNull(bank.userLogin(user.getUUID(), "4321"));
+        assertNull(bank.userLogin("abc", "1234"));
+    }
+}
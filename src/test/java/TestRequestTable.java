@@ -0,0 +1,52 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestRequestTable extends Assert {
+
+    @Test
+    public void testFindPutAndEvict() {
+        RequestTable table = new RequestTable();
+        long first = RequestTable.fingerprint("first");
+        long second = RequestTable.fingerprint("second");
+        assertNotEquals(first, second);
+        assertEquals(RequestTable.NOT_FOUND, table.find(first));
+
+        table.put(first, 1000, 7);
+        table.put(second, 2000, RequestTable.REJECTED);
+        assertEquals(7, table.find(first));
+        assertEquals(RequestTable.REJECTED, table.find(second));
+
+        table.evictBefore(1500);
+        assertEquals(1, table.size());
+        assertEquals(RequestTable.NOT_FOUND, table.find(first));
+        assertEquals(RequestTable.REJECTED, table.find(second));
+    }
+
+    @Test
+    public void testOldestIsEvictedWhenFull() {
+        RequestTable table = new RequestTable();
+        int count = RequestTable.MAX_ENTRIES + 100;
+        for (int i = 0; i < count; i++) {
+            table.put(RequestTable.fingerprint("request " + i), i, i);
+        }
+        assertEquals(RequestTable.MAX_ENTRIES, table.size());
+
+        // Backward shift deletion leaves every remaining key reachable
+        for (int i = 0; i < count; i++) {
+            long expected = i < 100 ? RequestTable.NOT_FOUND : i;
+            assertEquals(expected, table.find(RequestTable.fingerprint("request " + i)));
+        }
+
+        List<Long> times = new ArrayList<>();
+        table.forEach((fingerprint, time, result) -> {
+            assertEquals(time, result);
+            times.add(time);
+        });
+        assertEquals(RequestTable.MAX_ENTRIES, times.size());
+        assertEquals(100L, (long) times.get(0));
+        assertEquals(count - 1L, (long) times.get(times.size() - 1));
+    }
+}
@@ -0,0 +1,152 @@
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class TestShardedBank extends Assert {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testTransfersKeepTotal() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("bank.wal");
+        String[] accountIDs = new String[16];
+        try (Bank bank = Bank.open("Bank", file)) {
+            bank.setPinIterations(1);
+            for (int i = 0; i < accountIDs.length; i++) {
+                accountIDs[i] = bank.addUser("John", "Doe", "1234").getAccountUUID(0);
+            }
+            try (ShardedBank sharded = new ShardedBank(bank, 4)) {
+                List<CompletableFuture<?>> futures = new ArrayList<>();
+                for (String accountID : accountIDs) {
+                    futures.add(sharded.deposit(accountID, 1000, "deposit"));
+                }
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+
+                futures.clear();
+                for (int i = 0; i < 10_000; i++) {
+                    String from = accountIDs[i % accountIDs.length];
+                    String to = accountIDs[(i * 7 + 3) % accountIDs.length];
+                    futures.add(sharded.transfer(from, to, 1 + i % 300));
+                    futures.add(sharded.withdraw(to, 1, "fee"));
+                }
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+                assertFalse(sharded.withdraw(accountIDs[0], Long.MAX_VALUE, "too much").get());
+            }
+        }
+
+        // Withdrawals are the only money leaving, nothing is overdrawn
+        try (Bank bank = Bank.open("Bank", file)) {
+            long total = 0;
+            int withdrawals = 0;
+            for (String accountID : accountIDs) {
+                Account account = bank.getAccount(accountID);
+                assertTrue(account.getBalance() >= 0);
+                total += account.getBalance();
+                for (int i = 0; i < account.getNumTransactions(); i++) {
+                    if (account.getTransaction(i).getMemo().equals("fee")) {
+                        withdrawals++;
+                    }
+                }
+            }
+            assertEquals(16 * 1000 - withdrawals, total);
+        }
+    }
+
+    @Test
+    public void testUnknownAccountFails() throws Exception {
+        Bank bank = new Bank("Bank");
+        String accountID = bank.addUser("John", "Doe", "1234").getAccountUUID(0);
+        try (ShardedBank sharded = new ShardedBank(bank, 2)) {
+            sharded.deposit(accountID, 500, "deposit").get();
+            try {
+                sharded.transfer(accountID, "0000000000", 100).get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalArgumentException);
+            }
+
+            // Nothing was withdrawn for the missing account
+            assertTrue(sharded.withdraw(accountID, 500, "cash").get());
+        }
+    }
+
+    @Test
+    public void testDepositsAreCheckedByRules() throws Exception {
+        Bank bank = new Bank("Bank");
+        String accountID = bank.addUser("John", "Doe", "1234").getAccountUUID(0);
+        bank.setTransactionRules(TransactionRules.builder()
+                .velocityLimit(1, TimeUnit.HOURS.toMillis(1))
+                .build());
+        try (ShardedBank sharded = new ShardedBank(bank, 2)) {
+            assertTrue(sharded.deposit(accountID, 500, "deposit").get());
+            assertFalse(sharded.deposit(accountID, 500, "deposit").get());
+        }
+        assertEquals(500, bank.getAccount(accountID).getBalance());
+    }
+
+    @Test
+    public void testRefusedCreditIsGivenBack() throws Exception {
+        Bank bank = new Bank("Bank");
+        bank.setPinIterations(1);
+        try (ShardedBank sharded = new ShardedBank(bank, 2)) {
+            String from = bank.addUser("John", "Doe", "1234").getAccountUUID(0);
+            String to = from;
+            while (sharded.shardOf(to) == sharded.shardOf(from)) {
+                to = bank.addUser("Jane", "Doe", "4321").getAccountUUID(0);
+            }
+            assertTrue(sharded.deposit(from, 500, "deposit").get());
+            assertTrue(sharded.deposit(to, Long.MAX_VALUE - 100, "deposit").get());
+            try {
+                sharded.transfer(from, to, 300).get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof ArithmeticException);
+            }
+            assertEquals(500, bank.getAccount(from).getBalance());
+            assertEquals(Long.MAX_VALUE - 100, bank.getAccount(to).getBalance());
+            assertTrue(bank.getPendingCredits().isEmpty());
+        }
+    }
+
+    @Test
+    public void testPendingCreditsAreSentOnStart() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("bank.wal");
+        String from;
+        String to;
+        try (Bank bank = Bank.open("Bank", file)) {
+            bank.setPinIterations(1);
+            from = bank.addUser("John", "Doe", "1234").getAccountUUID(0);
+            to = bank.addUser("Jane", "Doe", "4321").getAccountUUID(0);
+            assertTrue(bank.applyRequest(Bank.newRequestId(), from, 1000, "deposit"));
+
+            // A transfer cut off after the withdrawal
+            assertNotNull(bank.transferOut(Bank.newRequestId(), from, to, 300));
+        }
+
+        try (Bank bank = Bank.open("Bank", file)) {
+            assertEquals(1, bank.getPendingCredits().size());
+            try (ShardedBank sharded = new ShardedBank(bank, 2)) {
+                // A deposit queued after the credit is done after it
+                assertTrue(sharded.deposit(to, 1, "deposit").get());
+            }
+            assertTrue(bank.getPendingCredits().isEmpty());
+            assertEquals(700, bank.getAccount(from).getBalance());
+            assertEquals(301, bank.getAccount(to).getBalance());
+        }
+
+        // The log has the end of the transfer
+        try (Bank bank = Bank.open("Bank", file)) {
+            assertTrue(bank.getPendingCredits().isEmpty());
+            assertEquals(301, bank.getAccount(to).getBalance());
+        }
+    }
+}
@@ -0,0 +1,57 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSharedMemoDictionary extends Assert {
+
+    @Test
+    public void testMemosRoundTrip() {
+        SharedMemoDictionary dictionary = new SharedMemoDictionary(2);
+        MemoDictionary local = new MemoDictionary();
+        String[] memos = {
+                Bank.transferToMemo("0000012345"),
+                Bank.transferFromMemo("9999999999"),
+                "Transfer to account 12345",
+                "Transfer to account 00000x2345",
+                "salary",
+                "cash",
+                "salary",
+                "rent",
+                "x".repeat(SharedMemoDictionary.MAX_LENGTH + 1),
+                ""
+        };
+        long[] codes = new long[memos.length];
+        for (int i = 0; i < memos.length; i++) {
+            codes[i] = dictionary.encode(memos[i], local);
+        }
+        for (int i = 0; i < memos.length; i++) {
+            assertEquals(memos[i], dictionary.decode(codes[i], local));
+        }
+
+        // Transfer memos are templates, memos which don't fit a template
+        // fill the shared dictionary, later ones are local
+        assertFalse(SharedMemoDictionary.isLocal(codes[0]));
+        assertFalse(SharedMemoDictionary.isLocal(codes[1]));
+        assertEquals(2, dictionary.size());
+        assertFalse(SharedMemoDictionary.isLocal(codes[2]));
+        assertFalse(SharedMemoDictionary.isLocal(codes[3]));
+        assertTrue(SharedMemoDictionary.isLocal(codes[4]));
+        assertEquals(codes[4], codes[6]);
+        assertTrue(SharedMemoDictionary.isLocal(codes[8]));
+    }
+
+    @Test
+    public void testStoresShareMemos() {
+        TransactionStore first = new TransactionStore();
+        TransactionStore second = new TransactionStore();
+        for (int i = 0; i < 100; i++) {
+            String counterpart = String.format("%010d", i);
+            first.add(i, -1, Bank.transferToMemo(counterpart));
+            second.add(i, 1, Bank.transferFromMemo(counterpart));
+        }
+        first.add(100, 5, "shared memo");
+        second.add(100, 5, "shared memo");
+        assertEquals("Transfer to account 0000000042", first.memo(42));
+        assertEquals("Transfer from account 0000000099", second.memo(99));
+        assertSame(first.memo(100), second.memo(100));
+    }
+}
@@ -0,0 +1,45 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+public class TestSummaryFormatter extends Assert {
+
+    @Test
+    public void testDateMatchesDateToString() {
+        TimeZone saved = TimeZone.getDefault();
+        try {
+            for (String id : new String[] {"UTC", "Europe/Moscow", "America/New_York", "Australia/Lord_Howe"}) {
+                TimeZone zone = TimeZone.getTimeZone(id);
+                TimeZone.setDefault(zone);
+                SummaryFormatter formatter = new SummaryFormatter(zone);
+                Random random = new Random(id.hashCode());
+                long time = 0;
+                for (int i = 0; i < 20_000; i++) {
+                    // Mostly close timestamps, sometimes jumps over transitions
+                    time += i % 100 == 0 ? random.nextInt(1_000_000_000) * 40L : random.nextInt(600_000);
+                    String expected = new Date(time).toString();
+                    assertEquals(expected, formatter.appendDate(formatter.line(), time).toString());
+                }
+            }
+        } finally {
+            TimeZone.setDefault(saved);
+        }
+    }
+
+    @Test
+    public void testAmounts() {
+        assertEquals("12.34", SummaryFormatter.appendAmount(new StringBuilder(), 1234).toString());
+        assertEquals("(-0.05)", SummaryFormatter.appendAmount(new StringBuilder(), -5).toString());
+    }
+
+    @Test
+    public void testTransactionLine() {
+        SummaryFormatter formatter = new SummaryFormatter();
+        Date date = new Date(1_700_000_000_000L);
+        assertEquals(date + "\t:\t$(-10.00)\t:\tATM\n",
+                formatter.appendTransaction(formatter.line(), date.getTime(), -1000, "ATM").toString());
+    }
+}
@@ -0,0 +1,75 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+public class TestTransactionRules extends Assert {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    @Test
+    public void testRulesOverTime() {
+        TransactionRules rules = TransactionRules.builder()
+                .overdraftLimit(500)
+                .dailyWithdrawalLimit(1000)
+                .velocityLimit(3, HOUR)
+                .withdrawalLimit(700, 32_000)
+                .timeZone(TimeZone.getTimeZone("UTC"))
+                .build();
+        long[] state = rules.newState(new TransactionStore(), 0);
+        long day = TimeUnit.DAYS.toMillis(1);
+        long evening = 23 * HOUR;
+
+        assertEquals(TransactionRules.Verdict.OVERDRAFT, rules.check(state, 100, evening, -601));
+        assertEquals(TransactionRules.Verdict.ALLOWED, rules.check(state, 100, evening, -600));
+        assertEquals(TransactionRules.Verdict.ALLOWED, rules.check(state, -400, evening, 50));
+
+        rules.record(state, evening, -600);
+        assertEquals(TransactionRules.Verdict.WINDOW_LIMIT, rules.check(state, 10_000, evening + 1000, -101));
+        assertEquals(TransactionRules.Verdict.ALLOWED, rules.check(state, 10_000, evening + 1000, -100));
+
+        // The window slides, the day doesn't end yet
+        rules.record(state, evening + 40_000, -300);
+        assertEquals(TransactionRules.Verdict.DAILY_LIMIT, rules.check(state, 10_000, evening + 80_000, -101));
+        rules.record(state, evening + 80_000, 100);
+
+        // Three operations in the last hour
+        assertEquals(TransactionRules.Verdict.VELOCITY_LIMIT, rules.check(state, 10_000, evening + 90_000, 1));
+        assertEquals(TransactionRules.Verdict.ALLOWED, rules.check(state, 10_000, day + 1000, -100));
+        assertEquals(TransactionRules.Verdict.ALLOWED, rules.check(state, 10_000, evening + HOUR, -100));
+    }
+
+    @Test
+    public void testBankChecksClientOperations() {
+        Bank bank = new Bank("Bank");
+        bank.setPinIterations(1);
+        User user = bank.addUser("John", "Doe", "1234");
+        String from = user.getAccountUUID(0);
+        String to = bank.addUser("Jane", "Doe", "4321").getAccountUUID(0);
+        Account account = bank.getAccount(from);
+
+        // The aggregates start from the history before the rules
+        account.addTransaction(10_000, "salary");
+        account.addTransaction(-300, "cash");
+        bank.setTransactionRules(TransactionRules.builder()
+                .dailyWithdrawalLimit(1000)
+                .velocityLimit(4, HOUR)
+                .build());
+
+        assertFalse(user.addAccountTransaction(Bank.newRequestId(), 0, -800, "cash"));
+        assertEquals(TransactionRules.Verdict.DAILY_LIMIT, user.checkAccountTransaction(0, -800));
+        assertTrue(user.addAccountTransaction(Bank.newRequestId(), 0, -500, "cash"));
+        assertFalse(bank.transfer(Bank.newRequestId(), from, to, 201));
+        assertTrue(bank.transfer(Bank.newRequestId(), from, to, 200));
+        assertEquals(9000, account.getBalance());
+
+        // No overdraft by default
+        assertFalse(bank.transfer(Bank.newRequestId(), to, from, 201));
+        assertEquals(TransactionRules.Verdict.OVERDRAFT, bank.getAccount(to).checkTransaction(-201));
+
+        // Four transactions in the last hour
+        assertEquals(TransactionRules.Verdict.VELOCITY_LIMIT, account.checkTransaction(1));
+        assertFalse(user.addAccountTransaction(Bank.newRequestId(), 0, 1, "deposit"));
+    }
+}
@@ -0,0 +1,245 @@
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class TestTransactionStore extends Assert {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testTimeQueriesMatchScan() throws Exception {
+        Random random = new Random(42);
+        TransactionStore store = new TransactionStore();
+        long time = 1000;
+        for (int i = 0; i < 3000; i++) {
+            time += random.nextInt(3);
+            store.add(time, random.nextInt(2001) - 1000, "memo " + random.nextInt(5));
+        }
+        assertMatchesScan(store, random);
+
+        // The same history mapped from a snapshot block, with a heap tail
+        TransactionStore mapped = new TransactionStore(new MappedHistory(
+                ByteBuffer.wrap(encode(store)), 0, store.size(), true), store.balance());
+        for (int i = 0; i < 700; i++) {
+            time += random.nextInt(3);
+            mapped.add(time, random.nextInt(2001) - 1000, "tail");
+        }
+        assertMatchesScan(mapped, random);
+    }
+
+    @Test
+    public void testBlockCarriesOverBase() throws Exception {
+        Random random = new Random(11);
+        TransactionStore reference = new TransactionStore();
+        long time = 1000;
+        for (int i = 0; i < 10_000; i++) {
+            time += random.nextInt(3);
+            reference.add(time, random.nextInt(2001) - 1000, "memo " + random.nextInt(20));
+        }
+        TransactionStore mapped = new TransactionStore(new MappedHistory(
+                ByteBuffer.wrap(encode(reference)), 0, reference.size(), true), reference.balance());
+        for (int i = 0; i < 5000; i++) {
+            time += random.nextInt(3);
+            long amount = random.nextInt(2001) - 1000;
+            String memo = "memo " + random.nextInt(30);
+            reference.add(time, amount, memo);
+            mapped.add(time, amount, memo);
+        }
+
+        // The columns of base are copied, the block is the same as one
+        // written from scratch
+        assertArrayEquals(encode(reference), encode(mapped));
+        TransactionStore reloaded = new TransactionStore(new MappedHistory(
+                ByteBuffer.wrap(encode(mapped)), 0, mapped.size(), true), mapped.balance());
+        for (int i = 0; i < reference.size(); i++) {
+            assertEquals(reference.timestamp(i), reloaded.timestamp(i));
+            assertEquals(reference.amount(i), reloaded.amount(i));
+            assertEquals(reference.memo(i), reloaded.memo(i));
+        }
+    }
+
+    private static byte[] encode(TransactionStore store) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MappedHistory.BlockWriter writer = new MappedHistory.BlockWriter(store, store.size(), new ReentrantLock());
+        writer.writeTo(Channels.newChannel(bytes));
+        assertEquals(writer.length(), bytes.size());
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void testColdBlocksReadBack() throws Exception {
+        Random random = new Random(7);
+        TransactionStore reference = new TransactionStore();
+        TransactionStore store = new TransactionStore();
+        try (SegmentStore segments = new SegmentStore(folder.getRoot().toPath(), 2)) {
+            long time = 1000;
+            for (int i = 0; i < 300; i++) {
+                time += random.nextInt(3);
+                long amount = random.nextInt(2001) - 1000;
+                reference.add(time, amount, "memo " + random.nextInt(50));
+                store.add(time, amount, reference.memo(i));
+            }
+            store.attachSegments(segments);
+            spill(store);
+            for (int i = 300; i < 5000; i++) {
+                time += random.nextInt(3);
+                long amount = random.nextInt(2001) - 1000;
+                reference.add(time, amount, "memo " + random.nextInt(50));
+                store.add(time, amount, reference.memo(i));
+                spill(store);
+                assertTrue(store.hotSize() < TransactionStore.HOT_ROWS);
+            }
+
+            assertEquals(reference.size(), store.size());
+            assertEquals(reference.balance(), store.balance());
+            for (int i = 0; i < store.size(); i++) {
+                assertEquals(reference.timestamp(i), store.timestamp(i));
+                assertEquals(reference.amount(i), store.amount(i));
+                assertEquals(reference.memo(i), store.memo(i));
+            }
+            assertMatchesScan(store, random);
+
+            // Reading a block again hits the cache
+            long reads = segments.getBlockReads();
+            store.amount(0);
+            store.amount(SegmentStore.BLOCK_ROWS);
+            store.memo(1);
+            assertTrue(segments.getBlockReads() - reads <= 2);
+        }
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testAddWhileBlockIsWritten() throws Exception {
+        TransactionStore store = new TransactionStore();
+        try (SegmentStore segments = new SegmentStore(folder.getRoot().toPath())) {
+            store.attachSegments(segments);
+            for (int i = 0; i < TransactionStore.HOT_ROWS; i++) {
+                store.add(i, i, "memo " + i);
+            }
+            assertEquals(TransactionStore.HOT_ROWS, store.hotSize());
+
+            // Rows added after the block is copied stay in the tail
+            TransactionStore.Spill spill = store.startSpill();
+            assertNull(store.startSpill());
+            for (int i = TransactionStore.HOT_ROWS; i < TransactionStore.HOT_ROWS + 10; i++) {
+                store.add(i, i, "memo " + i);
+            }
+            spill.write();
+            store.finishSpill(spill);
+            assertEquals(TransactionStore.HOT_ROWS + 10 - SegmentStore.BLOCK_ROWS, store.hotSize());
+            for (int i = 0; i < store.size(); i++) {
+                assertEquals(i, store.timestamp(i));
+                assertEquals(i, store.amount(i));
+                assertEquals("memo " + i, store.memo(i));
+            }
+        }
+    }
+
+    @Test
+    public void testFailedBlockKeepsTransactions() throws Exception {
+        Path directory = folder.getRoot().toPath().resolve("segments");
+        AtomicInteger writes = new AtomicInteger();
+        try (Bank bank = new Bank("Bank")) {
+            bank.setSegmentStore(new SegmentStore(directory) {
+                @Override
+                long write(long[] timestamps, long[] amounts, String[] memos, int offset, int count) {
+                    writes.incrementAndGet();
+                    throw new UncheckedIOException(new IOException("No space left on device"));
+                }
+            });
+            Account from = bank.getAccount(bank.addUser("John", "Doe", "1234").getAccountUUID(0));
+            Account to = bank.getAccount(bank.addUser("Jane", "Doe", "1234").getAccountUUID(0));
+            for (int i = 0; i < TransactionStore.HOT_ROWS; i++) {
+                from.addTransaction(100, "deposit " + i);
+            }
+            assertTrue(bank.transfer(Bank.newRequestId(), from.getUUID(), to.getUUID(), 500));
+
+            // Every transaction is done and stays on the heap
+            assertEquals(TransactionStore.HOT_ROWS + 1, from.getTransactionStore().hotSize());
+            assertEquals(TransactionStore.HOT_ROWS * 100L - 500, from.getBalance());
+            assertEquals(500, to.getBalance());
+            assertTrue(from.getTransaction(0).getSummaryLine().contains("deposit 0"));
+
+            // The failed store is not tried again
+            for (int i = 0; i < SegmentStore.BLOCK_ROWS; i++) {
+                from.addTransaction(100, "deposit");
+            }
+            assertTrue(from.getTransactionStore().isSpillFailed());
+            assertEquals(1, writes.get());
+        }
+    }
+
+    @Test
+    public void testBankWithColdHistory() throws Exception {
+        Path journal = folder.getRoot().toPath().resolve("bank.wal");
+        Path snapshot = folder.getRoot().toPath().resolve("bank.snapshot");
+        Path directory = folder.getRoot().toPath().resolve("segments");
+        String accountID;
+        try (Bank bank = Bank.open("Bank", journal, snapshot)) {
+            bank.setPinIterations(1);
+            bank.setSegmentStore(new SegmentStore(directory));
+            accountID = bank.addUser("John", "Doe", "1234").getAccountUUID(0);
+            Account account = bank.getAccount(accountID);
+            for (int i = 0; i < 2000; i++) {
+                account.addTransaction(100, "deposit " + i);
+            }
+            assertTrue(account.getTransactionStore().hotSize() < TransactionStore.HOT_ROWS);
+            assertTrue(Files.size(directory.resolve("segment-000000.seg")) > 0);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            account.printTransHistory(new PrintStream(bytes, true, "UTF-8"));
+            String history = bytes.toString("UTF-8");
+            assertTrue(history.contains("deposit 0\n"));
+            assertTrue(history.contains("deposit 1999\n"));
+            bank.checkpoint();
+        }
+
+        // The snapshot has the cold history too
+        try (Bank bank = Bank.open("Bank", journal, snapshot)) {
+            Account account = bank.getAccount(accountID);
+            assertEquals(200_000, account.getBalance());
+            assertEquals(2000, account.getNumTransactions());
+            assertTrue(account.getTransaction(5).getSummaryLine().contains("deposit 5"));
+        }
+    }
+
+    private static void spill(TransactionStore store) {
+        TransactionStore.Spill spill;
+        while ((spill = store.startSpill()) != null) {
+            spill.write();
+            store.finishSpill(spill);
+        }
+    }
+
+    private static void assertMatchesScan(TransactionStore store, Random random) {
+        long last = store.timestamp(store.size() - 1);
+        for (int q = 0; q < 500; q++) {
+            long time = 990 + random.nextInt((int) (last - 980));
+            int count = 0;
+            long balance = 0;
+            for (int i = 0; i < store.size() && store.timestamp(i) <= time; i++) {
+                count++;
+                balance += store.amount(i);
+            }
+            assertEquals(count, store.countUntil(time));
+            assertEquals(balance, store.balanceAt(time));
+        }
+        assertEquals(store.size(), store.countBetween(Long.MIN_VALUE, Long.MAX_VALUE));
+        assertEquals(0, store.countBetween(last + 1, last + 100));
+    }
+}
@@ -0,0 +1,164 @@
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+
+public class TestWriteAheadLog extends Assert {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testBankIsRestoredFromLog() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("bank.wal");
+        String userID;
+        String from;
+        String to;
+        try (Bank bank = Bank.open("Bank", file)) {
+            User user = bank.addUser("John", "Doe", "1234");
+            Account checking = new Account("Checking", user, bank);
+            user.addAccount(checking);
+            bank.addAccount(checking);
+
+            userID = user.getUUID();
+            from = user.getAccountUUID(0);
+            to = checking.getUUID();
+            bank.getAccount(from).addTransaction(1000, "salary");
+            assertTrue(bank.transfer(from, to, 250));
+        }
+
+        try (Bank bank = Bank.open("Bank", file)) {
+            User user = bank.userLogin(userID, "1234");
+            assertNotNull(user);
+            assertEquals(2, user.getNumAccounts());
+            assertEquals(750, bank.getAccount(from).getBalance());
+            assertEquals(250, bank.getAccount(to).getBalance());
+            assertEquals("salary", bank.getAccount(from).getTransaction(0).getSummaryLine()
+                    .split("\t:\t")[2].trim());
+
+            // The restored bank keeps appending to the log
+            bank.getAccount(to).addTransaction(-50, "cash");
+        }
+
+        try (Bank bank = Bank.open("Bank", file)) {
+            assertEquals(200, bank.getAccount(to).getBalance());
+        }
+    }
+
+    @Test
+    public void testTornTailIsIgnored() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("bank.wal");
+        String accountID;
+        try (Bank bank = Bank.open("Bank", file)) {
+            accountID = bank.addUser("John", "Doe", "1234").getAccountUUID(0);
+            bank.getAccount(accountID).addTransaction(1000, "salary");
+        }
+
+        // Simulate a crash in the middle of writing a record
+        try (OutputStream out = Files.newOutputStream(file, StandardOpenOption.APPEND)) {
+            out.write(new byte[] {0, 0, 0, 42, 1, 2});
+        }
+
+        try (Bank bank = Bank.open("Bank", file)) {
+            assertEquals(1000, bank.getAccount(accountID).getBalance());
+            bank.getAccount(accountID).addTransaction(1, "after crash");
+        }
+        try (Bank bank = Bank.open("Bank", file)) {
+            assertEquals(1001, bank.getAccount(accountID).getBalance());
+        }
+    }
+
+    @Test
+    public void testBankIsRestoredFromSnapshotAndLogTail() throws IOException {
+        Path journal = folder.getRoot().toPath().resolve("bank.wal");
+        Path snapshot = folder.getRoot().toPath().resolve("bank.snapshot");
+        String userID;
+        String from;
+        String to;
+        try (Bank bank = Bank.open("Bank", journal, snapshot)) {
+            User user = bank.addUser("John", "Doe", "1234");
+            userID = user.getUUID();
+            from = user.getAccountUUID(0);
+            to = bank.addUser("Jane", "Doe", "4321").getAccountUUID(0);
+            for (int i = 0; i < 1000; i++) {
+                bank.getAccount(from).addTransaction(100, "deposit " + (i % 10));
+            }
+            bank.checkpoint();
+
+            // Changes after the snapshot are only in the log tail
+            assertTrue(bank.transfer(from, to, 5000));
+            bank.getAccount(from).addTransaction(-1000, "cash");
+        }
+
+        try (Bank bank = Bank.open("Bank", journal, snapshot)) {
+            assertNotNull(bank.userLogin(userID, "1234"));
+            Account account = bank.getAccount(from);
+            assertEquals(1002, account.getNumTransactions());
+            assertEquals(94000, account.getBalance());
+            assertEquals(5000, bank.getAccount(to).getBalance());
+            assertEquals(100, account.getTransaction(999).getAmount());
+            assertTrue(account.getTransaction(999).getSummaryLine().contains("deposit 9"));
+            assertEquals(94000, account.getBalanceAt(new Date()));
+            assertEquals(0, account.getBalanceAt(new Date(0)));
+
+            // A snapshot of a restored bank includes both the mapped history
+            // and the new transactions
+            account.addTransaction(1, "after restart");
+            bank.checkpoint();
+        }
+
+        try (Bank bank = Bank.open("Bank", journal, snapshot)) {
+            assertEquals(94001, bank.getAccount(from).getBalance());
+            assertEquals(1003, bank.getAccount(from).getNumTransactions());
+            assertTrue(bank.getAccount(from).getTransaction(999).getSummaryLine().contains("deposit 9"));
+            assertTrue(bank.getAccount(from).getTransaction(1002).getSummaryLine().contains("after restart"));
+        }
+    }
+
+    @Test
+    public void testRetriedRequestsAreAppliedOnce() throws IOException {
+        Path journal = folder.getRoot().toPath().resolve("bank.wal");
+        Path snapshot = folder.getRoot().toPath().resolve("bank.snapshot");
+        String from;
+        String to;
+        try (Bank bank = Bank.open("Bank", journal, snapshot)) {
+            User user = bank.addUser("John", "Doe", "1234");
+            from = user.getAccountUUID(0);
+            to = bank.addUser("Jane", "Doe", "4321").getAccountUUID(0);
+            assertTrue(user.addAccountTransaction("deposit", 0, 1000, "salary"));
+            assertTrue(user.addAccountTransaction("deposit", 0, 1000, "salary"));
+            assertFalse(user.addAccountTransaction("withdraw", 0, -5000, "cash"));
+            assertTrue(bank.transfer("transfer", from, to, 300));
+            assertTrue(bank.transfer("transfer", from, to, 300));
+            assertEquals(700, bank.getAccount(from).getBalance());
+
+            // A rejected request stays rejected, even if funds arrive
+            bank.getAccount(from).addTransaction(10_000, "bonus");
+            assertFalse(user.addAccountTransaction("withdraw", 0, -5000, "cash"));
+        }
+
+        // Applied requests are known from the log
+        try (Bank bank = Bank.open("Bank", journal, snapshot)) {
+            assertTrue(bank.applyRequest("deposit", from, 1000, "salary"));
+            assertTrue(bank.transfer("transfer", from, to, 300));
+            assertEquals(10_700, bank.getAccount(from).getBalance());
+            assertEquals(300, bank.getAccount(to).getBalance());
+            bank.checkpoint();
+        }
+
+        // And from the snapshot, once the log is truncated
+        try (Bank bank = Bank.open("Bank", journal, snapshot)) {
+            assertTrue(bank.applyRequest("deposit", from, 1000, "salary"));
+            assertTrue(bank.transfer("transfer", from, to, 300));
+            assertEquals(10_700, bank.getAccount(from).getBalance());
+            assertEquals(3, bank.getAccount(from).getNumTransactions());
+        }
+    }
+}